@@ -0,0 +1,231 @@
+/*
+ * Copyright 2011-2012 angelsl.
+ *
+ * This file is part of libjinx.
+ *
+ * libjinx is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * libjinx is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with libjinx.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library. Thus, the terms and
+ * conditions of the GNU General Public License cover the whole combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent modules,
+ * and to copy and distribute the resulting executable under terms of your
+ * choice, provided that you also meet, for each linked independent module,
+ * the terms and conditions of the license of that module. An independent
+ * module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version
+ * of the library, but you are not obligated to do so. If you do not wish to
+ * do so, delete this exception statement from your version.
+ */
+
+package org.angelsl.ms.libjinx.benchmarks;
+
+import org.angelsl.ms.libjinx.NXBitmapEncoder;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * A generated NX file for the benchmarks: image directories of sprite canvases with a few properties and a sound
+ * each, laid out as a PKG2 file would be. The same file is generated on every machine, and it is kept in the
+ * temporary directory between runs.
+ */
+final class Corpus {
+    static final int DIRECTORIES = 200;
+    static final int CANVASES = 24;
+    static final int SOUND_BYTES = 64 << 10;
+
+    private final Map<String, Integer> _strings = new LinkedHashMap<String, Integer>();
+    private final ByteArrayOutputStream _nodes = new ByteArrayOutputStream();
+    private final List<byte[]> _bitmaps = new ArrayList<byte[]>();
+    private final List<byte[]> _sounds = new ArrayList<byte[]>();
+    private int _nodeCount = 0;
+
+    private Corpus() {
+    }
+
+    /**
+     * Gets the path of the corpus file, generating it if it is not there yet.
+     */
+    static synchronized String file() throws IOException {
+        File f = new File(System.getProperty("java.io.tmpdir"), "libjinx-benchmark-corpus-1.nx");
+        if (!f.exists()) {
+            File tmp = new File(f.getPath() + ".tmp");
+            new Corpus().write(tmp);
+            if (!tmp.renameTo(f) && !f.exists()) throw new IOException("Cannot create " + f);
+        }
+        return f.getPath();
+    }
+
+    private void write(File path) throws IOException {
+        Random rnd = new Random(48);
+        node("", 0, 0, DIRECTORIES);
+        for (int d = 0; d < DIRECTORIES; ++d) {
+            node(String.format("%07d.img", d), 0, 0, 3);
+            node("info", 0, 0, 2);
+            node("level", 1, rnd.nextInt(200), 0);
+            node("name", 3, string("Mob " + d), 0);
+            node("stand", 0, 0, CANVASES);
+            for (int c = 0; c < CANVASES; ++c) {
+                node(Integer.toString(c), 5, _bitmaps.size(), 0);
+                _bitmaps.add(NXBitmapEncoder.encode(sprite(rnd, 48 + rnd.nextInt(208), 48 + rnd.nextInt(208))));
+            }
+            node("sound", 6, _sounds.size(), 0);
+            byte[] sound = new byte[SOUND_BYTES];
+            rnd.nextBytes(sound);
+            _sounds.add(sound);
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(path, "rw")) {
+            raf.setLength(0);
+            Out out = new Out(new BufferedOutputStream(new FileOutputStream(raf.getFD()), 1 << 16));
+            out.skip(52);
+            out.align();
+            long strings = out._pos;
+            for (String s : _strings.keySet()) {
+                byte[] b = s.getBytes(StandardCharsets.UTF_8);
+                out.u16(b.length);
+                out.write(b);
+            }
+            out.align();
+            long nodes = out._pos;
+            out.write(_nodes.toByteArray());
+            long[] bitmaps = new long[_bitmaps.size()], sounds = new long[_sounds.size()];
+            for (int i = 0; i < bitmaps.length; ++i) {
+                out.align();
+                bitmaps[i] = out._pos;
+                out.write(_bitmaps.get(i));
+            }
+            for (int i = 0; i < sounds.length; ++i) {
+                out.align();
+                sounds[i] = out._pos;
+                out.u32(_sounds.get(i).length);
+                out.write(_sounds.get(i));
+            }
+            out.align();
+            long bitmapTable = out._pos;
+            for (long o : bitmaps) out.u64(o);
+            long soundTable = out._pos;
+            for (long o : sounds) out.u64(o);
+            out.flush();
+            ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+            Out header = new Out(headerBytes);
+            header.u32(0x32474B50);
+            header.u32(_nodeCount);
+            header.u64(nodes);
+            header.u32(_strings.size());
+            header.u64(strings);
+            header.u32(bitmaps.length);
+            header.u64(bitmapTable);
+            header.u32(sounds.length);
+            header.u64(soundTable);
+            raf.seek(0);
+            raf.write(headerBytes.toByteArray());
+        }
+    }
+
+    // sprites are a shaded blob on a transparent background, like most canvases
+    private static BufferedImage sprite(Random rnd, int w, int h) {
+        BufferedImage bi = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        int colour = rnd.nextInt() & 0xFFFFFF;
+        for (int y = 0; y < h; ++y) {
+            for (int x = 0; x < w; ++x) {
+                double dx = (x - w / 2.0) / w, dy = (y - h / 2.0) / h;
+                if (dx * dx + dy * dy > 0.2) continue;
+                int shade = (int) (255 * (1 - 3 * (dx * dx + dy * dy))) & 0xF8 | rnd.nextInt(4);
+                bi.setRGB(x, y, 0xFF000000 | colour & (shade << 16 | shade << 8 | shade));
+            }
+        }
+        return bi;
+    }
+
+    private int string(String s) {
+        Integer id = _strings.get(s);
+        if (id == null) {
+            id = _strings.size();
+            _strings.put(s, id);
+        }
+        return id;
+    }
+
+    // writes a node; its children must follow it, depth first
+    private void node(String name, int type, int value, int children) throws IOException {
+        Out out = new Out(_nodes);
+        out.u32(string(name));
+        out.u8(type | (children > 0 ? 0x80 : 0));
+        if (type != 0) out.u32(value);
+        if (children > 0) out.u16(children);
+        ++_nodeCount;
+    }
+
+    private static final class Out {
+        final OutputStream _out;
+        long _pos = 0;
+
+        Out(OutputStream out) {
+            _out = out;
+        }
+
+        void u8(int v) throws IOException {
+            _out.write(v);
+            ++_pos;
+        }
+
+        void u16(int v) throws IOException {
+            u8(v);
+            u8(v >> 8);
+        }
+
+        void u32(long v) throws IOException {
+            u16((int) v);
+            u16((int) (v >> 16));
+        }
+
+        void u64(long v) throws IOException {
+            u32(v);
+            u32(v >>> 32);
+        }
+
+        void write(byte[] b) throws IOException {
+            _out.write(b);
+            _pos += b.length;
+        }
+
+        void skip(int n) throws IOException {
+            write(new byte[n]);
+        }
+
+        void align() throws IOException {
+            while (_pos % 8 != 0) u8(0);
+        }
+
+        void flush() throws IOException {
+            _out.flush();
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2011-2012 angelsl.
+ *
+ * This file is part of libjinx.
+ *
+ * libjinx is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * libjinx is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with libjinx.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library. Thus, the terms and
+ * conditions of the GNU General Public License cover the whole combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent modules,
+ * and to copy and distribute the resulting executable under terms of your
+ * choice, provided that you also meet, for each linked independent module,
+ * the terms and conditions of the license of that module. An independent
+ * module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version
+ * of the library, but you are not obligated to do so. If you do not wish to
+ * do so, delete this exception statement from your version.
+ */
+
+package org.angelsl.ms.libjinx.benchmarks;
+
+import org.angelsl.ms.libjinx.NXCanvasNode;
+import org.angelsl.ms.libjinx.NXFile;
+import org.angelsl.ms.libjinx.NXMP3Node;
+import org.angelsl.ms.libjinx.NXNode;
+import org.angelsl.ms.libjinx.NXStorageConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads from an NX file through each storage backend: the whole-file mapping and positional reads through a block
+ * cache with either eviction policy. The file is {@link Corpus} unless <code>-p file=...</code> names another.
+ * Lower scores are better; run with <code>-t N</code> to see how the block cache holds up under contention.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class StorageBenchmark {
+    public enum Backend {
+        MAPPED, CHANNEL_CLOCK, CHANNEL_LRU
+    }
+
+    @Param({"MAPPED", "CHANNEL_CLOCK", "CHANNEL_LRU"})
+    public Backend backend;
+
+    @Param({"64"})
+    public int cacheMiB;
+
+    @Param({""})
+    public String file;
+
+    String path;
+    NXStorageConfig config;
+    NXFile nx;
+    NXCanvasNode[] canvases;
+    NXMP3Node[] sounds;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        path = file.isEmpty() ? Corpus.file() : file;
+        switch (backend) {
+            case MAPPED:
+                config = NXStorageConfig.mapped();
+                break;
+            case CHANNEL_CLOCK:
+                config = NXStorageConfig.channel().withCacheSize(cacheMiB << 20);
+                break;
+            default:
+                config = NXStorageConfig.channel().withCacheSize(cacheMiB << 20).withEviction(NXStorageConfig.Eviction.LRU);
+                break;
+        }
+        nx = new NXFile(path, config);
+        List<NXCanvasNode> c = new ArrayList<NXCanvasNode>();
+        List<NXMP3Node> s = new ArrayList<NXMP3Node>();
+        ArrayDeque<NXNode<?>> pending = new ArrayDeque<NXNode<?>>();
+        pending.push(nx.getBaseNode());
+        while (!pending.isEmpty()) {
+            NXNode<?> n = pending.pop();
+            if (n instanceof NXCanvasNode && ((NXCanvasNode) n).getBitmapId() >= 0) c.add((NXCanvasNode) n);
+            if (n instanceof NXMP3Node && ((NXMP3Node) n).getLength() > 0) s.add((NXMP3Node) n);
+            for (NXNode<?> child : n) pending.push(child);
+        }
+        canvases = c.toArray(new NXCanvasNode[0]);
+        sounds = s.toArray(new NXMP3Node[0]);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        nx.close();
+    }
+
+    @State(Scope.Thread)
+    public static class Buffer {
+        final byte[] bytes = new byte[4096];
+    }
+
+    /**
+     * Opens the file and parses its node tree.
+     */
+    @Benchmark
+    public NXNode<?> open() throws Exception {
+        NXFile f = new NXFile(path, config);
+        f.close();
+        return f.getBaseNode();
+    }
+
+    /**
+     * Reads the dimensions of a random canvas: two small reads at a random offset.
+     */
+    @Benchmark
+    public int canvasHeader() {
+        NXCanvasNode c = canvases[ThreadLocalRandom.current().nextInt(canvases.length)];
+        return c.getWidth() + c.getHeight();
+    }
+
+    /**
+     * Decodes a random canvas without caching it.
+     */
+    @Benchmark
+    public BufferedImage decode() {
+        return canvases[ThreadLocalRandom.current().nextInt(canvases.length)].decodeImage(false);
+    }
+
+    /**
+     * Reads 4 KiB from a random offset in a random sound.
+     */
+    @Benchmark
+    public int soundRange(Buffer buf) {
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        NXMP3Node s = sounds[rnd.nextInt(sounds.length)];
+        return s.read(rnd.nextLong(Math.max(1, s.getLength() - buf.bytes.length)), buf.bytes, 0, buf.bytes.length);
+    }
+}
@@ -0,0 +1,98 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.decster.jnicompressions.benchmarks;
+
+import java.util.Random;
+
+/**
+ * Deterministic benchmark inputs, so runs on different machines compress
+ * the same bytes.
+ */
+public enum Corpus {
+  /** Tab-separated numbers with a small vocabulary; compresses well. */
+  TEXT {
+    @Override
+    void fill(Random r, byte[] out) {
+      String[] words = new String[256];
+      for (int i = 0; i < words.length; i++) {
+        words[i] = Integer.toString(r.nextInt(100000) / 977 * 977);
+      }
+      int p = 0;
+      while (p < out.length) {
+        byte[] w = words[r.nextInt(words.length)].getBytes();
+        for (int i = 0; i < w.length && p < out.length; i++) {
+          out[p++] = w[i];
+        }
+        if (p < out.length) {
+          out[p++] = (byte) (r.nextInt(8) == 0 ? '\n' : '\t');
+        }
+      }
+    }
+  },
+  /**
+   * BGRA sprite pixels: a transparent border around runs of a few colours
+   * with some noise, like the bitmaps in NX files.
+   */
+  SPRITE {
+    @Override
+    void fill(Random r, byte[] out) {
+      int width = 256;
+      int[] palette = new int[16];
+      for (int i = 0; i < palette.length; i++) {
+        palette[i] = 0xFF000000 | r.nextInt(0x1000000);
+      }
+      int colour = palette[0];
+      for (int p = 0; p + 4 <= out.length; p += 4) {
+        int x = (p / 4) % width, y = (p / 4) / width % width;
+        int v;
+        if (x < 32 || x >= width - 32 || y < 16) {
+          v = 0;
+        } else {
+          if (r.nextInt(12) == 0) {
+            colour = palette[r.nextInt(palette.length)];
+          }
+          v = r.nextInt(20) == 0 ? colour ^ r.nextInt(0x10) : colour;
+        }
+        out[p] = (byte) v;
+        out[p + 1] = (byte) (v >> 8);
+        out[p + 2] = (byte) (v >> 16);
+        out[p + 3] = (byte) (v >>> 24);
+      }
+    }
+  },
+  /** Uniformly random bytes; incompressible. */
+  RANDOM {
+    @Override
+    void fill(Random r, byte[] out) {
+      r.nextBytes(out);
+    }
+  };
+
+  abstract void fill(Random r, byte[] out);
+
+  /**
+   * Generates size bytes of this corpus. The same size always gives the
+   * same bytes.
+   */
+  public byte[] generate(int size) {
+    byte[] out = new byte[size];
+    fill(new Random(0x4C5A34L + ordinal()), out);
+    return out;
+  }
+}
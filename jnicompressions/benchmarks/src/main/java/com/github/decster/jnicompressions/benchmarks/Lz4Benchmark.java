@@ -0,0 +1,92 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.decster.jnicompressions.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.decster.jnicompressions.Lz4Compression;
+
+/**
+ * Throughput of Lz4Compression on one block. Scores are operations per
+ * second; multiply by blockSize for bytes per second. Every thread has its
+ * own buffers, so running with -t N measures how the codec scales.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class Lz4Benchmark {
+  @Param({"4096", "65536", "1048576"})
+  public int blockSize;
+
+  @Param({"TEXT", "SPRITE", "RANDOM"})
+  public Corpus corpus;
+
+  Lz4Compression lz4;
+  ByteBuffer raw;
+  ByteBuffer compressed;
+  int compressedLength;
+  ByteBuffer decompressed;
+  int[] pixels;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    lz4 = new Lz4Compression();
+    raw = ByteBuffer.allocateDirect(blockSize);
+    raw.put(corpus.generate(blockSize));
+    compressed = ByteBuffer.allocateDirect(lz4.MaxCompressedSize(blockSize) + 4);
+    compressedLength = lz4.CompressDirect(raw, 0, blockSize, compressed, 0);
+    decompressed = ByteBuffer.allocateDirect(blockSize);
+    pixels = new int[blockSize / 4];
+    if (lz4.DecompressDirect(compressed, 0, compressedLength, decompressed, 0) != blockSize) {
+      throw new IllegalStateException("round trip failed");
+    }
+  }
+
+  @Benchmark
+  public int compress() {
+    return lz4.CompressDirect(raw, 0, blockSize, compressed, 0);
+  }
+
+  @Benchmark
+  public int decompress() {
+    return lz4.DecompressDirect(compressed, 0, compressedLength, decompressed, 0);
+  }
+
+  @Benchmark
+  public int decompressToARGB() {
+    return lz4.DecompressDirectToARGB(compressed, 0, compressedLength, pixels, 0, pixels.length, false);
+  }
+}
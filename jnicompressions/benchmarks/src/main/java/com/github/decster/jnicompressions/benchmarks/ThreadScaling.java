@@ -0,0 +1,79 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.decster.jnicompressions.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs Lz4Benchmark.decompress at 1, 2, 4, ... threads up to the number of
+ * processors, and prints the aggregate decode throughput and the scaling
+ * relative to one thread. Any JMH options given, such as -p corpus=SPRITE,
+ * are applied to every run.
+ */
+public class ThreadScaling {
+  public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+    CommandLineOptions cmd = new CommandLineOptions(args);
+    int cpus = Runtime.getRuntime().availableProcessors();
+    List<Integer> counts = new ArrayList<Integer>();
+    for (int t = 1; t < cpus; t *= 2) {
+      counts.add(t);
+    }
+    counts.add(cpus);
+
+    List<String> lines = new ArrayList<String>();
+    double[] base = null;
+    for (int threads : counts) {
+      Options opts = new OptionsBuilder()
+          .parent(cmd)
+          .include(Lz4Benchmark.class.getName() + ".decompress$")
+          .threads(threads)
+          .build();
+      Collection<RunResult> results = new Runner(opts).run();
+      double[] scores = new double[results.size()];
+      int i = 0;
+      for (RunResult r : results) {
+        int blockSize = Integer.parseInt(r.getParams().getParam("blockSize"));
+        double mbps = r.getPrimaryResult().getScore() * blockSize / (1024.0 * 1024.0);
+        scores[i] = mbps;
+        lines.add(String.format("%3d threads  %-7s %8d B  %10.0f MiB/s  x%.2f",
+            threads, r.getParams().getParam("corpus"), blockSize, mbps,
+            base == null ? 1.0 : mbps / base[i]));
+        i++;
+      }
+      if (base == null) {
+        base = scores;
+      }
+    }
+    System.out.println();
+    System.out.println("Decode throughput, all threads combined:");
+    for (String line : lines) {
+      System.out.println(line);
+    }
+  }
+}
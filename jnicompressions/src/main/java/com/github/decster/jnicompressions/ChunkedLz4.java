@@ -0,0 +1,125 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.decster.jnicompressions;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A block split into independently compressed LZ4 chunks, so the chunks can
+ * be decompressed in parallel. All fields are little-endian:
+ * <pre>
+ * u32 chunkSize              uncompressed bytes per chunk; the last may be shorter
+ * u32 chunkCount
+ * u32 end[chunkCount]        end of each chunk, relative to the end of the index
+ * chunk[chunkCount]          each as written by CompressDirect: u32 length, LZ4 data
+ * </pre>
+ */
+public final class ChunkedLz4 {
+  private ChunkedLz4() {
+  }
+
+  /**
+   * Size of the header and index of a block with the given chunk count.
+   */
+  public static int headerSize(int chunkCount) {
+    return 8 + 4 * chunkCount;
+  }
+
+  public static int chunkCount(int srcLength, int chunkSize) {
+    return (srcLength + chunkSize - 1) / chunkSize;
+  }
+
+  public static int maxCompressedSize(Lz4Compression lz4, int srcLength, int chunkSize) {
+    int count = chunkCount(srcLength, chunkSize);
+    return headerSize(count) + count * (4 + lz4.MaxCompressedSize(chunkSize));
+  }
+
+  /**
+   * Compress src into a chunked block
+   * @param src input buffer, must be DirectByteBuffer
+   * @param chunkSize uncompressed bytes per chunk
+   * @param dest output buffer, must be DirectByteBuffer, with at least
+   *        maxCompressedSize bytes after destOffset
+   * @return size of the chunked block
+   */
+  public static int compress(Lz4Compression lz4, ByteBuffer src, int srcOffset,
+      int srcLength, int chunkSize, ByteBuffer dest, int destOffset) {
+    if (chunkSize <= 0) {
+      throw new IllegalArgumentException("chunkSize must be positive");
+    }
+    int count = chunkCount(srcLength, chunkSize);
+    ByteBuffer out = dest.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    // CompressDirect in older native builds writes the length prefix at the
+    // start of dest regardless of destOffset, so compress each chunk at
+    // offset 0 of a scratch buffer and copy it into place
+    ByteBuffer scratch = ByteBuffer.allocateDirect(4 + lz4.MaxCompressedSize(chunkSize));
+    out.putInt(destOffset, chunkSize);
+    out.putInt(destOffset + 4, count);
+    int data = destOffset + headerSize(count);
+    int end = 0;
+    for (int i = 0; i < count; i++) {
+      int len = Math.min(chunkSize, srcLength - i * chunkSize);
+      int n = lz4.CompressDirect(src, srcOffset + i * chunkSize, len, scratch, 0);
+      scratch.clear().limit(n);
+      out.position(data + end);
+      out.put(scratch);
+      scratch.clear();
+      end += n;
+      out.putInt(destOffset + 8 + 4 * i, end);
+    }
+    return headerSize(count) + end;
+  }
+
+  /**
+   * Decompress a chunked block one chunk after another. Callers that want
+   * parallelism decompress the chunks themselves using the index.
+   * @return size of decompressed data, or a negative number on error
+   */
+  public static int decompress(Lz4Compression lz4, ByteBuffer src, int srcOffset,
+      int srcLength, ByteBuffer dest, int destOffset) {
+    ByteBuffer in = src.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    if (srcLength < 8) {
+      return -1;
+    }
+    int chunkSize = in.getInt(srcOffset);
+    int count = in.getInt(srcOffset + 4);
+    if (chunkSize <= 0 || count < 0 || count > (srcLength - 8) / 4) {
+      return -1;
+    }
+    int data = srcOffset + headerSize(count);
+    int start = 0, total = 0;
+    for (int i = 0; i < count; i++) {
+      int end = in.getInt(srcOffset + 8 + 4 * i);
+      if (end < start || headerSize(count) + end > srcLength) {
+        return -1;
+      }
+      ByteBuffer out = dest.duplicate();
+      out.position(destOffset + i * chunkSize);
+      out.limit(Math.min(out.capacity(), destOffset + (i + 1) * chunkSize));
+      int n = lz4.DecompressDirect(src, data + start, end - start, out.slice(), 0);
+      if (n < 0) {
+        return n;
+      }
+      total += n;
+      start = end;
+    }
+    return total;
+  }
+}
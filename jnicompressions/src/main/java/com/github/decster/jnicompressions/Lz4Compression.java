@@ -37,4 +37,19 @@ public class Lz4Compression implements BlockCompression {
   @Override
   public native int DecompressDirect(ByteBuffer src, int srcOffset, int srcLength,
       ByteBuffer dest, int destOffset);
+
+  /**
+   * Decompress one block of 32-bit BGRA pixels straight into ARGB ints,
+   * touching each pixel once
+   * @param src input buffer, must be DirectByteBuffer
+   * @param srcOffset input block start offset
+   * @param srcLength input block length
+   * @param dest output pixels
+   * @param destOffset index of the first output pixel
+   * @param maxPixels most pixels to write; the block fails if it inflates past this
+   * @param premultiply whether to premultiply colour channels by alpha
+   * @return number of pixels written, < 0 if some error occured
+   */
+  public native int DecompressDirectToARGB(ByteBuffer src, int srcOffset,
+      int srcLength, int[] dest, int destOffset, int maxPixels, boolean premultiply);
 }
@@ -18,148 +18,250 @@
 
 package com.github.decster.jnicompressions;
 
-import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.security.DigestInputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.UserPrincipal;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Set;
 
+/**
+ * Loads the native compressions library. In order, it tries:
+ * <ol>
+ * <li>the file named by the <code>jnicompressions.library</code> system
+ * property, if set;</li>
+ * <li>the library bundled for the current os/arch, extracted once into
+ * <code>native.library.temp.dir</code> (default <code>java.io.tmpdir</code>)
+ * under a name derived from its content, and reused by later runs;</li>
+ * <li><code>System.loadLibrary("compressions")</code>, which searches
+ * <code>java.library.path</code>.</li>
+ * </ol>
+ */
 public class NativeLoader {
   static boolean NativeCompressionLibraryLoaded = false;
   static String LoadInfo = "";
 
-  /**
-   * Computes the MD5 value of the input stream Copy from
-   * snappy-java(code.google.com/p/snappy-java/)
-   * @param input
-   * @return
-   * @throws IOException
-   * @throws NoSuchAlgorithmException
-   */
-  static String md5sum(InputStream input) throws IOException {
-    BufferedInputStream in = new BufferedInputStream(input);
-    try {
-      MessageDigest digest = java.security.MessageDigest.getInstance("MD5");
-      DigestInputStream digestInputStream = new DigestInputStream(in, digest);
-      for (; digestInputStream.read() >= 0;) {
+  static final String LIBRARY_PROPERTY = "jnicompressions.library";
+
+  static String osName() {
+    String os = System.getProperty("os.name").toLowerCase();
+    if (os.contains("windows")) {
+      return "windows";
+    } else if (os.contains("linux")) {
+      return "linux";
+    } else if (os.contains("mac")) {
+      return "mac";
+    }
+    return os.replaceAll("\\W", "");
+  }
 
+  static String archName() {
+    String arch = System.getProperty("os.arch").toLowerCase();
+    if (arch.equals("amd64") || arch.equals("x86_64") || arch.equals("x64")) {
+      return "x86_64";
+    } else if (arch.equals("x86") || arch.matches("i[3-6]86")) {
+      return "i386";
+    } else if (arch.equals("aarch64") || arch.equals("arm64")) {
+      return "aarch64";
+    }
+    return arch.replaceAll("\\W", "");
+  }
+
+  static byte[] readFully(InputStream in) throws IOException {
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+      byte[] buffer = new byte[16 * 1024];
+      int n;
+      while ((n = in.read(buffer)) != -1) {
+        out.write(buffer, 0, n);
       }
-      ByteArrayOutputStream md5out = new ByteArrayOutputStream();
-      md5out.write(digest.digest());
-      return md5out.toString();
-    } catch (NoSuchAlgorithmException e) {
-      throw new IllegalStateException("MD5 algorithm is not available: " + e);
+      return out.toByteArray();
     } finally {
       in.close();
     }
   }
 
-  /**
-   * Copy from snappy-java(code.google.com/p/snappy-java/)
-   * @param libFolderForCurrentOS
-   * @param libraryFileName
-   * @param targetFolder
-   * @return
-   */
-  private static File extractLibraryFile(String libFolderForCurrentOS,
-      String libraryFileName, String targetFolder) {
-    String nativeLibraryFilePath = libFolderForCurrentOS + "/" + libraryFileName;
-    File extractedLibFile = new File(targetFolder, libraryFileName);
-
+  static String sha1Hex(byte[] data) {
     try {
-      if (extractedLibFile.exists()) {
-        // test md5sum value
-        String md5sum1 = md5sum(NativeLoader.class
-            .getResourceAsStream(nativeLibraryFilePath));
-        String md5sum2 = md5sum(new FileInputStream(extractedLibFile));
-
-        if (md5sum1.equals(md5sum2)) {
-          return extractedLibFile;
-        } else {
-          // remove old native library file
-          boolean deletionSucceeded = extractedLibFile.delete();
-          if (!deletionSucceeded) {
-            throw new IOException("failed to remove existing native library file: "
-                + extractedLibFile.getAbsolutePath());
-          }
-        }
+      byte[] d = MessageDigest.getInstance("SHA-1").digest(data);
+      StringBuilder sb = new StringBuilder(d.length * 2);
+      for (byte b : d) {
+        sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+        sb.append(Character.forDigit(b & 0xF, 16));
       }
+      return sb.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-1 algorithm is not available: " + e);
+    }
+  }
 
-      // Extract a native library file into the target directory
-      InputStream reader = NativeLoader.class
-          .getResourceAsStream(nativeLibraryFilePath);
-      FileOutputStream writer = new FileOutputStream(extractedLibFile);
-      byte[] buffer = new byte[8192];
-      int bytesRead = 0;
-      while ((bytesRead = reader.read(buffer)) != -1) {
-        writer.write(buffer, 0, bytesRead);
-      }
+  // whether the file holds exactly the given bytes; anyone can write to the
+  // temporary folder, so a file is only trusted once its content is checked
+  static boolean hasContent(File file, byte[] content) {
+    if (file.length() != content.length) {
+      return false;
+    }
+    try {
+      return Arrays.equals(Files.readAllBytes(file.toPath()), content);
+    } catch (IOException e) {
+      return false;
+    }
+  }
 
-      writer.close();
-      reader.close();
-
-      // Set executable (x) flag to enable Java to load the native library
-      if (!System.getProperty("os.name").contains("Windows")) {
-        try {
-          Runtime
-              .getRuntime()
-              .exec(
-                  new String[] { "chmod", "755", extractedLibFile.getAbsolutePath() })
-              .waitFor();
-        } catch (Throwable e) {
-        }
+  // whether the file can be reused without reading it: it has the length and
+  // modification time it was extracted with, and only this user can have
+  // written it since
+  static boolean isUnchanged(File file, long length, long lastModified) {
+    if (file.length() != length || file.lastModified() != lastModified) {
+      return false;
+    }
+    try {
+      Path path = file.toPath();
+      UserPrincipal user = path.getFileSystem().getUserPrincipalLookupService()
+          .lookupPrincipalByName(System.getProperty("user.name"));
+      if (!Files.getOwner(path).equals(user)) {
+        return false;
+      }
+      PosixFileAttributeView view = Files.getFileAttributeView(path,
+          PosixFileAttributeView.class);
+      if (view == null) {
+        return true;
       }
+      Set<PosixFilePermission> permissions = view.readAttributes().permissions();
+      return !permissions.contains(PosixFilePermission.GROUP_WRITE)
+          && !permissions.contains(PosixFilePermission.OTHERS_WRITE);
+    } catch (IOException | RuntimeException e) {
+      return false;
+    }
+  }
 
+  static String hashedName(String libraryFileName, byte[] key) {
+    int dot = libraryFileName.lastIndexOf('.');
+    return libraryFileName.substring(0, dot) + "-"
+        + sha1Hex(key).substring(0, 16) + libraryFileName.substring(dot);
+  }
+
+  /**
+   * Extracts a bundled library into the target folder under a name that
+   * includes a hash of the bundled file's length and modification time, or of
+   * its content if those are unknown. An existing file of that name is reused
+   * without reading the bundled library if its length and modification time
+   * match and only this user can write it; otherwise it is reused only if its
+   * content matches. A new one is written to a temporary file and renamed into
+   * place, so concurrent processes never see a partial file.
+   */
+  static File extractLibraryFile(String nativeLibraryFilePath,
+      String libraryFileName, File targetFolder) throws IOException {
+    URL url = NativeLoader.class.getResource(nativeLibraryFilePath);
+    if (url == null) {
+      return null;
+    }
+    URLConnection connection = url.openConnection();
+    long length = connection.getContentLengthLong();
+    // file systems keep modification times to the second at least
+    long lastModified = connection.getLastModified() / 1000 * 1000;
+    boolean stamped = length >= 0 && lastModified > 0;
+    File extractedLibFile = null;
+    if (stamped) {
+      extractedLibFile = new File(targetFolder, hashedName(libraryFileName,
+          (length + "-" + lastModified).getBytes(StandardCharsets.US_ASCII)));
+      if (isUnchanged(extractedLibFile, length, lastModified)) {
+        return extractedLibFile;
+      }
+    }
+    byte[] library = readFully(connection.getInputStream());
+    if (!stamped) {
+      extractedLibFile = new File(targetFolder, hashedName(libraryFileName, library));
+    }
+    if (hasContent(extractedLibFile, library)) {
       return extractedLibFile;
+    }
+
+    File tmp = File.createTempFile(extractedLibFile.getName(), ".tmp", targetFolder);
+    try {
+      Files.write(tmp.toPath(), library);
+      tmp.setReadable(true, false);
+      tmp.setExecutable(true, false);
+      tmp.setWritable(false, false);
+      tmp.setWritable(true, true);
+      if (stamped) {
+        tmp.setLastModified(lastModified);
+      }
+      try {
+        Files.move(tmp.toPath(), extractedLibFile.toPath(),
+            StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(tmp.toPath(), extractedLibFile.toPath());
+      }
     } catch (IOException e) {
-      e.printStackTrace(System.err);
-      return null;
+      // another process extracted the same library first, or on Windows the
+      // target cannot be replaced while another process has it loaded; use it
+      // if it has the same content
+      if (!hasContent(extractedLibFile, library)) {
+        throw e;
+      }
+    } finally {
+      tmp.delete();
     }
+    return extractedLibFile;
   }
 
   static {
-    String os = System.getProperty("os.name").toLowerCase();
-    String arch = System.getProperty("os.arch").toLowerCase();
-    if (os.contains("windows")) {
-      os = "windows";
-    } else if (os.contains("linux")) {
-      os = "linux";
-    } else if (os.contains("mac")) {
-      os = "mac";
+    String libraryName = System.mapLibraryName("compressions");
+    String nativeLibPath = "/com/github/decster/jnicompressions/native/"
+        + osName() + "/" + archName() + "/" + libraryName;
+    StringBuilder errors = new StringBuilder();
+
+    String configured = System.getProperty(LIBRARY_PROPERTY);
+    if (configured != null && configured.length() > 0) {
+      try {
+        System.load(new File(configured).getAbsolutePath());
+        NativeCompressionLibraryLoaded = true;
+      } catch (Throwable e) {
+        errors.append(" ").append(LIBRARY_PROPERTY).append(": ").append(e);
+      }
     }
-    if (arch.contains("amd64") || arch.contains("x86_64")) {
-      arch = "x86_64";
-    } else {
-      arch = "i386";
+    if (!NativeCompressionLibraryLoaded) {
+      try {
+        File tempFolder = new File(System.getProperty("native.library.temp.dir",
+            System.getProperty("java.io.tmpdir"))).getAbsoluteFile();
+        File nativeLibFile = extractLibraryFile(nativeLibPath, libraryName, tempFolder);
+        if (nativeLibFile != null) {
+          System.load(nativeLibFile.getAbsolutePath());
+          NativeCompressionLibraryLoaded = true;
+        } else {
+          errors.append(" bundled: not found");
+        }
+      } catch (Throwable e) {
+        errors.append(" bundled: ").append(e);
+      }
     }
-    String libraryName = System.mapLibraryName("compressions");
-    String nativeLibDir = "/com/github/decster/jnicompressions/native/" + os + "/"
-        + arch;
-    String nativeLibPath = nativeLibDir + "/" + libraryName;
-    if (NativeLoader.class.getResource(nativeLibPath) != null) {
-      // Temporary library folder. Use the value of native.library.temp.dir or java.io.tmpdir
-      String tempFolder = new File(System.getProperty("native.library.temp.dir",
-          System.getProperty("java.io.tmpdir"))).getAbsolutePath();
-      // Extract and load a native library inside the jar file
-      File nativeLibFile = extractLibraryFile(nativeLibDir, libraryName, tempFolder);
+    if (!NativeCompressionLibraryLoaded) {
       try {
-        System.load(nativeLibFile.getAbsolutePath());
+        System.loadLibrary("compressions");
         NativeCompressionLibraryLoaded = true;
-      } catch (Exception e) {
-        e.printStackTrace();
+      } catch (Throwable e) {
+        errors.append(" java.library.path: ").append(e);
       }
     }
     if (NativeCompressionLibraryLoaded == false) {
       LoadInfo = String
           .format(
-              "load native compressions library failed: os.name=%s os.arch=%s nativeLibPath=%s",
+              "load native compressions library failed: os.name=%s os.arch=%s nativeLibPath=%s;%s",
               System.getProperty("os.name"), System.getProperty("os.arch"),
-              nativeLibPath);
+              nativeLibPath, errors);
     }
   }
 
@@ -19,8 +19,14 @@
 #include <stdint.h>
 #include <string.h>
 #include <stdlib.h>
+#include <limits.h>
 #include <jni.h>
 
+#if defined(__SSE2__) || defined(_M_X64) || (defined(_M_IX86_FP) && _M_IX86_FP >= 2)
+#include <emmintrin.h>
+#define HAVE_SSE2 1
+#endif
+
 extern "C" {
 extern int LZ4_compress   (const char* source, char* dest, int isize);
 extern int LZ4_uncompress (const char* source, char* dest, int osize);
@@ -54,7 +60,7 @@ extern "C" JNIEXPORT jint JNICALL Java_com_github_decster_jnicompressions_Lz4Com
   jsize destBufferSize = jenv->GetDirectBufferCapacity(dest);
   jint osize = LZ4_compress((char*) srcBuffer + srcOffset,
                             (char*) destBuffer + destOffset + 4, srcLength);
-  *(uint32_t*)destBuffer = osize;
+  *(uint32_t*)(destBuffer + destOffset) = osize;
   return osize + 4;
 }
 
@@ -83,3 +89,97 @@ extern "C" JNIEXPORT jint JNICALL Java_com_github_decster_jnicompressions_Lz4Com
   return osize;
 }
 
+static inline bool IsLittleEndian() {
+  const uint32_t one = 1;
+  return *(const uint8_t*)&one == 1;
+}
+
+// c * a / 255, rounded to nearest
+static inline uint32_t MulDiv255(uint32_t c, uint32_t a) {
+  uint32_t t = c * a + 128;
+  return (t + (t >> 8)) >> 8;
+}
+
+/*
+ * Turns BGRA bytes in place into native-order ARGB ints, premultiplying the
+ * colour channels by alpha if asked to. On little-endian hosts BGRA bytes
+ * already are ARGB ints, so only the premultiply touches the pixels.
+ */
+static void BGRAToARGB(uint8_t * pixels, jint count, bool premultiply) {
+  jint i = 0;
+  if (premultiply) {
+#ifdef HAVE_SSE2
+    const __m128i zero = _mm_setzero_si128();
+    const __m128i keepAlpha = _mm_set_epi16(0xFF, 0, 0, 0, 0xFF, 0, 0, 0);
+    const __m128i half = _mm_set1_epi16(128);
+    for (; i + 4 <= count; i += 4) {
+      __m128i p = _mm_loadu_si128((const __m128i*)(pixels + i * 4));
+      __m128i lo = _mm_unpacklo_epi8(p, zero);
+      __m128i hi = _mm_unpackhi_epi8(p, zero);
+      // broadcast each pixel's alpha to its four lanes, then force the alpha lane's multiplier to 255
+      __m128i alo = _mm_shufflehi_epi16(_mm_shufflelo_epi16(lo, 0xFF), 0xFF);
+      __m128i ahi = _mm_shufflehi_epi16(_mm_shufflelo_epi16(hi, 0xFF), 0xFF);
+      alo = _mm_or_si128(alo, keepAlpha);
+      ahi = _mm_or_si128(ahi, keepAlpha);
+      lo = _mm_add_epi16(_mm_mullo_epi16(lo, alo), half);
+      hi = _mm_add_epi16(_mm_mullo_epi16(hi, ahi), half);
+      lo = _mm_srli_epi16(_mm_add_epi16(lo, _mm_srli_epi16(lo, 8)), 8);
+      hi = _mm_srli_epi16(_mm_add_epi16(hi, _mm_srli_epi16(hi, 8)), 8);
+      _mm_storeu_si128((__m128i*)(pixels + i * 4), _mm_packus_epi16(lo, hi));
+    }
+#endif
+    for (; i < count; i++) {
+      uint8_t * p = pixels + i * 4;
+      uint32_t a = p[3];
+      p[0] = (uint8_t)MulDiv255(p[0], a);
+      p[1] = (uint8_t)MulDiv255(p[1], a);
+      p[2] = (uint8_t)MulDiv255(p[2], a);
+    }
+  }
+  if (!IsLittleEndian()) {
+    for (i = 0; i < count; i++) {
+      uint8_t * p = pixels + i * 4;
+      uint8_t t = p[0]; p[0] = p[3]; p[3] = t;
+      t = p[1]; p[1] = p[2]; p[2] = t;
+    }
+  }
+}
+
+/*
+ * Method:    DecompressDirectToARGB
+ * Signature: (Ljava/nio/ByteBuffer;II[IIIZ)I
+ */
+extern "C" JNIEXPORT jint JNICALL Java_com_github_decster_jnicompressions_Lz4Compression_DecompressDirectToARGB(
+    JNIEnv * jenv,
+    jobject obj,
+    jobject src,
+    jint srcOffset,
+    jint srcLength,
+    jintArray dest,
+    jint destOffset,
+    jint maxPixels,
+    jboolean premultiply) {
+  if (srcLength < 4) {
+    return -1;
+  }
+  jsize destLength = jenv->GetArrayLength(dest);
+  if (destOffset < 0 || destOffset > destLength || maxPixels < 0 ||
+      maxPixels > destLength - destOffset || maxPixels > INT_MAX / 4) {
+    return -1;
+  }
+  jbyte * srcBuffer = (jbyte*)jenv->GetDirectBufferAddress(src);
+  jint * destBuffer = (jint*)jenv->GetPrimitiveArrayCritical(dest, NULL);
+  if (destBuffer == NULL) {
+    return -1;
+  }
+  uint8_t * out = (uint8_t*)(destBuffer + destOffset);
+  jint osize =
+      LZ4_uncompress_unknownOutputSize((char*) srcBuffer + srcOffset + 4,
+                                       (char*) out, srcLength - 4,
+                                       maxPixels * 4);
+  if (osize > 0) {
+    BGRAToARGB(out, osize / 4, premultiply == JNI_TRUE);
+  }
+  jenv->ReleasePrimitiveArrayCritical(dest, destBuffer, 0);
+  return osize < 0 ? osize : osize / 4;
+}
@@ -18,10 +18,8 @@
 
 package com.github.decster.jnicompressions;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Random;
 
 import com.github.decster.jnicompressions.BlockCompression;
@@ -60,88 +58,108 @@ public class BlockCompressionTest extends TestCase {
     CompressDecompressDirect(bc, input);
   }
 
-  public void testPerformance() throws IOException {
-    measurePerformance(new Lz4Compression(), 64*1024*1024);
+  public void testChunkedRoundTrip() {
+    Random r = new Random(7);
+    int length = 100000;
+    ByteBuffer input = ByteBuffer.allocateDirect(length + 3);
+    for (int i = 0; i < length + 3; i++) {
+      input.put((byte) (i % 5 == 0 ? r.nextInt() : i / 100));
+    }
+    Lz4Compression bc = new Lz4Compression();
+    int chunkSize = 4096 * 3;
+    ByteBuffer compressed = ByteBuffer.allocateDirect(
+        ChunkedLz4.maxCompressedSize(bc, length, chunkSize) + 16);
+    int clen = ChunkedLz4.compress(bc, input, 3, length, chunkSize, compressed, 16);
+    assertTrue(clen > ChunkedLz4.headerSize(ChunkedLz4.chunkCount(length, chunkSize)));
+    ByteBuffer output = ByteBuffer.allocateDirect(length + 1);
+    assertEquals(length, ChunkedLz4.decompress(bc, compressed, 16, clen, output, 1));
+    for (int i = 0; i < length; i++) {
+      assertEquals(input.get(i + 3), output.get(i + 1));
+    }
   }
 
-  public void measurePerformance(BlockCompression bc, int sizePerFile) throws IOException {
-    int blockSize = 64 * 1024;
-    File [] allfiles = new File("testdata").listFiles();
-    System.out.printf("%s: block size: %dK, dataSize/file: %d\n", bc
-        .getClass().getName(), blockSize / 1024, sizePerFile);
-    MeasureResult totalDirect = new MeasureResult();
-    for (File f : allfiles) {
-      if (f.isFile()) {
-        byte [] data = LoadFile(f);
-        int time = sizePerFile / data.length;
-        MeasureResult result = measureDirect(bc, data, blockSize, time);
-        System.out.printf("Direct    %20s: %s\n", f.getName(), result.toString());
-        totalDirect.add(result);
-      }
+  public void testChunkedMalformedIndex() {
+    int length = 100000, chunkSize = 4096 * 3;
+    ByteBuffer input = ByteBuffer.allocateDirect(length);
+    for (int i = 0; i < length; i++) {
+      input.put((byte) (i / 100));
     }
-    System.out.printf("Direct    %20s: %s\n", "Total", totalDirect.toString());
+    Lz4Compression bc = new Lz4Compression();
+    ByteBuffer compressed = ByteBuffer.allocateDirect(
+        ChunkedLz4.maxCompressedSize(bc, length, chunkSize))
+        .order(ByteOrder.LITTLE_ENDIAN);
+    int clen = ChunkedLz4.compress(bc, input, 0, length, chunkSize, compressed, 0);
+    int count = ChunkedLz4.chunkCount(length, chunkSize);
+    ByteBuffer output = ByteBuffer.allocateDirect(length);
+
+    // the last chunk ends past the block
+    int last = 8 + 4 * (count - 1);
+    int end = compressed.getInt(last);
+    compressed.putInt(last, end + 1);
+    assertTrue(ChunkedLz4.decompress(bc, compressed, 0, clen, output, 0) < 0);
+    compressed.putInt(last, Integer.MAX_VALUE);
+    assertTrue(ChunkedLz4.decompress(bc, compressed, 0, clen, output, 0) < 0);
+    compressed.putInt(last, end);
+
+    // a chunk ends before the previous one
+    compressed.putInt(12, compressed.getInt(8) - 1);
+    assertTrue(ChunkedLz4.decompress(bc, compressed, 0, clen, output, 0) < 0);
+
+    // the index is longer than the block
+    compressed.putInt(4, clen);
+    assertTrue(ChunkedLz4.decompress(bc, compressed, 0, clen, output, 0) < 0);
   }
-  
-  static byte [] LoadFile(File path) throws IOException {
-    FileInputStream fin = new FileInputStream(path);
-    long length = path.length();
-    byte [] ret = new byte[(int)length];
-    int rd = fin.read(ret);
-    if (rd != length) {
-      throw new IOException("read error");
-    }
-    return ret;
+
+  public void testCompressAtOffset() {
+    byte [] input = new byte[5000];
+    new Random(3).nextBytes(input);
+    ByteBuffer inputb = ByteBuffer.allocateDirect(input.length);
+    inputb.put(input);
+    Lz4Compression bc = new Lz4Compression();
+    ByteBuffer outputb = ByteBuffer.allocateDirect(bc.MaxCompressedSize(input.length) + 100);
+    outputb.put(0, (byte) 0x5A);
+    int length = bc.CompressDirect(inputb, 0, input.length, outputb, 100);
+    assertEquals((byte) 0x5A, outputb.get(0));
+    ByteBuffer decompb = ByteBuffer.allocateDirect(input.length);
+    assertEquals(input.length, bc.DecompressDirect(outputb, 100, length, decompb, 0));
   }
-  
-  static class MeasureResult {
-    public long compressTime;   // ns
-    public long uncompressTime; // ns
-    public long uncompressedSize; // bytes
-    public long compressedSize;   // bytes
 
-    public String toString() {
-      return String.format(
-          "Compress: %4.0fM/s Decompress: %5.0fM/s(%5.0fM/s) ratio: %.1f%%",
-          (uncompressedSize / 1024.0 / 1024) / (compressTime / 1000000000.),
-          (compressedSize / 1024.0 / 1024) / (uncompressTime / 1000000000.),
-          (uncompressedSize / 1024.0 / 1024) / (uncompressTime / 1000000000.),
-          compressedSize / (float) uncompressedSize * 100);
+  public void testDecompressToARGB() {
+    Random r = new Random(42);
+    int pixels = 10007;
+    ByteBuffer bgra = ByteBuffer.allocateDirect(pixels * 4);
+    for (int i = 0; i < pixels; i++) {
+      int v = (i % 3 == 0) ? r.nextInt() : 0x80402010 + (i & 0xFF);
+      bgra.put((byte) v).put((byte) (v >> 8)).put((byte) (v >> 16)).put((byte) (v >>> 24));
     }
-    
-    public void add(MeasureResult rhs) {
-      compressTime += rhs.compressTime;
-      uncompressTime += rhs.uncompressTime;
-      uncompressedSize += rhs.uncompressedSize;
-      compressedSize += rhs.compressedSize;
+    Lz4Compression bc = new Lz4Compression();
+    ByteBuffer compressed = ByteBuffer.allocateDirect(bc.MaxCompressedSize(pixels * 4));
+    int length = bc.CompressDirect(bgra, 0, pixels * 4, compressed, 0);
+    int[] argb = new int[pixels + 1];
+    int[] pre = new int[pixels + 1];
+    assertEquals(pixels, bc.DecompressDirectToARGB(compressed, 0, length, argb, 1, pixels, false));
+    assertEquals(pixels, bc.DecompressDirectToARGB(compressed, 0, length, pre, 1, pixels, true));
+    for (int i = 0; i < pixels; i++) {
+      int b = bgra.get(i * 4) & 0xFF, g = bgra.get(i * 4 + 1) & 0xFF;
+      int rr = bgra.get(i * 4 + 2) & 0xFF, a = bgra.get(i * 4 + 3) & 0xFF;
+      assertEquals((a << 24) | (rr << 16) | (g << 8) | b, argb[i + 1]);
+      int pb = (b * a + 127) / 255, pg = (g * a + 127) / 255, pr = (rr * a + 127) / 255;
+      assertEquals((a << 24) | (pr << 16) | (pg << 8) | pb, pre[i + 1]);
     }
   }
 
-  public MeasureResult measureDirect(BlockCompression bc, byte [] rawData, int blocksize, int time) {
-    MeasureResult result = new MeasureResult();
-    ByteBuffer data = ByteBuffer.allocateDirect(rawData.length);
-    data.put(rawData);
-    ByteBuffer dest = ByteBuffer.allocateDirect(bc.MaxCompressedSize(blocksize));
-    ByteBuffer decomp = ByteBuffer.allocateDirect(blocksize);
-    for (int start = 0; start < data.position(); start += blocksize) {
-      int length = Math.min(data.position() - start, blocksize);
-      long startTime = System.nanoTime();
-      int compressedSize = 0;
-      for (int i=0; i< time; i++) {
-        compressedSize = bc.CompressDirect(data, start, length, dest, 0);
-        result.uncompressedSize += length;
-        result.compressedSize += compressedSize;
-      }
-      long endTime = System.nanoTime();
-      result.compressTime += endTime - startTime;
-
-      startTime = System.nanoTime();
-      for (int i=0; i< time; i++) {
-        int osize = bc.DecompressDirect(dest, 0, compressedSize, decomp, 0);
-      }
-      endTime = System.nanoTime();
-      result.uncompressTime += endTime - startTime;
-    }
-    return result;
+  public void testDecompressToARGBStaysInBounds() {
+    int pixels = 1000;
+    ByteBuffer bgra = ByteBuffer.allocateDirect(pixels * 4);
+    for (int i = 0; i < pixels * 4; i++) bgra.put(i, (byte) 0x11);
+    Lz4Compression bc = new Lz4Compression();
+    ByteBuffer compressed = ByteBuffer.allocateDirect(bc.MaxCompressedSize(pixels * 4));
+    int length = bc.CompressDirect(bgra, 0, pixels * 4, compressed, 0);
+    int[] dest = new int[pixels * 2];
+    // a block that inflates past its band must fail without touching the next band
+    assertTrue(bc.DecompressDirectToARGB(compressed, 0, length, dest, 0, pixels / 2, false) < 0);
+    for (int i = pixels / 2; i < dest.length; i++) assertEquals(0, dest[i]);
+    assertTrue(bc.DecompressDirectToARGB(compressed, 0, length, dest, pixels, pixels + 1, false) < 0);
+    assertEquals(pixels, bc.DecompressDirectToARGB(compressed, 0, length, dest, pixels, pixels, false));
   }
 }
-
@@ -0,0 +1,92 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.decster.jnicompressions;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class NativeLoaderTest extends TestCase {
+
+  private static final String LIBRARY = System.mapLibraryName("compressions");
+  private static final String PATH = "/com/github/decster/jnicompressions/native/"
+      + NativeLoader.osName() + "/" + NativeLoader.archName() + "/" + LIBRARY;
+
+  private File _folder;
+
+  @Override
+  protected void setUp() throws IOException {
+    _folder = Files.createTempDirectory("jnicompressions-test").toFile();
+  }
+
+  @Override
+  protected void tearDown() {
+    for (File f : _folder.listFiles()) {
+      f.delete();
+    }
+    _folder.delete();
+  }
+
+  public void testPlantedLibraryIsReplaced() throws IOException {
+    InputStream in = NativeLoader.class.getResourceAsStream(PATH);
+    if (in == null) {
+      // no library bundled for this platform
+      return;
+    }
+    byte[] library = NativeLoader.readFully(in);
+    File first = NativeLoader.extractLibraryFile(PATH, LIBRARY, _folder);
+    assertTrue(Arrays.equals(library, Files.readAllBytes(first.toPath())));
+
+    // a file of the same name and length but different content must not be reused
+    byte[] planted = library.clone();
+    planted[planted.length / 2] ^= 1;
+    Files.write(first.toPath(), planted);
+    File second = NativeLoader.extractLibraryFile(PATH, LIBRARY, _folder);
+    assertEquals(first, second);
+    assertTrue(Arrays.equals(library, Files.readAllBytes(second.toPath())));
+  }
+
+  public void testExtractedLibraryIsReusedWithoutReading() throws IOException {
+    if (NativeLoader.class.getResource(PATH) == null) {
+      return;
+    }
+    File first = NativeLoader.extractLibraryFile(PATH, LIBRARY, _folder);
+    Object key = Files.readAttributes(first.toPath(), BasicFileAttributes.class).fileKey();
+    assertTrue(NativeLoader.isUnchanged(first, first.length(), first.lastModified()));
+    File second = NativeLoader.extractLibraryFile(PATH, LIBRARY, _folder);
+    assertEquals(first, second);
+    if (key != null) {
+      // not replaced
+      assertEquals(key, Files.readAttributes(second.toPath(), BasicFileAttributes.class).fileKey());
+    }
+
+    assertFalse(NativeLoader.isUnchanged(first, first.length() + 1, first.lastModified()));
+    assertFalse(NativeLoader.isUnchanged(first, first.length(), first.lastModified() + 1000));
+    if (Files.getFileAttributeView(first.toPath(), PosixFileAttributeView.class) != null) {
+      first.setWritable(true, false);
+      assertFalse(NativeLoader.isUnchanged(first, first.length(), first.lastModified()));
+    }
+  }
+}
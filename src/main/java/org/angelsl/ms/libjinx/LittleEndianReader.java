@@ -35,27 +35,25 @@
 package org.angelsl.ms.libjinx;
 
 import java.awt.*;
-import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.io.UTFDataFormatException;
 import java.nio.BufferUnderflowException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 
 class LittleEndianReader {
-    private final ByteBuffer bs;
+    private final NXStorage bs;
+    private long pos;
 
-    LittleEndianReader(ByteBuffer bs) {
-        this.bs = bs.order(ByteOrder.LITTLE_ENDIAN);
+    LittleEndianReader(NXStorage bs) {
+        this.bs = bs;
     }
 
     private int intlReadByte() throws BufferUnderflowException {
-        int ret = bs.get() & 0xFF;
+        int ret = bs.getByte(pos) & 0xFF;
+        pos += 1;
         return ret;
     }
 
     public byte readByte() throws BufferUnderflowException {
-        return bs.get();
+        return (byte) intlReadByte();
     }
 
     public int readUByte() throws BufferUnderflowException {
@@ -63,23 +61,29 @@ class LittleEndianReader {
     }
 
     public short readShort() throws BufferUnderflowException {
-        return bs.getShort();
+        short ret = bs.getShort(pos);
+        pos += 2;
+        return ret;
     }
 
     public int readUShort() throws BufferUnderflowException {
-        return bs.getShort() & 0xFFFF;
+        return readShort() & 0xFFFF;
     }
 
     public int readInt() throws BufferUnderflowException {
-        return bs.getInt();
+        int ret = bs.getInt(pos);
+        pos += 4;
+        return ret;
     }
 
     public long readUInt() throws BufferUnderflowException {
-        return ((long)bs.getInt()) & 0xFFFFFFFFL;
+        return ((long)readInt()) & 0xFFFFFFFFL;
     }
 
     public long readLong() throws BufferUnderflowException {
-        return bs.getLong();
+        long ret = bs.getLong(pos);
+        pos += 8;
+        return ret;
     }
 
     public float readFloat() throws BufferUnderflowException {
@@ -96,55 +100,74 @@ class LittleEndianReader {
 
     public byte[] read(int num) throws BufferUnderflowException {
         byte[] ret = new byte[num];
-        bs.get(ret);
+        read(ret, 0, num);
         return ret;
     }
 
+    public void read(byte[] dest, int offset, int num) throws BufferUnderflowException {
+        bs.get(pos, dest, offset, num);
+        pos += num;
+    }
+
     public final Point readPos() throws BufferUnderflowException {
         final int x = readInt();
         final int y = readInt();
         return new Point(x, y);
     }
 
+    public int getUShort(long offset) throws IndexOutOfBoundsException {
+        return bs.getShort(offset) & 0xFFFF;
+    }
+
+    public long getUInt(long offset) throws IndexOutOfBoundsException {
+        return ((long)bs.getInt(offset)) & 0xFFFFFFFFL;
+    }
+
+    public byte[] get(long offset, int num) throws BufferUnderflowException {
+        byte[] ret = new byte[num];
+        bs.get(offset, ret, 0, num);
+        return ret;
+    }
+
     public void skip(int num) throws IllegalArgumentException {
-        bs.position(bs.position() + num);
+        pos += num;
     }
 
     public void seek(long offset) throws BufferUnderflowException {
-        if(offset > Integer.MAX_VALUE) throw new IllegalArgumentException("Cannot seek to position more than 2147483647; Java limitation.");
-        bs.position((int)offset);
+        pos = offset;
     }
 
     @Override
     public String toString() {
-        return bs.toString();
+        return bs + "@" + pos;
     }
 
-    public ByteBuffer getBuffer() {
+    public NXStorage getStorage() {
         return bs;
     }
 
     private final static String readUTF(LittleEndianReader in) throws BufferUnderflowException, UTFDataFormatException {
         int utflen = in.readUShort();
-        byte[] bytearr = new byte[utflen];
-        char[] chararr = new char[utflen];
+        byte[] bytearr = in.read(utflen);
+        return decodeUTF(bytearr, 0, utflen);
+    }
 
+    static String decodeUTF(byte[] src, int off, int utflen) throws UTFDataFormatException {
+        char[] chararr = new char[utflen];
 
         int c, char2, char3;
         int count = 0;
         int chararr_count = 0;
 
-        in.bs.get(bytearr, 0, utflen);
-
         while (count < utflen) {
-            c = (int) bytearr[count] & 0xff;
+            c = (int) src[off + count] & 0xff;
             if (c > 127) break;
             count++;
             chararr[chararr_count++] = (char) c;
         }
 
         while (count < utflen) {
-            c = (int) bytearr[count] & 0xff;
+            c = (int) src[off + count] & 0xff;
             switch (c >> 4) {
                 case 0:
                 case 1:
@@ -165,7 +188,7 @@ class LittleEndianReader {
                     if (count > utflen)
                         throw new UTFDataFormatException(
                                 "malformed input: partial character at end");
-                    char2 = (int) bytearr[count - 1];
+                    char2 = (int) src[off + count - 1];
                     if ((char2 & 0xC0) != 0x80)
                         throw new UTFDataFormatException(
                                 "malformed input around byte " + count);
@@ -178,8 +201,8 @@ class LittleEndianReader {
                     if (count > utflen)
                         throw new UTFDataFormatException(
                                 "malformed input: partial character at end");
-                    char2 = (int) bytearr[count - 2];
-                    char3 = (int) bytearr[count - 1];
+                    char2 = (int) src[off + count - 2];
+                    char3 = (int) src[off + count - 1];
                     if (((char2 & 0xC0) != 0x80) || ((char3 & 0xC0) != 0x80))
                         throw new UTFDataFormatException(
                                 "malformed input around byte " + (count - 1));
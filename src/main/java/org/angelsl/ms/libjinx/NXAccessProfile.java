@@ -0,0 +1,267 @@
+/*
+ * Copyright 2011-2012 angelsl.
+ *
+ * This file is part of libjinx.
+ *
+ * libjinx is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * libjinx is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with libjinx.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library. Thus, the terms and
+ * conditions of the GNU General Public License cover the whole combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent modules,
+ * and to copy and distribute the resulting executable under terms of your
+ * choice, provided that you also meet, for each linked independent module,
+ * the terms and conditions of the license of that module. An independent
+ * module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version
+ * of the library, but you are not obligated to do so. If you do not wish to
+ * do so, delete this exception statement from your version.
+ */
+
+
+package org.angelsl.ms.libjinx;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A record of which bitmaps and MP3s were loaded from an NX file, and how often. Profiles are recorded with
+ * {@link NXFile#startRecording()}, saved with {@link #write(OutputStream)}, and replayed on a later run with
+ * {@link NXFile#replay(NXAccessProfile, int)} to decode the hottest entries ahead of time.
+ * <p>
+ * Entries are kept by node path rather than by bitmap or MP3 ID, so a profile stays useful after the file is
+ * rebuilt.
+ */
+public class NXAccessProfile {
+    private static final int MAGIC = 0x4E584150; // "NXAP"
+    private static final int VERSION = 1;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // nodes recorded during this run
+    private final ConcurrentHashMap<NXNode<?>, Entry> _nodes = new ConcurrentHashMap<NXNode<?>, Entry>();
+    // entries read from a saved profile, by path
+    private final Map<String, Entry> _paths = new HashMap<String, Entry>();
+
+    static final class Entry {
+        final AtomicLong _hits = new AtomicLong();
+        // bit n is set if canvas level n was requested
+        final AtomicInteger _levels = new AtomicInteger();
+
+        void add(long hits, int levels) {
+            _hits.addAndGet(hits);
+            int l;
+            do {
+                l = _levels.get();
+                if ((l | levels) == l) return;
+            } while (!_levels.compareAndSet(l, l | levels));
+        }
+    }
+
+    /**
+     * A profile entry: the path of a canvas or MP3 node, its access count, and the canvas levels requested.
+     */
+    public static final class Item {
+        private final String _path;
+        private final long _hits;
+        private final int _levels;
+
+        Item(String path, long hits, int levels) {
+            _path = path;
+            _hits = hits;
+            _levels = levels;
+        }
+
+        /**
+         * Gets the path of the node, as accepted by {@link NXFile#resolvePath(String)}.
+         *
+         * @return The path.
+         */
+        public String getPath() {
+            return _path;
+        }
+
+        /**
+         * Gets the number of times the node's value was asked for.
+         *
+         * @return The access count.
+         */
+        public long getHits() {
+            return _hits;
+        }
+
+        /**
+         * Gets the canvas levels that were requested, as a bit mask; bit n stands for level n.
+         *
+         * @return The level mask, or 0 for an MP3.
+         */
+        public int getLevels() {
+            return _levels;
+        }
+    }
+
+    /**
+     * Constructs an empty profile.
+     */
+    public NXAccessProfile() {
+    }
+
+    void record(NXNode<?> node, int level) {
+        Entry e = _nodes.get(node);
+        if (e == null) {
+            Entry n = new Entry();
+            e = _nodes.putIfAbsent(node, n);
+            if (e == null) e = n;
+        }
+        e.add(1, node instanceof NXCanvasNode ? 1 << level : 0);
+    }
+
+    /**
+     * Gets the entries of this profile, hottest first.
+     *
+     * @return The entries.
+     */
+    public List<Item> getItems() {
+        Map<String, Entry> merged = merged();
+        List<Item> items = new ArrayList<Item>(merged.size());
+        for (Map.Entry<String, Entry> e : merged.entrySet())
+            items.add(new Item(e.getKey(), e.getValue()._hits.get(), e.getValue()._levels.get()));
+        Collections.sort(items, new Comparator<Item>() {
+            @Override
+            public int compare(Item a, Item b) {
+                return Long.compare(b._hits, a._hits);
+            }
+        });
+        return items;
+    }
+
+    // recorded nodes and loaded paths, by path, in path order
+    private Map<String, Entry> merged() {
+        TreeMap<String, Entry> merged = new TreeMap<String, Entry>();
+        for (Map.Entry<String, Entry> e : _paths.entrySet()) {
+            Entry m = new Entry();
+            m.add(e.getValue()._hits.get(), e.getValue()._levels.get());
+            merged.put(e.getKey(), m);
+        }
+        for (Map.Entry<NXNode<?>, Entry> e : _nodes.entrySet()) {
+            String path = relativePath(e.getKey());
+            Entry m = merged.get(path);
+            if (m == null) merged.put(path, m = new Entry());
+            m.add(e.getValue()._hits.get(), e.getValue()._levels.get());
+        }
+        return merged;
+    }
+
+    // the path from the base node, which unlike getPath() leaves out the base node's own name
+    private static String relativePath(NXNode<?> node) {
+        StringBuilder sb = new StringBuilder(node.getName());
+        for (NXNode<?> n = node._parent; n != null && n._parent != null; n = n._parent)
+            sb.insert(0, '/').insert(0, n.getName());
+        return sb.toString();
+    }
+
+    /**
+     * Writes this profile. Paths are sorted and front-coded, and numbers are written as variable-length integers,
+     * so a profile of a few thousand entries takes a few tens of kilobytes.
+     *
+     * @param out The stream to write to; it is not closed
+     * @throws IOException if writing fails
+     */
+    public void write(OutputStream out) throws IOException {
+        Map<String, Entry> merged = merged();
+        DataOutputStream o = new DataOutputStream(out);
+        o.writeInt(MAGIC);
+        writeVarint(o, VERSION);
+        writeVarint(o, merged.size());
+        byte[] prev = new byte[0];
+        for (Map.Entry<String, Entry> e : merged.entrySet()) {
+            byte[] path = e.getKey().getBytes(UTF_8);
+            int shared = 0;
+            while (shared < prev.length && shared < path.length && prev[shared] == path[shared]) ++shared;
+            writeVarint(o, shared);
+            writeVarint(o, path.length - shared);
+            o.write(path, shared, path.length - shared);
+            writeVarint(o, e.getValue()._hits.get());
+            writeVarint(o, e.getValue()._levels.get());
+            prev = path;
+        }
+        o.flush();
+    }
+
+    /**
+     * Reads a profile written by {@link #write(OutputStream)}.
+     *
+     * @param in The stream to read from; it is not closed
+     * @return The profile.
+     * @throws IOException if reading fails or the stream does not hold a profile
+     */
+    public static NXAccessProfile read(InputStream in) throws IOException {
+        DataInputStream i = new DataInputStream(in);
+        if (i.readInt() != MAGIC) throw new IOException("Not an NX access profile");
+        long version = readVarint(i);
+        if (version != VERSION) throw new IOException("Unsupported NX access profile version " + version);
+        long count = readVarint(i);
+        NXAccessProfile p = new NXAccessProfile();
+        byte[] prev = new byte[0];
+        for (long n = 0; n < count; ++n) {
+            int shared = (int) readVarint(i);
+            int rest = (int) readVarint(i);
+            if (shared > prev.length || rest < 0) throw new IOException("Corrupt NX access profile");
+            byte[] path = new byte[shared + rest];
+            System.arraycopy(prev, 0, path, 0, shared);
+            i.readFully(path, shared, rest);
+            Entry e = new Entry();
+            e.add(readVarint(i), (int) readVarint(i));
+            p._paths.put(new String(path, UTF_8), e);
+            prev = path;
+        }
+        return p;
+    }
+
+    private static void writeVarint(DataOutputStream o, long v) throws IOException {
+        while ((v & ~0x7FL) != 0) {
+            o.writeByte((int) (v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        o.writeByte((int) v);
+    }
+
+    private static long readVarint(DataInputStream i) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = i.read();
+            if (b < 0) throw new EOFException();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return v;
+        }
+        throw new IOException("Corrupt NX access profile");
+    }
+}
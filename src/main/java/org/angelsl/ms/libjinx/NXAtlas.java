@@ -0,0 +1,312 @@
+/*
+ * Copyright 2011-2012 angelsl.
+ *
+ * This file is part of libjinx.
+ *
+ * libjinx is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * libjinx is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with libjinx.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library. Thus, the terms and
+ * conditions of the GNU General Public License cover the whole combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent modules,
+ * and to copy and distribute the resulting executable under terms of your
+ * choice, provided that you also meet, for each linked independent module,
+ * the terms and conditions of the license of that module. An independent
+ * module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version
+ * of the library, but you are not obligated to do so. If you do not wish to
+ * do so, delete this exception statement from your version.
+ */
+
+
+package org.angelsl.ms.libjinx;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The bitmaps of an NX subtree packed into a few large images, such as the frames of an animation.
+ * <p>
+ * Canvases are packed with a bottom-left skyline packer into pages no larger than the requested size, and nodes
+ * that show the same bitmap share a region. Each page is allocated once. Bitmaps are decoded one at a time into a
+ * buffer that is reused for every bitmap, and copied into their region row by row.
+ */
+public class NXAtlas {
+    /**
+     * The default maximum page width and height.
+     */
+    public static final int DEFAULT_PAGE_SIZE = 2048;
+
+    /**
+     * The area of an atlas page that holds one bitmap.
+     */
+    public static class Region {
+        private final int _page;
+        private final int _x;
+        private final int _y;
+        private final int _width;
+        private final int _height;
+
+        Region(int page, int x, int y, int width, int height) {
+            _page = page;
+            _x = x;
+            _y = y;
+            _width = width;
+            _height = height;
+        }
+
+        /**
+         * Gets the index of the page the bitmap is on.
+         *
+         * @return The page index.
+         */
+        public int getPage() {
+            return _page;
+        }
+
+        /**
+         * Gets the left edge of the bitmap on its page.
+         *
+         * @return The X coordinate in pixels.
+         */
+        public int getX() {
+            return _x;
+        }
+
+        /**
+         * Gets the top edge of the bitmap on its page.
+         *
+         * @return The Y coordinate in pixels.
+         */
+        public int getY() {
+            return _y;
+        }
+
+        /**
+         * Gets the width of the bitmap.
+         *
+         * @return The width in pixels.
+         */
+        public int getWidth() {
+            return _width;
+        }
+
+        /**
+         * Gets the height of the bitmap.
+         *
+         * @return The height in pixels.
+         */
+        public int getHeight() {
+            return _height;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Region@%d:%d,%d:%dx%d", _page, _x, _y, _width, _height);
+        }
+    }
+
+    private final List<BufferedImage> _pages;
+    private final Map<NXCanvasNode, Region> _regions;
+
+    private NXAtlas(List<BufferedImage> pages, Map<NXCanvasNode, Region> regions) {
+        _pages = Collections.unmodifiableList(pages);
+        _regions = Collections.unmodifiableMap(regions);
+    }
+
+    /**
+     * Builds an atlas of every canvas under the given node, using the default page size and a 1 pixel gap.
+     *
+     * @param root The node whose descendant canvases to pack
+     * @return The atlas.
+     */
+    public static NXAtlas build(NXNode<?> root) {
+        return build(root, DEFAULT_PAGE_SIZE, 1);
+    }
+
+    /**
+     * Builds an atlas of every canvas under the given node. A bitmap larger than a page gets a page of its own.
+     *
+     * @param root     The node whose descendant canvases to pack
+     * @param pageSize The maximum width and height of a page
+     * @param padding  The number of empty pixels to leave between bitmaps
+     * @return The atlas.
+     */
+    public static NXAtlas build(NXNode<?> root, int pageSize, int padding) {
+        if (pageSize <= 0 || padding < 0) throw new IllegalArgumentException("Invalid page size or padding");
+        // one entry per distinct bitmap; nodes showing the same bitmap share it
+        Map<Long, List<NXCanvasNode>> byBitmap = new HashMap<Long, List<NXCanvasNode>>();
+        final Map<Long, int[]> sizes = new HashMap<Long, int[]>();
+        List<Long> bitmaps = new ArrayList<Long>();
+        ArrayDeque<NXNode<?>> pending = new ArrayDeque<NXNode<?>>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            NXNode<?> n = pending.pop();
+            if (n instanceof NXCanvasNode) {
+                NXCanvasNode c = (NXCanvasNode) n;
+                int[] dim = c.dimensions();
+                if (dim != null) {
+                    Long key = c.bitmapOffset();
+                    List<NXCanvasNode> nodes = byBitmap.get(key);
+                    if (nodes == null) {
+                        byBitmap.put(key, nodes = new ArrayList<NXCanvasNode>());
+                        sizes.put(key, dim);
+                        bitmaps.add(key);
+                    }
+                    nodes.add(c);
+                }
+            }
+            for (NXNode<?> c : n) pending.push(c);
+        }
+        // tallest first packs a skyline tightly
+        Collections.sort(bitmaps, new Comparator<Long>() {
+            @Override
+            public int compare(Long a, Long b) {
+                int[] x = sizes.get(a), y = sizes.get(b);
+                return x[1] != y[1] ? y[1] - x[1] : y[0] - x[0];
+            }
+        });
+
+        List<Skyline> skylines = new ArrayList<Skyline>();
+        Map<Long, Region> placed = new HashMap<Long, Region>();
+        for (Long key : bitmaps) {
+            int[] dim = sizes.get(key);
+            int w = dim[0] + padding, h = dim[1] + padding;
+            int[] pos = null;
+            int page = 0;
+            for (; page < skylines.size() && pos == null; ++page) pos = skylines.get(page).place(w, h);
+            if (pos == null) {
+                Skyline s = new Skyline(Math.max(pageSize, w), Math.max(pageSize, h));
+                skylines.add(s);
+                pos = s.place(w, h);
+                page = skylines.size();
+            }
+            placed.put(key, new Region(page - 1, pos[0], pos[1], dim[0], dim[1]));
+        }
+
+        List<BufferedImage> pages = new ArrayList<BufferedImage>();
+        for (Skyline s : skylines)
+            pages.add(new BufferedImage(Math.max(1, s._usedWidth - padding), Math.max(1, s._usedHeight - padding), BufferedImage.TYPE_INT_ARGB));
+        Map<NXCanvasNode, Region> regions = new IdentityHashMap<NXCanvasNode, Region>();
+        int[] scratch = new int[0];
+        for (Long key : bitmaps) {
+            Region r = placed.get(key);
+            List<NXCanvasNode> nodes = byBitmap.get(key);
+            int size = r._width * r._height;
+            if (scratch.length < size) scratch = new int[size];
+            if (!nodes.get(0).decodeARGB(scratch, 0)) continue;
+            BufferedImage p = pages.get(r._page);
+            int[] dest = ((DataBufferInt) p.getRaster().getDataBuffer()).getData();
+            for (int y = 0; y < r._height; ++y)
+                System.arraycopy(scratch, y * r._width, dest, (r._y + y) * p.getWidth() + r._x, r._width);
+            for (NXCanvasNode c : nodes) regions.put(c, r);
+        }
+        return new NXAtlas(pages, regions);
+    }
+
+    /**
+     * Gets the pages of this atlas.
+     *
+     * @return The pages, as ARGB images.
+     */
+    public List<BufferedImage> getPages() {
+        return _pages;
+    }
+
+    /**
+     * Gets the region of the atlas holding the given canvas's bitmap.
+     *
+     * @param node The canvas node
+     * @return The region, or null if the canvas is not in this atlas.
+     */
+    public Region getRegion(NXCanvasNode node) {
+        return _regions.get(node);
+    }
+
+    /**
+     * Gets the regions of every canvas in this atlas.
+     *
+     * @return A map from canvas node to region.
+     */
+    public Map<NXCanvasNode, Region> getRegions() {
+        return _regions;
+    }
+
+    // bottom-left skyline packer for one page
+    private static class Skyline {
+        private final int _width;
+        private final int _height;
+        // {x, y, width} segments, left to right
+        private final List<int[]> _segments = new ArrayList<int[]>();
+        int _usedWidth = 0;
+        int _usedHeight = 0;
+
+        Skyline(int width, int height) {
+            _width = width;
+            _height = height;
+            _segments.add(new int[] {0, 0, width});
+        }
+
+        int[] place(int w, int h) {
+            int best = -1, bestX = 0, bestY = Integer.MAX_VALUE;
+            for (int i = 0; i < _segments.size(); ++i) {
+                int x = _segments.get(i)[0];
+                if (x + w > _width) break;
+                int y = 0;
+                for (int j = i, covered = 0; covered < w; covered += _segments.get(j++)[2])
+                    y = Math.max(y, _segments.get(j)[1]);
+                if (y + h <= _height && y < bestY) {
+                    best = i;
+                    bestX = x;
+                    bestY = y;
+                }
+            }
+            if (best < 0) return null;
+            _segments.add(best, new int[] {bestX, bestY + h, w});
+            // trim the segments now under the new one
+            for (int i = best + 1; i < _segments.size(); ) {
+                int[] s = _segments.get(i);
+                int shrink = bestX + w - s[0];
+                if (shrink <= 0) break;
+                if (shrink < s[2]) {
+                    s[0] += shrink;
+                    s[2] -= shrink;
+                    break;
+                }
+                _segments.remove(i);
+            }
+            for (int i = 0; i + 1 < _segments.size(); ) {
+                int[] a = _segments.get(i), b = _segments.get(i + 1);
+                if (a[1] == b[1]) {
+                    a[2] += b[2];
+                    _segments.remove(i + 1);
+                } else ++i;
+            }
+            _usedWidth = Math.max(_usedWidth, bestX + w);
+            _usedHeight = Math.max(_usedHeight, bestY + h);
+            return new int[] {bestX, bestY};
+        }
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2011-2012 angelsl.
+ *
+ * This file is part of libjinx.
+ *
+ * libjinx is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * libjinx is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with libjinx.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library. Thus, the terms and
+ * conditions of the GNU General Public License cover the whole combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent modules,
+ * and to copy and distribute the resulting executable under terms of your
+ * choice, provided that you also meet, for each linked independent module,
+ * the terms and conditions of the license of that module. An independent
+ * module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version
+ * of the library, but you are not obligated to do so. If you do not wish to
+ * do so, delete this exception statement from your version.
+ */
+
+
+package org.angelsl.ms.libjinx;
+
+import java.awt.image.BufferedImage;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decoded bitmaps of an NX file, keyed by bitmap ID and scale level. Every canvas node showing the same bitmap
+ * gets the same image, so a bitmap is decoded and stored once no matter how many nodes point at it.
+ * <p>
+ * Decoding is single-flight: while one thread decodes an image, other threads asking for it wait for that decode
+ * rather than starting their own. Once an image is cached, getting it takes no lock.
+ */
+public class NXBitmapCache {
+    // values are images, or the task decoding one while it is in flight
+    private final ConcurrentHashMap<Long, Object> _images = new ConcurrentHashMap<Long, Object>();
+    private final LongAdder _hits = new LongAdder();
+    private final LongAdder _misses = new LongAdder();
+    private final LongAdder _joins = new LongAdder();
+    private final LongAdder _bytes = new LongAdder();
+    private final LongAdder _savedBytes = new LongAdder();
+
+    NXBitmapCache() {
+    }
+
+    private static long key(int bitmapId, int level) {
+        return (long) bitmapId << 5 | level;
+    }
+
+    private static long sizeOf(BufferedImage bi) {
+        return 4L * bi.getWidth() * bi.getHeight();
+    }
+
+    BufferedImage get(final NXCanvasNode node, final int level) {
+        node._file.recordAccess(node, level);
+        Long key = key(node.getBitmapId(), level);
+        boolean firstRequest = node.markRequested(level);
+        Object cached = _images.get(key);
+        if (cached == null) {
+            Decoding task = new Decoding(new Callable<BufferedImage>() {
+                @Override
+                public BufferedImage call() {
+                    return node.decodeLevel(level);
+                }
+            });
+            cached = _images.putIfAbsent(key, task);
+            if (cached == null) {
+                _misses.increment();
+                task.run();
+                BufferedImage bi;
+                try {
+                    bi = await(task);
+                } catch (RuntimeException | Error e) {
+                    _images.remove(key, task);
+                    throw e;
+                }
+                // a clear while decoding has already dropped the task, and the image is not cached
+                if (bi == null) _images.remove(key, task);
+                else if (_images.replace(key, task, bi)) _bytes.add(sizeOf(bi));
+                return bi;
+            }
+        }
+        BufferedImage bi;
+        if (cached instanceof BufferedImage) {
+            _hits.increment();
+            bi = (BufferedImage) cached;
+        } else {
+            Decoding task = (Decoding) cached;
+            if (task._owner == Thread.currentThread()) {
+                // this thread is already decoding the image and ran this request while waiting on the fork-join
+                // pool; waiting for its own decode would never return
+                _misses.increment();
+                return node.decodeLevel(level);
+            }
+            _joins.increment();
+            bi = await(task);
+            if (bi == null) return null;
+        }
+        // without sharing, this node would have decoded its own copy
+        if (firstRequest) _savedBytes.add(sizeOf(bi));
+        return bi;
+    }
+
+    // a decode in flight, and the thread running it
+    private static final class Decoding extends FutureTask<BufferedImage> {
+        final Thread _owner = Thread.currentThread();
+
+        Decoding(Callable<BufferedImage> decode) {
+            super(decode);
+        }
+    }
+
+    // waits for a decode without giving up on interrupts, since the decoding thread never abandons it. The wait is
+    // managed, so a fork-join pool whose workers wait on each other's decodes adds workers instead of starving
+    private static BufferedImage await(final FutureTask<BufferedImage> task) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+                        @Override
+                        public boolean block() throws InterruptedException {
+                            try {
+                                task.get();
+                            } catch (ExecutionException e) {
+                                // reported once the wait is over
+                            }
+                            return true;
+                        }
+
+                        @Override
+                        public boolean isReleasable() {
+                            return task.isDone();
+                        }
+                    });
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            try {
+                return task.get();
+            } catch (InterruptedException e) {
+                // the task is done, so get() does not wait
+                throw new AssertionError(e);
+            } catch (ExecutionException e) {
+                // decoding throws no checked exceptions
+                Throwable cause = e.getCause();
+                if (cause instanceof Error) throw (Error) cause;
+                throw (RuntimeException) cause;
+            }
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    // bytes held for every cached level of a bitmap
+    long cachedBytes(int bitmapId) {
+        long total = 0;
+        for (int level = 0; level <= NXCanvasNode.MAX_LEVEL; ++level) {
+            Object cached = _images.get(key(bitmapId, level));
+            if (cached instanceof BufferedImage) total += sizeOf((BufferedImage) cached);
+        }
+        return total;
+    }
+
+    boolean contains(int bitmapId, int level) {
+        return _images.get(key(bitmapId, level)) instanceof BufferedImage;
+    }
+
+    // the cached image, without decoding or counting a request
+    BufferedImage peek(int bitmapId, int level) {
+        Object cached = _images.get(key(bitmapId, level));
+        return cached instanceof BufferedImage ? (BufferedImage) cached : null;
+    }
+
+    /**
+     * Drops every cached image. Decodes in flight finish for the threads waiting on them, but are not cached.
+     */
+    public void clear() {
+        for (Map.Entry<Long, Object> e : _images.entrySet()) {
+            Object cached = e.getValue();
+            if (_images.remove(e.getKey(), cached) && cached instanceof BufferedImage)
+                _bytes.add(-sizeOf((BufferedImage) cached));
+        }
+    }
+
+    /**
+     * Gets the number of images in the cache.
+     *
+     * @return The number of cached images.
+     */
+    public int getEntryCount() {
+        int count = 0;
+        for (Object cached : _images.values()) if (cached instanceof BufferedImage) ++count;
+        return count;
+    }
+
+    /**
+     * Gets the number of bytes of pixels held by the cache, at 4 bytes per pixel.
+     *
+     * @return The cached byte count.
+     */
+    public long getCachedBytes() {
+        return _bytes.sum();
+    }
+
+    /**
+     * Gets the number of requests served from the cache.
+     *
+     * @return The hit count.
+     */
+    public long getHitCount() {
+        return _hits.sum();
+    }
+
+    /**
+     * Gets the number of requests that had to decode a bitmap.
+     *
+     * @return The miss count.
+     */
+    public long getMissCount() {
+        return _misses.sum();
+    }
+
+    /**
+     * Gets the number of requests that found the image being decoded by another thread and waited for it.
+     *
+     * @return The join count.
+     */
+    public long getJoinCount() {
+        return _joins.sum();
+    }
+
+    /**
+     * Gets the number of bytes of pixels that nodes would have decoded and kept themselves, but received from
+     * another node's decode instead.
+     *
+     * @return The byte count saved by sharing.
+     */
+    public long getSavedBytes() {
+        return _savedBytes.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("NXBitmapCache:%d entries:%d bytes:%d hits:%d misses:%d joins:%d saved",
+                getEntryCount(), getCachedBytes(), getHitCount(), getMissCount(), getJoinCount(), getSavedBytes());
+    }
+}
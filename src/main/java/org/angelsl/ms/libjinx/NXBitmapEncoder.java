@@ -0,0 +1,115 @@
+/*
+ * Copyright 2011-2012 angelsl.
+ *
+ * This file is part of libjinx.
+ *
+ * libjinx is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * libjinx is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with libjinx.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library. Thus, the terms and
+ * conditions of the GNU General Public License cover the whole combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent modules,
+ * and to copy and distribute the resulting executable under terms of your
+ * choice, provided that you also meet, for each linked independent module,
+ * the terms and conditions of the license of that module. An independent
+ * module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version
+ * of the library, but you are not obligated to do so. If you do not wish to
+ * do so, delete this exception statement from your version.
+ */
+
+
+package org.angelsl.ms.libjinx;
+
+import com.github.decster.jnicompressions.ChunkedLz4;
+import com.github.decster.jnicompressions.Lz4Compression;
+
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * Encodes images as NX bitmap records, for tools that write NX files. A record is the bitmap's width and height,
+ * its compressed length, and its BGRA pixels compressed with LZ4.
+ * <p>
+ * Large images can be split into bands of rows that are compressed independently, which lets
+ * {@link NXCanvasNode} decode them in parallel. Chunked records set the high bit of the length field, so readers
+ * that predate the format reject them rather than misreading them.
+ */
+public final class NXBitmapEncoder {
+    /**
+     * The smallest image, in pixels, that {@link #encode(BufferedImage)} splits into bands.
+     */
+    public static final int CHUNK_THRESHOLD = 1 << 20;
+
+    private NXBitmapEncoder() {
+    }
+
+    /**
+     * Encodes an image, splitting it into bands of about 256 KiB of pixels if it has at least
+     * {@link #CHUNK_THRESHOLD} pixels, and as a single block otherwise.
+     *
+     * @param image The image to encode
+     * @return The bitmap record.
+     */
+    public static byte[] encode(BufferedImage image) {
+        int w = image.getWidth(), h = image.getHeight();
+        if ((long) w * h < CHUNK_THRESHOLD) return encode(image, 0);
+        return encode(image, Math.max(1, (64 << 10) / w));
+    }
+
+    /**
+     * Encodes an image.
+     *
+     * @param image    The image to encode
+     * @param bandRows The number of rows per independently compressed band, or 0 to compress the image as a
+     *                 single block
+     * @return The bitmap record.
+     */
+    public static byte[] encode(BufferedImage image, int bandRows) {
+        int w = image.getWidth(), h = image.getHeight();
+        if (w > 0xFFFF || h > 0xFFFF) throw new IllegalArgumentException("Image too large for an NX bitmap");
+        if (bandRows < 0) throw new IllegalArgumentException("bandRows must not be negative");
+        int size = w * h * 4;
+        ByteBuffer raw = ByteBuffer.allocateDirect(size).order(ByteOrder.LITTLE_ENDIAN);
+        IntBuffer pixels = raw.asIntBuffer();
+        int[] row = new int[w];
+        for (int y = 0; y < h; ++y) {
+            image.getRGB(0, y, w, 1, row, 0, w);
+            pixels.put(row);
+        }
+        Lz4Compression lz4 = new Lz4Compression();
+        ByteBuffer out;
+        long length;
+        if (bandRows == 0 || bandRows >= h) {
+            out = ByteBuffer.allocateDirect(4 + lz4.MaxCompressedSize(size)).order(ByteOrder.LITTLE_ENDIAN);
+            // the record's length field takes the place of CompressDirect's own length prefix
+            length = lz4.CompressDirect(raw, 0, size, out, 0) - 4;
+            out.position(4).limit(4 + (int) length);
+        } else {
+            int chunkSize = bandRows * w * 4;
+            out = ByteBuffer.allocateDirect(ChunkedLz4.maxCompressedSize(lz4, size, chunkSize));
+            length = ChunkedLz4.compress(lz4, raw, 0, size, chunkSize, out, 0);
+            out.position(0).limit((int) length);
+            length |= NXCanvasNode.CHUNKED;
+        }
+        ByteBuffer rec = ByteBuffer.allocate(8 + out.remaining()).order(ByteOrder.LITTLE_ENDIAN);
+        rec.putShort((short) w).putShort((short) h).putInt((int) length).put(out);
+        return rec.array();
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2011-2012 angelsl.
+ *
+ * This file is part of libjinx.
+ *
+ * libjinx is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * libjinx is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with libjinx.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library. Thus, the terms and
+ * conditions of the GNU General Public License cover the whole combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent modules,
+ * and to copy and distribute the resulting executable under terms of your
+ * choice, provided that you also meet, for each linked independent module,
+ * the terms and conditions of the license of that module. An independent
+ * module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version
+ * of the library, but you are not obligated to do so. If you do not wish to
+ * do so, delete this exception statement from your version.
+ */
+
+
+package org.angelsl.ms.libjinx;
+
+import java.util.ArrayDeque;
+import java.util.BitSet;
+
+/**
+ * The headers of every bitmap in an NX file, indexed by bitmap ID. Reading the table does not decode any bitmap.
+ */
+public class NXBitmapTable {
+    private final long[] _offsets;
+    // width << 16 | height
+    private final int[] _dims;
+    private final long[] _lengths;
+
+    NXBitmapTable(LittleEndianReader ler, long[] offsets) {
+        _offsets = offsets;
+        _dims = new int[offsets.length];
+        _lengths = new long[offsets.length];
+        for (int i = 0; i < offsets.length; ++i) {
+            _dims[i] = ler.getUShort(offsets[i]) << 16 | ler.getUShort(offsets[i] + 2);
+            _lengths[i] = ler.getUInt(offsets[i] + 4) & ~NXCanvasNode.CHUNKED;
+        }
+    }
+
+    /**
+     * Gets the number of bitmaps in the file.
+     *
+     * @return The number of bitmaps.
+     */
+    public int size() {
+        return _offsets.length;
+    }
+
+    /**
+     * Gets the offset of a bitmap's header in the file.
+     *
+     * @param id The bitmap ID
+     * @return The offset in bytes.
+     */
+    public long getOffset(int id) {
+        return _offsets[id];
+    }
+
+    /**
+     * Gets the width of a bitmap.
+     *
+     * @param id The bitmap ID
+     * @return The width in pixels.
+     */
+    public int getWidth(int id) {
+        return _dims[id] >>> 16;
+    }
+
+    /**
+     * Gets the height of a bitmap.
+     *
+     * @param id The bitmap ID
+     * @return The height in pixels.
+     */
+    public int getHeight(int id) {
+        return _dims[id] & 0xFFFF;
+    }
+
+    /**
+     * Gets the length of a bitmap's LZ4-compressed pixel data.
+     *
+     * @param id The bitmap ID
+     * @return The compressed length in bytes.
+     */
+    public long getCompressedLength(int id) {
+        return _lengths[id];
+    }
+
+    /**
+     * Gets the number of bytes a bitmap takes up once decoded, at 4 bytes per pixel.
+     *
+     * @param id The bitmap ID
+     * @return The decoded size in bytes.
+     */
+    public long getDecodedSize(int id) {
+        return 4L * getWidth(id) * getHeight(id);
+    }
+
+    /**
+     * Gets the total decoded size of the bitmaps shown by the canvases under the given node. A bitmap shown by
+     * several canvases is counted once.
+     *
+     * @param root The node whose descendant canvases to count
+     * @return The decoded size in bytes.
+     */
+    public long getDecodedSize(NXNode<?> root) {
+        BitSet seen = new BitSet(_offsets.length);
+        long total = 0;
+        ArrayDeque<NXNode<?>> pending = new ArrayDeque<NXNode<?>>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            NXNode<?> n = pending.pop();
+            if (n instanceof NXCanvasNode) {
+                int id = ((NXCanvasNode) n).getBitmapId();
+                if (id >= 0 && !seen.get(id)) {
+                    seen.set(id);
+                    total += getDecodedSize(id);
+                }
+            }
+            for (NXNode<?> c : n) pending.push(c);
+        }
+        return total;
+    }
+}
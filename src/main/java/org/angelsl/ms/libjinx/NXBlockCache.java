@@ -0,0 +1,185 @@
+/*
+ * Copyright 2011-2012 angelsl.
+ *
+ * This file is part of libjinx.
+ *
+ * libjinx is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * libjinx is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with libjinx.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library. Thus, the terms and
+ * conditions of the GNU General Public License cover the whole combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent modules,
+ * and to copy and distribute the resulting executable under terms of your
+ * choice, provided that you also meet, for each linked independent module,
+ * the terms and conditions of the license of that module. An independent
+ * module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version
+ * of the library, but you are not obligated to do so. If you do not wish to
+ * do so, delete this exception statement from your version.
+ */
+
+
+package org.angelsl.ms.libjinx;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A fixed number of file blocks, split into shards by block number. Cached block arrays are never written after
+ * they are added, so a caller may keep reading one after it has been dropped.
+ */
+final class NXBlockCache {
+    private final Shard[] _shards;
+    private final int _mask;
+    private final int _capacity;
+    final LongAdder _hits = new LongAdder();
+    final LongAdder _misses = new LongAdder();
+    final LongAdder _evictions = new LongAdder();
+
+    NXBlockCache(int blocks, int shards, NXStorageConfig.Eviction eviction) {
+        if (shards == 0)
+            shards = Integer.highestOneBit(Math.max(1, Math.min(64, 2 * Runtime.getRuntime().availableProcessors())));
+        while (shards > 1 && blocks / shards < 4) shards >>= 1;
+        _shards = new Shard[shards];
+        _mask = shards - 1;
+        int per = Math.max(1, blocks / shards);
+        _capacity = per * shards;
+        for (int i = 0; i < shards; ++i)
+            _shards[i] = eviction == NXStorageConfig.Eviction.LRU ? new LruShard(per) : new ClockShard(per);
+    }
+
+    private Shard shard(long block) {
+        return _shards[(int) (block ^ block >>> 17) & _mask];
+    }
+
+    // the cached block, or null
+    byte[] get(long block) {
+        byte[] b = shard(block).get(block);
+        if (b != null) _hits.increment();
+        else _misses.increment();
+        return b;
+    }
+
+    void put(long block, byte[] data) {
+        if (shard(block).put(block, data)) _evictions.increment();
+    }
+
+    int capacity() {
+        return _capacity;
+    }
+
+    int size() {
+        int n = 0;
+        for (Shard s : _shards) n += s.size();
+        return n;
+    }
+
+    private abstract static class Shard {
+        abstract byte[] get(long block);
+
+        // returns whether a block was dropped to make room
+        abstract boolean put(long block, byte[] data);
+
+        abstract int size();
+    }
+
+    private static final class LruShard extends Shard {
+        private final LinkedHashMap<Long, byte[]> _blocks = new LinkedHashMap<Long, byte[]>(16, 0.75f, true);
+        private final int _capacity;
+
+        LruShard(int capacity) {
+            _capacity = capacity;
+        }
+
+        @Override
+        synchronized byte[] get(long block) {
+            return _blocks.get(block);
+        }
+
+        @Override
+        synchronized boolean put(long block, byte[] data) {
+            if (_blocks.containsKey(block)) return false;
+            _blocks.put(block, data);
+            if (_blocks.size() <= _capacity) return false;
+            _blocks.remove(_blocks.keySet().iterator().next());
+            return true;
+        }
+
+        @Override
+        synchronized int size() {
+            return _blocks.size();
+        }
+    }
+
+    private static final class ClockShard extends Shard {
+        private static final class Entry {
+            final long _block;
+            final byte[] _data;
+            // set on every hit, cleared as the hand passes; a lost update only costs the block a second chance
+            boolean _used;
+
+            Entry(long block, byte[] data) {
+                _block = block;
+                _data = data;
+            }
+        }
+
+        private final ConcurrentHashMap<Long, Entry> _blocks = new ConcurrentHashMap<Long, Entry>();
+        private final Entry[] _ring;
+        private int _count = 0;
+        private int _hand = 0;
+
+        ClockShard(int capacity) {
+            _ring = new Entry[capacity];
+        }
+
+        @Override
+        byte[] get(long block) {
+            Entry e = _blocks.get(block);
+            if (e == null) return null;
+            if (!e._used) e._used = true;
+            return e._data;
+        }
+
+        @Override
+        synchronized boolean put(long block, byte[] data) {
+            if (_blocks.containsKey(block)) return false;
+            Entry e = new Entry(block, data);
+            if (_count < _ring.length) {
+                _ring[_count++] = e;
+                _blocks.put(block, e);
+                return false;
+            }
+            while (_ring[_hand]._used) {
+                _ring[_hand]._used = false;
+                _hand = (_hand + 1) % _ring.length;
+            }
+            _blocks.remove(_ring[_hand]._block);
+            _ring[_hand] = e;
+            _hand = (_hand + 1) % _ring.length;
+            _blocks.put(block, e);
+            return true;
+        }
+
+        @Override
+        int size() {
+            return _blocks.size();
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2011-2012 angelsl.
+ *
+ * This file is part of libjinx.
+ *
+ * libjinx is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * libjinx is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with libjinx.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library. Thus, the terms and
+ * conditions of the GNU General Public License cover the whole combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent modules,
+ * and to copy and distribute the resulting executable under terms of your
+ * choice, provided that you also meet, for each linked independent module,
+ * the terms and conditions of the license of that module. An independent
+ * module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version
+ * of the library, but you are not obligated to do so. If you do not wish to
+ * do so, delete this exception statement from your version.
+ */
+
+
+package org.angelsl.ms.libjinx;
+
+import com.github.decster.jnicompressions.Lz4Compression;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * An NX file in a {@link ByteBuffer}, usually a mapping of the whole file. Offsets are limited to 2 GiB, and LZ4
+ * blocks are decompressed through JNI.
+ */
+class NXBufferStorage extends NXStorage {
+    private final ByteBuffer _buf;
+    // the buffer as given, which is what has to be unmapped
+    private final ByteBuffer _mapping;
+    private final boolean _owned;
+
+    /**
+     * @param buf   The buffer holding the file
+     * @param owned Whether closing this storage unmaps the buffer
+     */
+    NXBufferStorage(ByteBuffer buf, boolean owned) {
+        _buf = buf.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        _mapping = buf;
+        _owned = owned;
+    }
+
+    static NXBufferStorage map(String path) throws IOException {
+        // the mapping stays valid after the file is closed
+        try (RandomAccessFile raf = new RandomAccessFile(path, "r")) {
+            FileChannel fc = raf.getChannel();
+            return new NXBufferStorage(fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size()), true);
+        }
+    }
+
+    private static int checkOffset(long offset) {
+        if (offset > Integer.MAX_VALUE) throw new IllegalArgumentException("Cannot read at position more than 2147483647; Java limitation.");
+        return (int) offset;
+    }
+
+    @Override
+    long size() {
+        return _buf.capacity();
+    }
+
+    @Override
+    byte getByte(long offset) {
+        return _buf.get(checkOffset(offset));
+    }
+
+    @Override
+    short getShort(long offset) {
+        return _buf.getShort(checkOffset(offset));
+    }
+
+    @Override
+    int getInt(long offset) {
+        return _buf.getInt(checkOffset(offset));
+    }
+
+    @Override
+    long getLong(long offset) {
+        return _buf.getLong(checkOffset(offset));
+    }
+
+    @Override
+    void get(long offset, byte[] dest, int destOffset, int length) {
+        ByteBuffer d = _buf.duplicate();
+        d.position(checkOffset(offset));
+        d.get(dest, destOffset, length);
+    }
+
+    // the native calls skip a 4-byte length prefix before the compressed data
+    @Override
+    int decompress(long offset, int length, ByteBuffer dest, int destOffset) {
+        return new Lz4Compression().DecompressDirect(_buf, checkOffset(offset - 4), length + 4, dest, destOffset);
+    }
+
+    @Override
+    int decompressToARGB(long offset, int length, int[] dest, int destOffset, int maxPixels, boolean premultiply) {
+        return new Lz4Compression().DecompressDirectToARGB(_buf, checkOffset(offset - 4), length + 4, dest, destOffset,
+                maxPixels, premultiply);
+    }
+
+    @Override
+    long crc32(long offset, long length) {
+        ByteBuffer d = _buf.duplicate();
+        d.limit(checkOffset(offset + length)).position(checkOffset(offset));
+        CRC32 crc = new CRC32();
+        crc.update(d);
+        return crc.getValue();
+    }
+
+    @Override
+    void load() {
+        if (_mapping instanceof MappedByteBuffer) {
+            ((MappedByteBuffer) _mapping).load();
+        } else {
+            for (int p = 0; p < _buf.capacity(); p += 4096) _buf.get(p);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (_owned) unmap(_mapping);
+    }
+
+    static void unmap(ByteBuffer buffer) {
+        try {
+            // Java 9 and later
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            return;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // fall through
+        }
+        try {
+            // Java 8
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) cleaner.getClass().getMethod("clean").invoke(cleaner);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // leave the mapping to the garbage collector
+        }
+    }
+}
@@ -40,51 +40,508 @@ import java.awt.image.*;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.function.IntPredicate;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
 
-import com.github.decster.jnicompressions.Lz4Compression;
 /**
  * A bitmap in an NX file.
  */
 public class NXCanvasNode extends NXNode<BufferedImage> {
+    private static volatile boolean _nativeARGB = true;
+
+    /**
+     * The smallest scale level; every level past this one is 1x1.
+     */
+    public static final int MAX_LEVEL = 16;
+
+    // set in a bitmap's length field when the pixels are a ChunkedLz4 block of row bands rather than one LZ4 block
+    static final long CHUNKED = 0x80000000L;
+
     private final LittleEndianReader _ler;
+    private final int _bmId;
     private final long _bmOffset;
+    private static final AtomicIntegerFieldUpdater<NXCanvasNode> REQUESTED_LEVELS =
+            AtomicIntegerFieldUpdater.newUpdater(NXCanvasNode.class, "_requestedLevels");
+    // bit n is set once this node has asked the file's cache for level n
+    private volatile int _requestedLevels = 0;
 
-    NXCanvasNode(final String name, final NXFile file, final NXNode<?> parent, final LittleEndianReader ler, final long bmOffset) {
+    NXCanvasNode(final int name, final NXFile file, final NXNode<?> parent, final LittleEndianReader ler, final int bmId, final long bmOffset) {
         super(name, null, file, parent);
         _ler = ler;
+        _bmId = bmId;
         _bmOffset = bmOffset;
     }
 
+    // marks level as requested by this node, returning whether it was not already
+    boolean markRequested(int level) {
+        int bit = 1 << level, l;
+        do {
+            l = _requestedLevels;
+            if ((l & bit) != 0) return false;
+        } while (!REQUESTED_LEVELS.compareAndSet(this, l, l | bit));
+        return true;
+    }
+
+    @Override
+    Object loadedValue() {
+        return _bmOffset == -1 ? null : _file.getBitmapCache().peek(_bmId, 0);
+    }
+
+    /**
+     * Gets the index of this node's bitmap in the file's bitmap table. Nodes showing the same bitmap share an ID.
+     *
+     * @return The bitmap ID, or -1 if this node has no bitmap.
+     */
+    public int getBitmapId() {
+        return _bmId;
+    }
+
+    /**
+     * Gets the width of this node's bitmap, read from its header without decoding it.
+     *
+     * @return The width in pixels, or 0 if this node has no bitmap.
+     */
+    public int getWidth() {
+        int[] dim = dimensions();
+        return dim == null ? 0 : dim[0];
+    }
+
+    /**
+     * Gets the height of this node's bitmap, read from its header without decoding it.
+     *
+     * @return The height in pixels, or 0 if this node has no bitmap.
+     */
+    public int getHeight() {
+        int[] dim = dimensions();
+        return dim == null ? 0 : dim[1];
+    }
+
+    /**
+     * Gets the length of this node's LZ4-compressed pixel data, read from its header.
+     *
+     * @return The compressed length in bytes, or 0 if this node has no bitmap.
+     */
+    public long getCompressedLength() {
+        if (_bmOffset == -1) return 0;
+        _file.beginRead();
+        try {
+            return _ler.getUInt(_bmOffset + 4) & ~CHUNKED;
+        } finally {
+            _file.endRead();
+        }
+    }
+
+    /**
+     * Checks whether this node's bitmap is stored as independently compressed row bands, which are decoded in
+     * parallel on the common fork-join pool. See {@link NXBitmapEncoder}.
+     *
+     * @return true if the bitmap is chunked; false if it is one LZ4 block or this node has no bitmap
+     */
+    public boolean isChunked() {
+        if (_bmOffset == -1) return false;
+        _file.beginRead();
+        try {
+            return (_ler.getUInt(_bmOffset + 4) & CHUNKED) != 0;
+        } finally {
+            _file.endRead();
+        }
+    }
+
     @Override
     public BufferedImage getValue() {
+        return getValue(0);
+    }
+
+    /**
+     * Gets this bitmap scaled down by a power of two. Level 0 is the full image returned by {@link #getValue()};
+     * each level after that halves the width and height, rounding up. Scaled levels are cached separately from
+     * the full image, and decoding one does not allocate a full-size image.
+     * <p>
+     * Decoded images are cached in the file's {@link NXFile#getBitmapCache() bitmap cache} and shared by every node
+     * showing the same bitmap.
+     *
+     * @param level The scale level, from 0 to {@link #MAX_LEVEL}
+     * @return The scaled image, or null if this node has no bitmap or it could not be decoded.
+     */
+    public BufferedImage getValue(int level) {
+        if (level < 0 || level > MAX_LEVEL) throw new IllegalArgumentException("Invalid scale level " + level);
+        if (_bmOffset == -1) return null;
+        return _file.getBitmapCache().get(this, level);
+    }
+
+    // decodes one scale level, bypassing the cache
+    BufferedImage decodeLevel(int level) {
+        return level == 0 ? decodeImage(false) : decodeScaled(level);
+    }
+
+    // decodes and box-filters into an image 1/2^level the size. Chunked bitmaps are decoded one band at a time and
+    // filtered as they go, so the full-size image is never held; a single LZ4 block can only be decoded whole, and
+    // the disk cache holds full-size pixels, so otherwise the full image is decoded first
+    private BufferedImage decodeScaled(int level) {
         if(_bmOffset == -1) return null;
+        _file.beginRead();
         try {
-            if (_value == null) {
-                _ler.seek(_bmOffset);
-                int w = _ler.readUShort();
-                int h = _ler.readUShort();
-                long len = _ler.readUInt();
-                Lz4Compression c = new Lz4Compression();
-                ByteBuffer out = ByteBuffer.allocateDirect(w*h*4);
-                c.DecompressDirect(_ler.getBuffer(), (int)_bmOffset+4, (int)len + 4, out, 0);
-                out.rewind();
-                out.order(ByteOrder.LITTLE_ENDIAN);
-                BufferedImage bi = new BufferedImage(w,h,BufferedImage.TYPE_INT_ARGB);
-                for(int H = 0; H < h; H++)
-                for(int W = 0; W < w; W++)
-                {
-                    int b = out.get() & 0xFF;
-                    int g = out.get() & 0xFF;
-                    int r = out.get() & 0xFF;
-                    int a = out.get() & 0xFF;
-                    bi.setRGB(W, H, (a << 24) | (r << 16) | (g << 8) | b);
+            int w = _ler.getUShort(_bmOffset);
+            int h = _ler.getUShort(_bmOffset + 2);
+            if ((_ler.getUInt(_bmOffset + 4) & CHUNKED) != 0 && _file.getDiskCache() == null)
+                return decodeScaledBands(w, h, level);
+            int[] full = new int[w * h];
+            return decode(full, 0, false) ? scale(full, w, h, level) : null;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException i) {
+        } finally {
+            _file.endRead();
+        }
+        return null;
+    }
+
+    private BufferedImage decodeScaledBands(int w, int h, int level) {
+        NXEvents.Decode event = NXEvents.decode();
+        int size = w * h;
+        Chunks chunks = chunks(size * 4L);
+        boolean ok = chunks != null;
+        Downscaler scaler = new Downscaler(w, h, level);
+        if (ok) {
+            int chunkPixels = chunks._chunkSize / 4;
+            int[] band = new int[Math.min(chunkPixels, size)];
+            for (int i = 0; ok && i < chunks._offsets.length; ++i) {
+                int pixels = Math.min(chunkPixels, size - i * chunkPixels);
+                ok = decodeBlock(chunks._offsets[i], chunks._lengths[i], band, 0, pixels, false);
+                if (ok) scaler.add(band, pixels);
+            }
+        }
+        if (event != null) event.finish(this, ok, false);
+        return ok ? scaler._image : null;
+    }
+
+    // box-filters full into an image 1/2^level the size
+    private static BufferedImage scale(int[] full, int w, int h, int level) {
+        Downscaler scaler = new Downscaler(w, h, level);
+        scaler.add(full, w * h);
+        return scaler._image;
+    }
+
+    // box-filters pixels, given in order, into an image 1/2^level the size, keeping sums for one output row
+    private static final class Downscaler {
+        private final int _w, _h, _level, _sw;
+        final BufferedImage _image;
+        private final int[] _out;
+        // colour sums are weighted by alpha so transparent pixels do not darken edges
+        private final long[] _a, _r, _g, _b;
+        private int _x, _y;
+
+        Downscaler(int w, int h, int level) {
+            int step = 1 << level;
+            _w = w;
+            _h = h;
+            _level = level;
+            _sw = (w + step - 1) >> level;
+            int sh = (h + step - 1) >> level;
+            _image = new BufferedImage(Math.max(_sw, 1), Math.max(sh, 1), BufferedImage.TYPE_INT_ARGB);
+            _out = ((DataBufferInt) _image.getRaster().getDataBuffer()).getData();
+            _a = new long[_sw];
+            _r = new long[_sw];
+            _g = new long[_sw];
+            _b = new long[_sw];
+        }
+
+        void add(int[] px, int count) {
+            for (int i = 0; i < count; ++i) {
+                int p = px[i], pa = p >>> 24, o = _x >> _level;
+                _a[o] += pa;
+                _r[o] += ((p >> 16) & 0xFF) * pa;
+                _g[o] += ((p >> 8) & 0xFF) * pa;
+                _b[o] += (p & 0xFF) * pa;
+                if (++_x == _w) {
+                    _x = 0;
+                    if ((++_y & ((1 << _level) - 1)) == 0 || _y == _h) flush((_y - 1) >> _level);
                 }
-                _value = bi;
-               return bi;
             }
-            return _value;
-        } catch (BufferUnderflowException i) {
+        }
+
+        private void flush(int y) {
+            int rows = Math.min(_h, (y + 1) << _level) - (y << _level);
+            for (int x = 0; x < _sw; ++x) {
+                int n = rows * (Math.min(_w, (x + 1) << _level) - (x << _level));
+                long a = _a[x], r = _r[x], g = _g[x], b = _b[x];
+                _out[y * _sw + x] = a == 0 ? 0 : (int) ((a + n / 2) / n) << 24
+                        | (int) ((r + a / 2) / a) << 16 | (int) ((g + a / 2) / a) << 8 | (int) ((b + a / 2) / a);
+                _a[x] = _r[x] = _g[x] = _b[x] = 0;
+            }
+        }
+    }
+
+    /**
+     * Decodes this bitmap into a new image, without caching it.
+     *
+     * @param premultiplied Whether to return a {@link BufferedImage#TYPE_INT_ARGB_PRE} image instead of a
+     *                      {@link BufferedImage#TYPE_INT_ARGB} one
+     * @return The decoded image, or null if this node has no bitmap or it could not be decoded.
+     */
+    public BufferedImage decodeImage(boolean premultiplied) {
+        if(_bmOffset == -1) return null;
+        _file.beginRead();
+        try {
+            int w = _ler.getUShort(_bmOffset);
+            int h = _ler.getUShort(_bmOffset + 2);
+            BufferedImage bi = new BufferedImage(w, h, premultiplied ? BufferedImage.TYPE_INT_ARGB_PRE : BufferedImage.TYPE_INT_ARGB);
+            int[] px = ((DataBufferInt) bi.getRaster().getDataBuffer()).getData();
+            return decode(px, 0, premultiplied) ? bi : null;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException i) {
+        } finally {
+            _file.endRead();
+        }
+        return null;
+    }
+
+    /**
+     * Decodes this bitmap into memory allocated from the given off-heap arena. The decoded pixels are not cached
+     * by this node; the caller owns the single reference to the returned handle and must release it.
+     *
+     * @param arena The arena to allocate the pixels from
+     * @return The decoded pixels, or null if this node has no bitmap or it could not be decoded.
+     * @throws IllegalArgumentException if the bitmap has more than 2 GiB of pixels
+     */
+    public NXPixels getPixels(NXPixelArena arena) {
+        if(_bmOffset == -1) return null;
+        _file.beginRead();
+        try {
+            NXPixels px = arena.allocate(_ler.getUShort(_bmOffset), _ler.getUShort(_bmOffset + 2));
+            if (decode(px.block())) return px;
+            px.release();
+        } catch (BufferUnderflowException | IndexOutOfBoundsException i) {
+        } finally {
+            _file.endRead();
         }
         return null;
     }
+
+    /**
+     * Gets this bitmap as a PNG file, scaled down like {@link #getValue(int)}. Files are cached in the file's
+     * {@link NXFile#getPngCache() PNG cache} and shared by every node showing the same bitmap, so a repeat request
+     * costs a lookup.
+     *
+     * @param level The scale level, from 0 to {@link #MAX_LEVEL}
+     * @return A read-only buffer holding the PNG file, or null if this node has no bitmap or it could not be decoded.
+     */
+    public ByteBuffer getPng(int level) {
+        if (level < 0 || level > MAX_LEVEL) throw new IllegalArgumentException("Invalid scale level " + level);
+        if (_bmOffset == -1) return null;
+        return _file.getPngCache().get(this, level);
+    }
+
+    // encodes one scale level, reusing a cached image if there is one
+    byte[] encodePng(int level) {
+        if (level > 0 || _file.getBitmapCache().contains(_bmId, 0)) {
+            BufferedImage bi = _file.getBitmapCache().contains(_bmId, level) ? getValue(level) : decodeLevel(level);
+            return bi == null ? null : NXPngEncoder.encode(bi);
+        }
+        _file.beginRead();
+        try {
+            int w = _ler.getUShort(_bmOffset);
+            int h = _ler.getUShort(_bmOffset + 2);
+            int[] full = new int[w * h];
+            if (!decode(full, 0, false)) return null;
+            return NXPngEncoder.encode(full, 0, w, h, NXPngEncoder.DEFAULT_LEVEL, true);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException i) {
+        } finally {
+            _file.endRead();
+        }
+        return null;
+    }
+
+    @Override
+    long[] dataRange() {
+        if (_bmOffset == -1) return null;
+        _file.beginRead();
+        try {
+            return new long[] {_bmOffset, 8 + (_ler.getUInt(_bmOffset + 4) & ~CHUNKED)};
+        } finally {
+            _file.endRead();
+        }
+    }
+
+    // {width, height} from the bitmap header, or null if this node has no bitmap
+    int[] dimensions() {
+        if (_bmOffset == -1) return null;
+        _file.beginRead();
+        try {
+            return new int[] {_ler.getUShort(_bmOffset), _ler.getUShort(_bmOffset + 2)};
+        } finally {
+            _file.endRead();
+        }
+    }
+
+    // the offset of the bitmap in the file, shared by every node showing the same bitmap
+    long bitmapOffset() {
+        return _bmOffset;
+    }
+
+    // decodes into dest as ARGB ints under a read registration
+    boolean decodeARGB(int[] dest, int offset) {
+        if (_bmOffset == -1) return false;
+        _file.beginRead();
+        try {
+            return decode(dest, offset, false);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException i) {
+            return false;
+        } finally {
+            _file.endRead();
+        }
+    }
+
+    // decodes the pixels into dest as ARGB ints, through the file's disk cache if it has one
+    private boolean decode(int[] dest, int offset, boolean premultiplied) {
+        NXEvents.Decode event = NXEvents.decode();
+        NXDiskCache disk = _file.getDiskCache();
+        boolean cached = false, ok;
+        if (disk == null) {
+            ok = decompress(dest, offset, premultiplied);
+        } else {
+            int size = _ler.getUShort(_bmOffset) * _ler.getUShort(_bmOffset + 2);
+            long tag = _file.diskCacheTag(_bmId, _bmOffset);
+            cached = disk.read(tag, dest, offset, size);
+            // the cache holds straight alpha
+            ok = cached || decompress(dest, offset, false);
+            if (ok && !cached) disk.write(tag, dest, offset, size);
+            if (ok && premultiplied) premultiply(dest, offset, offset + size);
+        }
+        if (event != null) event.finish(this, ok, cached);
+        return ok;
+    }
+
+    // decompresses the pixels into dest as ARGB ints
+    private boolean decompress(final int[] dest, final int offset, final boolean premultiplied) {
+        final int size = _ler.getUShort(_bmOffset) * _ler.getUShort(_bmOffset + 2);
+        long len = _ler.getUInt(_bmOffset + 4);
+        if ((len & CHUNKED) == 0)
+            return inStorage(len) && decodeBlock(_bmOffset + 8, (int) len, dest, offset, size, premultiplied);
+        final Chunks chunks = chunks(size * 4L);
+        if (chunks == null) return false;
+        final int chunkPixels = chunks._chunkSize / 4;
+        return IntStream.range(0, chunks._offsets.length).parallel().allMatch(new IntPredicate() {
+            @Override
+            public boolean test(int i) {
+                int pixels = Math.min(chunkPixels, size - i * chunkPixels);
+                return decodeBlock(chunks._offsets[i], chunks._lengths[i], dest, offset + i * chunkPixels, pixels, premultiplied);
+            }
+        });
+    }
+
+    // decompresses one LZ4 block of BGRA pixels into dest as ARGB ints, in one pass if the native library supports it
+    private boolean decodeBlock(long src, int len, int[] dest, int offset, int pixels, boolean premultiplied) {
+        NXStorage storage = _ler.getStorage();
+        if (_nativeARGB) {
+            try {
+                return storage.decompressToARGB(src, len, dest, offset, pixels, premultiplied) == pixels;
+            } catch (UnsatisfiedLinkError e) {
+                // native library predates the fused kernel
+                _nativeARGB = false;
+            }
+        }
+        ByteBuffer out = ByteBuffer.allocateDirect(pixels * 4);
+        if (storage.decompress(src, len, out, 0) != pixels * 4) return false;
+        out.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(dest, offset, pixels);
+        if (premultiplied) premultiply(dest, offset, offset + pixels);
+        return true;
+    }
+
+    // the index of a chunked bitmap: where each chunk's LZ4 data starts, past its length prefix, and how long it is
+    private static final class Chunks {
+        final int _chunkSize;
+        final long[] _offsets;
+        final int[] _lengths;
+
+        Chunks(int chunkSize, int count) {
+            _chunkSize = chunkSize;
+            _offsets = new long[count];
+            _lengths = new int[count];
+        }
+    }
+
+    // whether the pixel data, of the given length, lies inside the file; LZ4 does not check where its input ends
+    private boolean inStorage(long length) {
+        return _bmOffset + 8 + length <= _ler.getStorage().size();
+    }
+
+    // reads the chunk index, or returns null if it does not cover the given decoded size or its chunks run past the
+    // end of the record or the file
+    private Chunks chunks(long decodedSize) {
+        long base = _bmOffset + 8;
+        long length = _ler.getUInt(_bmOffset + 4) & ~CHUNKED;
+        if (!inStorage(length)) return null;
+        long chunkSize = _ler.getUInt(base), count = _ler.getUInt(base + 4);
+        if (chunkSize == 0 || chunkSize % 4 != 0 || chunkSize > Integer.MAX_VALUE || count == 0 || count > (1 << 20)
+                || chunkSize * count < decodedSize || chunkSize * (count - 1) >= decodedSize)
+            return null;
+        Chunks c = new Chunks((int) chunkSize, (int) count);
+        long data = base + 8 + 4 * count, start = 0;
+        for (int i = 0; i < count; ++i) {
+            long end = _ler.getUInt(base + 8 + 4 * i);
+            if (end < start + 4 || 8 + 4 * count + end > length) return null;
+            c._offsets[i] = data + start + 4;
+            c._lengths[i] = (int) (end - start - 4);
+            start = end;
+        }
+        return c;
+    }
+
+    // multiplies the colour channels of dest[from..to) by alpha, rounding to nearest
+    static void premultiply(int[] dest, int from, int to) {
+        for (int i = from; i < to; ++i) {
+            int p = dest[i], a = p >>> 24;
+            int r = ((p >> 16) & 0xFF) * a + 128, g = ((p >> 8) & 0xFF) * a + 128, b = (p & 0xFF) * a + 128;
+            dest[i] = (p & 0xFF000000) | (((r + (r >> 8)) >> 8) << 16) | (((g + (g >> 8)) >> 8) << 8) | ((b + (b >> 8)) >> 8);
+        }
+    }
+
+    // decodes the BGRA pixels into the start of dest, through the file's disk cache if it has one
+    private boolean decode(ByteBuffer dest) {
+        NXEvents.Decode event = NXEvents.decode();
+        NXDiskCache disk = _file.getDiskCache();
+        boolean cached = false, ok;
+        if (disk == null) {
+            ok = decompress(dest);
+        } else {
+            int size = _ler.getUShort(_bmOffset) * _ler.getUShort(_bmOffset + 2) * 4;
+            long tag = _file.diskCacheTag(_bmId, _bmOffset);
+            cached = disk.read(tag, dest, size);
+            ok = cached || decompress(dest);
+            if (ok && !cached) disk.write(tag, dest, size);
+        }
+        if (event != null) event.finish(this, ok, cached);
+        return ok;
+    }
+
+    // decompresses the BGRA pixels into the start of dest
+    private boolean decompress(final ByteBuffer dest) {
+        final int size = _ler.getUShort(_bmOffset) * _ler.getUShort(_bmOffset + 2) * 4;
+        long len = _ler.getUInt(_bmOffset + 4);
+        if ((len & CHUNKED) == 0) return inStorage(len) && _ler.getStorage().decompress(_bmOffset + 8, (int) len, dest, 0) >= size;
+        final Chunks chunks = chunks(size);
+        if (chunks == null) return false;
+        final int chunkSize = chunks._chunkSize;
+        return IntStream.range(0, chunks._offsets.length).parallel().allMatch(new IntPredicate() {
+            @Override
+            public boolean test(int i) {
+                int start = i * chunkSize, bytes = Math.min(chunkSize, size - start);
+                ByteBuffer band = dest.duplicate();
+                band.limit(start + bytes).position(start);
+                return _ler.getStorage().decompress(chunks._offsets[i], chunks._lengths[i], band.slice(), 0) >= bytes;
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<BufferedImage> getValueAsync() {
+        if (_bmOffset == -1 || _file.getBitmapCache().contains(_bmId, 0)) return CompletableFuture.completedFuture(getValue());
+        return CompletableFuture.supplyAsync(new Supplier<BufferedImage>() {
+            @Override
+            public BufferedImage get() {
+                return getValue();
+            }
+        }, _file.getExecutor());
+    }
 }
@@ -0,0 +1,267 @@
+/*
+ * Copyright 2011-2012 angelsl.
+ *
+ * This file is part of libjinx.
+ *
+ * libjinx is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * libjinx is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with libjinx.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library. Thus, the terms and
+ * conditions of the GNU General Public License cover the whole combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent modules,
+ * and to copy and distribute the resulting executable under terms of your
+ * choice, provided that you also meet, for each linked independent module,
+ * the terms and conditions of the license of that module. An independent
+ * module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version
+ * of the library, but you are not obligated to do so. If you do not wish to
+ * do so, delete this exception statement from your version.
+ */
+
+
+package org.angelsl.ms.libjinx;
+
+import com.github.decster.jnicompressions.Lz4Compression;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An NX file read with positional reads on a {@link FileChannel}, through an {@link NXBlockCache}. Nothing is
+ * mapped, so the memory used is bounded by the cache size. LZ4 blocks bypass the cache: their compressed bytes are
+ * read into a per-thread direct buffer and decompressed through JNI.
+ */
+class NXChannelStorage extends NXStorage {
+    // largest compressed-data buffer a thread keeps between decompressions
+    private static final int MAX_RETAINED_SCRATCH = 4 << 20;
+    private static final ThreadLocal<ByteBuffer> _scratch = new ThreadLocal<ByteBuffer>();
+
+    private final String _path;
+    private volatile FileChannel _channel;
+    private volatile boolean _closed = false;
+    private final long _size;
+    private final int _blockSize;
+    private final int _shift;
+    private final int _readahead;
+    private final NXBlockCache _cache;
+    // the last block read by a miss; a miss on the block after it reads ahead
+    private volatile long _lastMiss = -2;
+    final LongAdder _reads = new LongAdder();
+    private final LongAdder _bytesRead = new LongAdder();
+
+    private NXChannelStorage(String path, FileChannel channel, NXStorageConfig config) throws IOException {
+        _path = path;
+        _channel = channel;
+        _size = channel.size();
+        _blockSize = config._blockSize;
+        _shift = Integer.numberOfTrailingZeros(_blockSize);
+        _readahead = config._readahead;
+        _cache = new NXBlockCache((int) Math.max(1, Math.min(Integer.MAX_VALUE, config._cacheSize / _blockSize)),
+                config._shards, config._eviction);
+    }
+
+    static NXChannelStorage open(String path, NXStorageConfig config) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+        try {
+            return new NXChannelStorage(path, channel, config);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // fills dest from the file, starting at position
+    private void read(long position, ByteBuffer dest) {
+        boolean interrupted = false;
+        try {
+            while (dest.hasRemaining()) {
+                FileChannel channel = _channel;
+                try {
+                    int n = channel.read(dest, position);
+                    if (n < 0) throw new IndexOutOfBoundsException("Read past the end of the file at " + position);
+                    position += n;
+                    _bytesRead.add(n);
+                } catch (ClosedChannelException e) {
+                    // an interrupt during any thread's read closes the channel for every thread
+                    if (_closed) throw new IllegalStateException("NX file is closed");
+                    interrupted |= Thread.interrupted();
+                    reopen(channel);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            _reads.increment();
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    // holds the monitor that close() takes, so a channel opened here is either closed there or by us
+    private synchronized void reopen(FileChannel closed) {
+        if (_channel != closed || _closed) return;
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(Paths.get(_path), StandardOpenOption.READ);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (_closed) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // it was never used
+            }
+            return;
+        }
+        _channel = channel;
+    }
+
+    private byte[] block(long block) {
+        byte[] b = _cache.get(block);
+        return b != null ? b : load(block);
+    }
+
+    // reads a missed block, and the blocks after it if misses are running in file order
+    private byte[] load(long block) {
+        long start = block << _shift;
+        if (block < 0 || start >= _size) throw new IndexOutOfBoundsException("Offset " + start + " out of range");
+        int count = block == _lastMiss + 1 ? 1 + _readahead : 1;
+        long end = Math.min(_size, start + ((long) count << _shift));
+        count = (int) ((end - start + _blockSize - 1) >> _shift);
+        _lastMiss = block + count - 1;
+        byte[] buf = new byte[(int) (end - start)];
+        read(start, ByteBuffer.wrap(buf));
+        if (count == 1) {
+            _cache.put(block, buf);
+            return buf;
+        }
+        byte[] first = null;
+        for (int i = 0; i < count; ++i) {
+            byte[] b = Arrays.copyOfRange(buf, i << _shift, Math.min(buf.length, (i + 1) << _shift));
+            _cache.put(block + i, b);
+            if (i == 0) first = b;
+        }
+        return first;
+    }
+
+    @Override
+    long size() {
+        return _size;
+    }
+
+    @Override
+    byte getByte(long offset) {
+        return block(offset >>> _shift)[(int) offset & (_blockSize - 1)];
+    }
+
+    @Override
+    short getShort(long offset) {
+        byte[] b = block(offset >>> _shift);
+        int i = (int) offset & (_blockSize - 1);
+        if (i + 2 > b.length) return (short) (getByte(offset) & 0xFF | getByte(offset + 1) << 8);
+        return (short) (b[i] & 0xFF | b[i + 1] << 8);
+    }
+
+    @Override
+    int getInt(long offset) {
+        byte[] b = block(offset >>> _shift);
+        int i = (int) offset & (_blockSize - 1);
+        if (i + 4 > b.length) return getShort(offset) & 0xFFFF | getShort(offset + 2) << 16;
+        return b[i] & 0xFF | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16 | b[i + 3] << 24;
+    }
+
+    @Override
+    long getLong(long offset) {
+        return getInt(offset) & 0xFFFFFFFFL | (long) getInt(offset + 4) << 32;
+    }
+
+    @Override
+    void get(long offset, byte[] dest, int destOffset, int length) {
+        if (offset < 0 || offset + length > _size) throw new IndexOutOfBoundsException("Offset " + offset + " out of range");
+        if (length >= _blockSize) {
+            read(offset, ByteBuffer.wrap(dest, destOffset, length));
+            return;
+        }
+        while (length > 0) {
+            byte[] b = block(offset >>> _shift);
+            int i = (int) offset & (_blockSize - 1), n = Math.min(length, b.length - i);
+            System.arraycopy(b, i, dest, destOffset, n);
+            offset += n;
+            destOffset += n;
+            length -= n;
+        }
+    }
+
+    // reads the compressed data and its 4-byte length prefix, which the native calls skip
+    private ByteBuffer compressed(long offset, int length) {
+        ByteBuffer src = _scratch.get();
+        if (src == null || src.capacity() < length + 4) {
+            src = ByteBuffer.allocateDirect(length + 4);
+            if (src.capacity() <= MAX_RETAINED_SCRATCH) _scratch.set(src);
+        }
+        src.clear().limit(length + 4);
+        read(offset - 4, src);
+        return src;
+    }
+
+    @Override
+    int decompress(long offset, int length, ByteBuffer dest, int destOffset) {
+        return new Lz4Compression().DecompressDirect(compressed(offset, length), 0, length + 4, dest, destOffset);
+    }
+
+    @Override
+    int decompressToARGB(long offset, int length, int[] dest, int destOffset, int maxPixels, boolean premultiply) {
+        return new Lz4Compression().DecompressDirectToARGB(compressed(offset, length), 0, length + 4, dest, destOffset,
+                maxPixels, premultiply);
+    }
+
+    // every cached block is a byte array of at most one block
+    @Override
+    long retainedBytes() {
+        return _cache.size() * ((16L + _blockSize + 7) & ~7L);
+    }
+
+    // reads the file into the cache from the start until the cache is full
+    @Override
+    void load() {
+        long blocks = Math.min((_size + _blockSize - 1) >> _shift, _cache.capacity());
+        for (long b = 0; b < blocks; ++b) block(b);
+    }
+
+    @Override
+    public synchronized void close() {
+        _closed = true;
+        try {
+            _channel.close();
+        } catch (IOException e) {
+            // nothing more can be read either way
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("NXChannelStorage:%d blocks:%d hits:%d misses:%d evictions:%d reads:%d bytes", _cache.size(),
+                _cache._hits.sum(), _cache._misses.sum(), _cache._evictions.sum(), _reads.sum(), _bytesRead.sum());
+    }
+}
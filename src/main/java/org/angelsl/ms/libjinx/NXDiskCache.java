@@ -0,0 +1,487 @@
+/*
+ * Copyright 2011-2012 angelsl.
+ *
+ * This file is part of libjinx.
+ *
+ * libjinx is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * libjinx is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with libjinx.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library. Thus, the terms and
+ * conditions of the GNU General Public License cover the whole combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent modules,
+ * and to copy and distribute the resulting executable under terms of your
+ * choice, provided that you also meet, for each linked independent module,
+ * the terms and conditions of the license of that module. An independent
+ * module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version
+ * of the library, but you are not obligated to do so. If you do not wish to
+ * do so, delete this exception statement from your version.
+ */
+
+
+package org.angelsl.ms.libjinx;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A file of decoded bitmaps, as BGRA pixels, that processes map and share. Give one to
+ * {@link NXFile#setDiskCache(NXDiskCache)} and canvas nodes of that file look their pixels up in it before
+ * decompressing them, and add them after. Entries are keyed by the contents of the NX file, not its path, and
+ * by a checksum of each bitmap's compressed data, so any number of NX files can share one cache file.
+ * <p>
+ * Entries are appended without locks, by compare-and-swap on the mapped header, and are never removed; once the
+ * file is full, new bitmaps are simply not added. Delete the file to empty it. The file is at most 2 GiB. It is
+ * unmapped once this cache and every NX file using it have been closed.
+ */
+public class NXDiskCache implements Closeable {
+    private static final int MAGIC = 0x4350584E; // "NXPC"
+    private static final int VERSION = 1;
+    private static final int CAPACITY = 8;
+    private static final int SLOTS = 16;
+    private static final int TAIL = 24;
+    private static final int ENTRIES = 32;
+    private static final int INDEX = 64;
+    // tag, length and offset, as longs; an offset of 0 means the entry is still being written
+    private static final int SLOT_SIZE = 24;
+    private static final int MAX_PROBES = 64;
+    private static final int ALIGN = 64;
+
+    // sun.misc.Unsafe operations on raw addresses, bound to the instance; looked up by name so nothing refers to
+    // the internal class at compile time
+    private static final MethodHandle GET_LONG, GET_LONG_VOLATILE, PUT_LONG, PUT_LONG_VOLATILE, CAS_LONG, ADD_LONG,
+            BUFFER_ADDRESS;
+
+    static {
+        MethodHandle getLong = null, getLongVolatile = null, putLong = null, putLongVolatile = null, casLong = null,
+                addLong = null, bufferAddress = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            Object unsafe = theUnsafe.get(null);
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            getLong = lookup.findVirtual(unsafeClass, "getLong", MethodType.methodType(long.class, long.class))
+                    .bindTo(unsafe);
+            getLongVolatile = lookup.findVirtual(unsafeClass, "getLongVolatile",
+                    MethodType.methodType(long.class, Object.class, long.class)).bindTo(unsafe);
+            putLong = lookup.findVirtual(unsafeClass, "putLong",
+                    MethodType.methodType(void.class, long.class, long.class)).bindTo(unsafe);
+            putLongVolatile = lookup.findVirtual(unsafeClass, "putLongVolatile",
+                    MethodType.methodType(void.class, Object.class, long.class, long.class)).bindTo(unsafe);
+            casLong = lookup.findVirtual(unsafeClass, "compareAndSwapLong",
+                    MethodType.methodType(boolean.class, Object.class, long.class, long.class, long.class)).bindTo(unsafe);
+            addLong = lookup.findVirtual(unsafeClass, "getAndAddLong",
+                    MethodType.methodType(long.class, Object.class, long.class, long.class)).bindTo(unsafe);
+            long address = (long) lookup.findVirtual(unsafeClass, "objectFieldOffset",
+                    MethodType.methodType(long.class, Field.class)).invoke(unsafe, Buffer.class.getDeclaredField("address"));
+            bufferAddress = MethodHandles.insertArguments(lookup.findVirtual(unsafeClass, "getLong",
+                    MethodType.methodType(long.class, Object.class, long.class)).bindTo(unsafe), 1, address);
+        } catch (Throwable e) {
+            if (e instanceof VirtualMachineError) throw (VirtualMachineError) e;
+            getLong = null;
+        }
+        GET_LONG = getLong;
+        GET_LONG_VOLATILE = getLongVolatile;
+        PUT_LONG = putLong;
+        PUT_LONG_VOLATILE = putLongVolatile;
+        CAS_LONG = casLong;
+        ADD_LONG = addLong;
+        BUFFER_ADDRESS = bufferAddress;
+    }
+
+    private static long getLong(long address) {
+        try {
+            return (long) GET_LONG.invokeExact(address);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    private static long getLongVolatile(long address) {
+        try {
+            return (long) GET_LONG_VOLATILE.invokeExact((Object) null, address);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    private static void putLong(long address, long value) {
+        try {
+            PUT_LONG.invokeExact(address, value);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    private static void putLongVolatile(long address, long value) {
+        try {
+            PUT_LONG_VOLATILE.invokeExact((Object) null, address, value);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    private static boolean compareAndSwapLong(long address, long expected, long value) {
+        try {
+            return (boolean) CAS_LONG.invokeExact((Object) null, address, expected, value);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    private static long getAndAddLong(long address, long delta) {
+        try {
+            return (long) ADD_LONG.invokeExact((Object) null, address, delta);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    private static RuntimeException rethrow(Throwable e) {
+        if (e instanceof Error) throw (Error) e;
+        if (e instanceof RuntimeException) return (RuntimeException) e;
+        return new IllegalStateException(e);
+    }
+
+    private final String _path;
+    private final MappedByteBuffer _map;
+    private final long _base;
+    private final long _capacity;
+    private final int _slots;
+    private final LongAdder _hits = new LongAdder();
+    private final LongAdder _misses = new LongAdder();
+    private final LongAdder _rejected = new LongAdder();
+    // one reference for the opener, one for each NX file using the cache and one for each access in progress;
+    // the file is unmapped when the last is released
+    private final AtomicInteger _refs = new AtomicInteger(1);
+    private final AtomicBoolean _closed = new AtomicBoolean();
+
+    private NXDiskCache(String path, MappedByteBuffer map, long capacity, int slots) {
+        _path = path;
+        _map = map;
+        try {
+            _base = (long) BUFFER_ADDRESS.invokeExact((Object) map);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+        _capacity = capacity;
+        _slots = slots;
+    }
+
+    /**
+     * Opens a cache file, creating it if it does not exist. If it exists, its own capacity is kept.
+     *
+     * @param path     The path of the cache file
+     * @param capacity The size of a new cache file in bytes, at most 2 GiB
+     * @return The cache.
+     * @throws IOException if the file cannot be opened or mapped, is not a cache file, or the runtime does not
+     *                     support shared compare-and-swap on a mapping
+     */
+    public static NXDiskCache open(String path, long capacity) throws IOException {
+        if (GET_LONG == null) throw new IOException("Disk caches are not supported on this runtime");
+        if (capacity < 1 << 20 || capacity > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Invalid capacity " + capacity);
+        // the mapping stays valid after the file is closed
+        try (RandomAccessFile raf = new RandomAccessFile(path, "rw")) {
+            FileChannel fc = raf.getChannel();
+            long size;
+            int slots;
+            // creating the file is the only step that takes a lock
+            FileLock lock = fc.lock();
+            try {
+                size = fc.size();
+                if (size == 0) {
+                    size = capacity;
+                    slots = Integer.highestOneBit((int) Math.min(1 << 20, Math.max(1024, capacity >> 14)));
+                    ByteBuffer header = ByteBuffer.allocate(INDEX).order(ByteOrder.LITTLE_ENDIAN);
+                    header.putInt(4, VERSION).putLong(CAPACITY, size).putInt(SLOTS, slots)
+                            .putLong(TAIL, dataStart(slots));
+                    raf.setLength(size);
+                    fc.write(header, 0);
+                    fc.force(false);
+                    // the magic goes in last, so a half-created file is never taken for a cache
+                    fc.write((ByteBuffer) ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(MAGIC).flip(), 0);
+                }
+                ByteBuffer header = ByteBuffer.allocate(INDEX).order(ByteOrder.LITTLE_ENDIAN);
+                fc.read(header, 0);
+                slots = header.getInt(SLOTS);
+                if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION || header.getLong(CAPACITY) != size
+                        || size > Integer.MAX_VALUE || Integer.bitCount(slots) != 1 || dataStart(slots) > size)
+                    throw new IOException("Not a libjinx disk cache: " + path);
+            } finally {
+                lock.release();
+            }
+            MappedByteBuffer map = fc.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            map.order(ByteOrder.LITTLE_ENDIAN);
+            return new NXDiskCache(path, map, size, slots);
+        }
+    }
+
+    private static long dataStart(int slots) {
+        return (INDEX + (long) slots * SLOT_SIZE + 4095) & ~4095L;
+    }
+
+    // mixes the NX file identity with the bitmap's ID and the checksum of its record; never 0
+    static long tag(long identity, int bitmapId, long checksum) {
+        long h = identity ^ (bitmapId * 0x9E3779B97F4A7C15L) ^ (checksum * 0xC2B2AE3D27D4EB4FL);
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h == 0 ? 1 : h;
+    }
+
+    // the offset of the entry's pixels, or -1 if it is not in the cache with that many bytes
+    private long find(long tag, long bytes) {
+        int mask = _slots - 1;
+        for (int i = 0, s = (int) tag & mask; i < MAX_PROBES; ++i, s = (s + 1) & mask) {
+            long slot = _base + INDEX + (long) s * SLOT_SIZE;
+            long t = getLongVolatile(slot);
+            if (t == 0) break;
+            if (t != tag) continue;
+            long offset = getLongVolatile(slot + 16);
+            // any process can write the file, so an entry that points outside the data area is a miss
+            if (offset >= dataStart(_slots) && offset <= _capacity - bytes && getLong(slot + 8) == bytes) {
+                _hits.increment();
+                return offset;
+            }
+            break;
+        }
+        _misses.increment();
+        return -1;
+    }
+
+    // takes a reference; fails once the file has been unmapped
+    boolean retain() {
+        int r;
+        do {
+            r = _refs.get();
+            if (r == 0) return false;
+        } while (!_refs.compareAndSet(r, r + 1));
+        return true;
+    }
+
+    void release() {
+        if (_refs.decrementAndGet() == 0) NXBufferStorage.unmap(_map);
+    }
+
+    /**
+     * Closes this cache. The file is unmapped as soon as no NX file uses it; those that do keep using it until they
+     * are closed or given another cache.
+     */
+    @Override
+    public void close() {
+        if (_closed.compareAndSet(false, true)) release();
+    }
+
+    /**
+     * Returns true if this cache has been closed.
+     *
+     * @return true if {@link #close()} has been called; false otherwise
+     */
+    public boolean isClosed() {
+        return _closed.get();
+    }
+
+    boolean read(long tag, int[] dest, int destOffset, int pixels) {
+        if (!retain()) return false;
+        try {
+            long offset = find(tag, 4L * pixels);
+            if (offset < 0) return false;
+            ByteBuffer b = _map.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            b.position((int) offset);
+            b.asIntBuffer().get(dest, destOffset, pixels);
+            return true;
+        } finally {
+            release();
+        }
+    }
+
+    boolean read(long tag, ByteBuffer dest, int bytes) {
+        if (!retain()) return false;
+        try {
+            long offset = find(tag, bytes);
+            if (offset < 0) return false;
+            ByteBuffer b = _map.duplicate();
+            b.limit((int) offset + bytes).position((int) offset);
+            ByteBuffer d = dest.duplicate();
+            d.clear();
+            d.put(b);
+            return true;
+        } finally {
+            release();
+        }
+    }
+
+    // reserves space for an entry, or returns -1 if the file is full
+    private long reserve(long bytes) {
+        long size = (bytes + ALIGN - 1) & ~(long) (ALIGN - 1);
+        long tail;
+        do {
+            tail = getLongVolatile(_base + TAIL);
+            if (tail < dataStart(_slots) || tail > _capacity - size) {
+                _rejected.increment();
+                return -1;
+            }
+        } while (!compareAndSwapLong(_base + TAIL, tail, tail + size));
+        return tail;
+    }
+
+    // points a free slot at written pixels; if another process added the same bitmap first, its copy is kept
+    private void publish(long tag, long bytes, long offset) {
+        int mask = _slots - 1;
+        for (int i = 0, s = (int) tag & mask; i < MAX_PROBES; ++i, s = (s + 1) & mask) {
+            long slot = _base + INDEX + (long) s * SLOT_SIZE;
+            if (compareAndSwapLong(slot, 0, tag)) {
+                putLong(slot + 8, bytes);
+                putLongVolatile(slot + 16, offset);
+                getAndAddLong(_base + ENTRIES, 1);
+                return;
+            }
+            if (getLongVolatile(slot) == tag) return;
+        }
+        _rejected.increment();
+    }
+
+    void write(long tag, int[] src, int srcOffset, int pixels) {
+        if (!retain()) return;
+        try {
+            long bytes = 4L * pixels, offset = reserve(bytes);
+            if (offset < 0) return;
+            ByteBuffer b = _map.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            b.position((int) offset);
+            b.asIntBuffer().put(src, srcOffset, pixels);
+            publish(tag, bytes, offset);
+        } finally {
+            release();
+        }
+    }
+
+    void write(long tag, ByteBuffer src, int bytes) {
+        if (!retain()) return;
+        try {
+            long offset = reserve(bytes);
+            if (offset < 0) return;
+            ByteBuffer s = src.duplicate();
+            s.limit(bytes).position(0);
+            ByteBuffer b = _map.duplicate();
+            b.position((int) offset);
+            b.put(s);
+            publish(tag, bytes, offset);
+        } finally {
+            release();
+        }
+    }
+
+    // reads a header field; fails once the file has been unmapped
+    private long header(int field) {
+        if (!retain()) throw new IllegalStateException("Disk cache is closed");
+        try {
+            return getLongVolatile(_base + field);
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Gets the path of the cache file.
+     *
+     * @return The path.
+     */
+    public String getPath() {
+        return _path;
+    }
+
+    /**
+     * Gets the size of the cache file.
+     *
+     * @return The capacity in bytes.
+     */
+    public long getCapacity() {
+        return _capacity;
+    }
+
+    /**
+     * Gets the bytes of the cache file in use, by every process sharing it.
+     *
+     * @return The used byte count, including the header and index.
+     * @throws IllegalStateException if the cache file has been unmapped
+     */
+    public long getUsedBytes() {
+        return header(TAIL);
+    }
+
+    /**
+     * Gets the number of bitmaps in the cache file, added by every process sharing it.
+     *
+     * @return The entry count.
+     * @throws IllegalStateException if the cache file has been unmapped
+     */
+    public long getEntryCount() {
+        return header(ENTRIES);
+    }
+
+    /**
+     * Gets the number of lookups by this process that found their bitmap.
+     *
+     * @return The hit count.
+     */
+    public long getHitCount() {
+        return _hits.sum();
+    }
+
+    /**
+     * Gets the number of lookups by this process that did not find their bitmap.
+     *
+     * @return The miss count.
+     */
+    public long getMissCount() {
+        return _misses.sum();
+    }
+
+    /**
+     * Gets the number of bitmaps this process could not add because the file or its index was full.
+     *
+     * @return The rejected count.
+     */
+    public long getRejectedCount() {
+        return _rejected.sum();
+    }
+
+    @Override
+    public String toString() {
+        if (_refs.get() == 0) return "NXDiskCache:closed";
+        return String.format("NXDiskCache:%d entries:%d/%d bytes:%d hits:%d misses:%d rejected", getEntryCount(),
+                getUsedBytes(), getCapacity(), getHitCount(), getMissCount(), getRejectedCount());
+    }
+}
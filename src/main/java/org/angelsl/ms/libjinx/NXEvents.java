@@ -0,0 +1,227 @@
+/*
+ * Copyright 2011-2012 angelsl.
+ *
+ * This file is part of libjinx.
+ *
+ * libjinx is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * libjinx is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with libjinx.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library. Thus, the terms and
+ * conditions of the GNU General Public License cover the whole combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent modules,
+ * and to copy and distribute the resulting executable under terms of your
+ * choice, provided that you also meet, for each linked independent module,
+ * the terms and conditions of the license of that module. An independent
+ * module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version
+ * of the library, but you are not obligated to do so. If you do not wish to
+ * do so, delete this exception statement from your version.
+ */
+
+
+package org.angelsl.ms.libjinx;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Flight Recorder events. All of them are disabled by default; enable them by name in a recording's settings.
+ * Each factory returns a started event, or null if the runtime has no Flight Recorder, so that the event classes
+ * are never loaded there. While an event is disabled, starting and ending it costs next to nothing, and its fields
+ * are only filled in once it is known to be recorded.
+ */
+final class NXEvents {
+    static final boolean AVAILABLE = available();
+
+    private NXEvents() {
+    }
+
+    private static boolean available() {
+        try {
+            Class.forName("jdk.jfr.Event", false, NXEvents.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    static Open open() {
+        if (!AVAILABLE) return null;
+        Open e = new Open();
+        e.begin();
+        return e;
+    }
+
+    static Parse parse() {
+        if (!AVAILABLE) return null;
+        Parse e = new Parse();
+        e.begin();
+        return e;
+    }
+
+    static Lookup lookup() {
+        if (!AVAILABLE) return null;
+        Lookup e = new Lookup();
+        e.begin();
+        return e;
+    }
+
+    static Decode decode() {
+        if (!AVAILABLE) return null;
+        Decode e = new Decode();
+        e.begin();
+        return e;
+    }
+
+    @Name("libjinx.Open")
+    @Label("NX File Open")
+    @Description("Opening and parsing an NX file")
+    @Category("libjinx")
+    @Enabled(false)
+    @StackTrace(false)
+    static final class Open extends Event {
+        @Label("File")
+        String file;
+        @Label("Size")
+        @DataAmount
+        long size;
+        @Label("Nodes")
+        long nodes;
+        @Label("Strings")
+        long strings;
+        @Label("Bitmaps")
+        long bitmaps;
+        @Label("MP3s")
+        long mp3s;
+
+        void finish(String file, long size, long nodes, long strings, long bitmaps, long mp3s) {
+            end();
+            if (!shouldCommit()) return;
+            this.file = file;
+            this.size = size;
+            this.nodes = nodes;
+            this.strings = strings;
+            this.bitmaps = bitmaps;
+            this.mp3s = mp3s;
+            commit();
+        }
+    }
+
+    @Name("libjinx.Parse")
+    @Label("NX File Parse Phase")
+    @Description("One phase of parsing an NX file: a table or the node block")
+    @Category("libjinx")
+    @Enabled(false)
+    @StackTrace(false)
+    static final class Parse extends Event {
+        @Label("File")
+        String file;
+        @Label("Phase")
+        String phase;
+        @Label("Entries")
+        long entries;
+
+        void finish(String file, String phase, long entries) {
+            end();
+            if (!shouldCommit()) return;
+            this.file = file;
+            this.phase = phase;
+            this.entries = entries;
+            commit();
+        }
+    }
+
+    @Name("libjinx.Lookup")
+    @Label("Slow NX Path Lookup")
+    @Description("A resolvePath call that took longer than the threshold")
+    @Category("libjinx")
+    @Enabled(false)
+    @Threshold("1 ms")
+    static final class Lookup extends Event {
+        @Label("Path")
+        String path;
+        @Label("Found")
+        boolean found;
+
+        void finish(String path, boolean found) {
+            end();
+            if (!shouldCommit()) return;
+            this.path = path;
+            this.found = found;
+            commit();
+        }
+    }
+
+    @Name("libjinx.Decode")
+    @Label("NX Decode")
+    @Description("Decoding a canvas or loading an MP3")
+    @Category("libjinx")
+    @Enabled(false)
+    @StackTrace(false)
+    static final class Decode extends Event {
+        @Label("Node")
+        String node;
+        @Label("Kind")
+        String kind;
+        @Label("Width")
+        int width;
+        @Label("Height")
+        int height;
+        @Label("Stored Size")
+        @DataAmount
+        long storedBytes;
+        @Label("Decoded Size")
+        @DataAmount
+        long decodedBytes;
+        @Label("Chunked")
+        boolean chunked;
+        @Label("From Disk Cache")
+        boolean diskCached;
+
+        void finish(NXCanvasNode node, boolean decoded, boolean diskCached) {
+            end();
+            if (!shouldCommit()) return;
+            int[] dim = node.dimensions();
+            this.node = node.getPath();
+            this.kind = "canvas";
+            this.width = dim[0];
+            this.height = dim[1];
+            this.storedBytes = node.getCompressedLength();
+            this.decodedBytes = decoded ? 4L * dim[0] * dim[1] : 0;
+            this.chunked = node.isChunked();
+            this.diskCached = diskCached;
+            commit();
+        }
+
+        void finish(NXMP3Node node, long bytes) {
+            end();
+            if (!shouldCommit()) return;
+            this.node = node.getPath();
+            this.kind = "MP3";
+            this.storedBytes = bytes;
+            this.decodedBytes = bytes;
+            commit();
+        }
+    }
+}
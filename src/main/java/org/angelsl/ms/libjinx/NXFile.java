@@ -41,29 +41,68 @@ import javax.imageio.stream.FileImageOutputStream;
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.*;
+import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 
 /**
  * An NX file.
+ * <p>
+ * Bitmaps and MP3s are read from the file lazily. Lazy reads started after the file is closed throw an
+ * {@link IllegalStateException}, unless a {@link NXReloadableFile.Lease lease} on the file is still open. The file
+ * is unmapped once no read or lease is left.
  */
-public class NXFile {
+public class NXFile implements Closeable {
+    /**
+     * Optional passes run while the file is loaded.
+     */
+    public enum Option {
+        /**
+         * Resolve every link node to its final non-link target, making {@link NXLinkNode#fullyResolve()} O(1)
+         * and reporting cyclic and dangling links through {@link NXFile#getLinkReport()}.
+         */
+        RESOLVE_LINKS
+    }
+
     private NXNode<?> _baseNode = null;
-    private final ByteBuffer _file;
+    private final String _path;
+    private final NXStorage _storage;
     private final LittleEndianReader _ler;
-    private String[] _strTbl = null;
-    private long[] _bmpOffTbl = null;
+    private NXStringTable _strTbl = null;
+    long[] _bmpOffTbl = null;
+    private NXBitmapTable _bmpTbl = null;
+    private final NXBitmapCache _bmpCache = new NXBitmapCache();
+    private final NXPngCache _pngCache = new NXPngCache();
     private long[] _mp3OffTbl = null;
     NXNode<?>[] _nodeTbl = null;
+    private NXLinkReport _linkReport = null;
+    private volatile Executor _executor = null;
+    private volatile NXDiskCache _diskCache = null;
+    private long _identity = 0;
+    private volatile NXAccessProfile _profile = null;
+    // set on threads running a replay, whose accesses are not the application's
+    private static final ThreadLocal<Boolean> _replaying = new ThreadLocal<Boolean>();
+    private volatile int _warmSink;
+    // (number of leases << 32) | (number of reads in progress << 1) | closed
+    private final AtomicLong _readers = new AtomicLong();
+    private static final long READ = 2, LEASE = 1L << 32;
 
-    private int _nodeId = 0;
+    private static final int PAGE_SIZE = 4096;
 
-    private static ByteBuffer getByteBuffer(String path) throws IOException
-    {
-        FileChannel fc = new RandomAccessFile(path, "r").getChannel();
-        return fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
-    }
+    private int _nodeId = 0;
 
     /**
      * Constructs an NX file from the given path and parses the file immediately.
@@ -72,18 +111,79 @@ public class NXFile {
      * @throws FileNotFoundException
      */
     public NXFile(String path) throws IOException, NXException {
-        this(getByteBuffer(path));
+        this(path, NXBufferStorage.map(path));
+    }
+
+    /**
+     * Constructs an NX file from the given path and parses the file immediately, running the given optional passes.
+     *
+     * @param path    The path the NX file is located at
+     * @param options The optional passes to run
+     * @throws FileNotFoundException
+     */
+    public NXFile(String path, Option... options) throws IOException, NXException {
+        this(path, NXBufferStorage.map(path), options);
+    }
+
+    /**
+     * Constructs an NX file from the given path and parses the file immediately, reading it as the given
+     * configuration says and running the given optional passes.
+     *
+     * @param path    The path the NX file is located at
+     * @param storage How to read the file
+     * @param options The optional passes to run
+     * @throws FileNotFoundException
+     */
+    public NXFile(String path, NXStorageConfig storage, Option... options) throws IOException, NXException {
+        this(path, storage.open(path), options);
     }
 
     /**
-     * Constructs an NX file from a RandomAccessFile and parses the file immediately.
+     * Constructs an NX file from a ByteBuffer and parses the file immediately. The buffer is not unmapped when
+     * the file is closed.
      *
-     * @param file The RandomAccessFile representing the NX file
+     * @param file The ByteBuffer containing the NX file
      */
     public NXFile(ByteBuffer file) throws IOException, NXException {
-        _file = file;
-        _ler = new LittleEndianReader(_file);
-        Parse();
+        this(null, new NXBufferStorage(file, false));
+    }
+
+    /**
+     * Constructs an NX file from a ByteBuffer and parses the file immediately, running the given optional passes.
+     * The buffer is not unmapped when the file is closed.
+     *
+     * @param file    The ByteBuffer containing the NX file
+     * @param options The optional passes to run
+     */
+    public NXFile(ByteBuffer file, Option... options) throws IOException, NXException {
+        this(null, new NXBufferStorage(file, false), options);
+    }
+
+    private NXFile(String path, NXStorage storage, Option... options) throws IOException, NXException {
+        NXEvents.Open event = NXEvents.open();
+        _path = path;
+        _storage = storage;
+        _ler = new LittleEndianReader(_storage);
+        try {
+            Parse();
+        } catch (IOException | NXException | RuntimeException e) {
+            storage.close();
+            throw e;
+        }
+        for (Option o : options) {
+            switch (o) {
+                case RESOLVE_LINKS:
+                    if (_linkReport == null) {
+                        NXEvents.Parse phase = NXEvents.parse();
+                        _linkReport = ResolveLinks();
+                        if (phase != null) phase.finish(_path, "links", _linkReport.getLinkCount());
+                    }
+                    break;
+            }
+        }
+        if (event != null)
+            event.finish(_path, _storage.size(), _nodeTbl.length, _strTbl.size(), _bmpOffTbl.length,
+                    _storage.getInt(40) & 0xFFFFFFFFL);
     }
 
     /**
@@ -95,6 +195,363 @@ public class NXFile {
         return _baseNode;
     }
 
+    /**
+     * Gets the executor that asynchronous value loads run on.
+     *
+     * @return The executor set by {@link #setExecutor(Executor)}, or the shared default executor.
+     */
+    public Executor getExecutor() {
+        Executor e = _executor;
+        return e == null ? DefaultExecutor.INSTANCE : e;
+    }
+
+    /**
+     * Sets the executor that asynchronous value loads run on. The default runs each load on a virtual thread
+     * where the runtime supports them, and on a small shared daemon thread pool otherwise.
+     *
+     * @param executor The executor to use, or null to use the default
+     */
+    public void setExecutor(Executor executor) {
+        _executor = executor;
+    }
+
+    /**
+     * Starts recording which bitmaps and MP3s are loaded from this file, replacing any recording in progress.
+     *
+     * @return The profile being recorded into.
+     */
+    public NXAccessProfile startRecording() {
+        NXAccessProfile p = new NXAccessProfile();
+        _profile = p;
+        return p;
+    }
+
+    /**
+     * Stops recording accesses.
+     *
+     * @return The profile that was being recorded into, or null if no recording was in progress.
+     */
+    public NXAccessProfile stopRecording() {
+        NXAccessProfile p = _profile;
+        _profile = null;
+        return p;
+    }
+
+    void recordAccess(NXNode<?> node, int level) {
+        NXAccessProfile p = _profile;
+        if (p != null && _replaying.get() == null) p.record(node, level);
+    }
+
+    /**
+     * Decodes the hottest entries of a profile on the executor, so that the first requests for them hit the
+     * bitmap cache or find the MP3 already loaded. Entries are decoded in file order, split into one contiguous
+     * run per processor. Entries whose paths no longer resolve are skipped, and the decodes are not recorded into
+     * a profile being recorded.
+     *
+     * @param profile The profile to replay
+     * @param limit   The number of entries to decode, hottest first
+     * @return A future that completes when every entry has been decoded.
+     * @throws IllegalArgumentException if limit is negative
+     */
+    public CompletableFuture<Void> replay(NXAccessProfile profile, int limit) {
+        if (limit < 0) throw new IllegalArgumentException("Invalid limit " + limit);
+        List<NXAccessProfile.Item> items = profile.getItems();
+        if (items.size() > limit) items = items.subList(0, limit);
+        List<Replay> work = new ArrayList<Replay>(items.size());
+        for (NXAccessProfile.Item item : items) {
+            NXNode<?> n = resolvePath(item.getPath());
+            if (!(n instanceof NXCanvasNode || n instanceof NXMP3Node)) continue;
+            long[] range = n.dataRange();
+            if (range != null) work.add(new Replay(range[0], n, item.getLevels()));
+        }
+        Collections.sort(work, new Comparator<Replay>() {
+            @Override
+            public int compare(Replay a, Replay b) {
+                return Long.compare(a._offset, b._offset);
+            }
+        });
+        int runs = Math.max(1, Math.min(work.size(), Runtime.getRuntime().availableProcessors()));
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[runs];
+        for (int r = 0; r < runs; ++r) {
+            final List<Replay> run = work.subList(r * work.size() / runs, (r + 1) * work.size() / runs);
+            futures[r] = CompletableFuture.runAsync(new Runnable() {
+                @Override
+                public void run() {
+                    _replaying.set(Boolean.TRUE);
+                    try {
+                        for (Replay w : run) w.decode();
+                    } finally {
+                        _replaying.remove();
+                    }
+                }
+            }, getExecutor());
+        }
+        return CompletableFuture.allOf(futures);
+    }
+
+    private static final class Replay {
+        final long _offset;
+        final NXNode<?> _node;
+        final int _levels;
+
+        Replay(long offset, NXNode<?> node, int levels) {
+            _offset = offset;
+            _node = node;
+            _levels = levels;
+        }
+
+        void decode() {
+            if (_node instanceof NXMP3Node) {
+                _node.getValue();
+                return;
+            }
+            NXCanvasNode c = (NXCanvasNode) _node;
+            for (int level = 0; level <= NXCanvasNode.MAX_LEVEL; ++level)
+                if ((_levels & (1 << level)) != 0) c.getValue(level);
+        }
+    }
+
+    /**
+     * Touches every page in the given byte range of the file, so that later reads from it do not fault.
+     *
+     * @param offset The offset of the first byte to page in
+     * @param length The number of bytes to page in
+     */
+    public void warm(long offset, long length) {
+        beginRead();
+        try {
+            long end = Math.min(offset + length, _storage.size());
+            int sink = 0;
+            for (long p = Math.max(offset, 0); p < end; p = (p / PAGE_SIZE + 1) * PAGE_SIZE)
+                sink += _storage.getByte(p);
+            _warmSink = sink;
+        } finally {
+            endRead();
+        }
+    }
+
+    /**
+     * Pages in the whole file front to back. For a mapped file, this asks the operating system to read ahead.
+     */
+    public void warmAll() {
+        beginRead();
+        try {
+            _storage.load();
+        } finally {
+            endRead();
+        }
+    }
+
+    /**
+     * Closes this file. The mapping is released as soon as no lazy read or {@link NXReloadableFile.Lease lease} is
+     * in progress. Nodes keep the values they have already loaded.
+     */
+    @Override
+    public void close() {
+        long s;
+        do {
+            s = _readers.get();
+            if ((s & 1) != 0) return;
+        } while (!_readers.compareAndSet(s, s | 1));
+        if (s == 0) release();
+    }
+
+    /**
+     * Returns true if this file has been closed.
+     *
+     * @return true if {@link #close()} has been called; false otherwise
+     */
+    public boolean isClosed() {
+        return (_readers.get() & 1) != 0;
+    }
+
+    // registers a lease; fails once the file is closed
+    boolean tryRetain() {
+        long s;
+        do {
+            s = _readers.get();
+            if ((s & 1) != 0) return false;
+        } while (!_readers.compareAndSet(s, s + LEASE));
+        return true;
+    }
+
+    void endLease() {
+        if (_readers.addAndGet(-LEASE) == 1) release();
+    }
+
+    // registers a read; fails once the file is closed, unless a lease is open
+    void beginRead() {
+        long s;
+        do {
+            s = _readers.get();
+            if ((s & 1) != 0 && s < LEASE) throw new IllegalStateException("NX file is closed");
+        } while (!_readers.compareAndSet(s, s + READ));
+    }
+
+    void endRead() {
+        if (_readers.addAndGet(-READ) == 1) release();
+    }
+
+    private void release() {
+        _storage.close();
+        NXDiskCache disk;
+        synchronized (this) {
+            disk = _diskCache;
+            _diskCache = null;
+        }
+        if (disk != null) disk.release();
+    }
+
+    // pages in {offset, length} ranges in file order, merging overlapping and adjacent ranges
+    void warm(List<long[]> ranges) {
+        Collections.sort(ranges, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                return Long.compare(a[0], b[0]);
+            }
+        });
+        long start = -1, end = -1;
+        for (long[] r : ranges) {
+            if (r[0] > end) {
+                if (start >= 0) warm(start, end - start);
+                start = r[0];
+            }
+            end = Math.max(end, r[0] + r[1]);
+        }
+        if (start >= 0) warm(start, end - start);
+    }
+
+    /**
+     * Gets the headers of every bitmap in the file, reading them on first use.
+     *
+     * @return The bitmap table.
+     */
+    public synchronized NXBitmapTable getBitmapTable() {
+        if (_bmpTbl == null) {
+            beginRead();
+            try {
+                _bmpTbl = new NXBitmapTable(_ler, _bmpOffTbl);
+            } finally {
+                endRead();
+            }
+        }
+        return _bmpTbl;
+    }
+
+    /**
+     * Gets the cache of decoded bitmaps shared by the canvas nodes of this file.
+     *
+     * @return The bitmap cache.
+     */
+    public NXBitmapCache getBitmapCache() {
+        return _bmpCache;
+    }
+
+    /**
+     * Gets the cache of PNG files encoded from the bitmaps of this file.
+     *
+     * @return The PNG cache.
+     */
+    public NXPngCache getPngCache() {
+        return _pngCache;
+    }
+
+    /**
+     * Sets the disk cache that canvas nodes of this file look decoded pixels up in before decompressing them, and
+     * add them to after. This file keeps the cache mapped until it is closed or given another cache.
+     *
+     * @param cache The cache to use, or null to use none
+     * @throws IllegalStateException if this file or the cache has been closed
+     */
+    public void setDiskCache(NXDiskCache cache) {
+        NXDiskCache old;
+        synchronized (this) {
+            if (cache != null) {
+                if (_identity == 0) _identity = identity();
+                if (cache.isClosed() || !cache.retain()) throw new IllegalStateException("Disk cache is closed");
+            }
+            if (isClosed()) {
+                if (cache != null) cache.release();
+                throw new IllegalStateException("NX file is closed");
+            }
+            old = _diskCache;
+            _diskCache = cache;
+        }
+        if (old != null) old.release();
+    }
+
+    /**
+     * Gets the disk cache set by {@link #setDiskCache(NXDiskCache)}.
+     *
+     * @return The disk cache, or null if there is none.
+     */
+    public NXDiskCache getDiskCache() {
+        return _diskCache;
+    }
+
+    // the disk cache tag of a bitmap, from the file identity, the bitmap's ID and a checksum of its header and
+    // compressed data, so a patch that keeps the bitmap's length still misses
+    long diskCacheTag(int bitmapId, long bmOffset) {
+        long length = 8 + (_storage.getInt(bmOffset + 4) & ~NXCanvasNode.CHUNKED & 0xFFFFFFFFL);
+        return NXDiskCache.tag(_identity, bitmapId,
+                _storage.crc32(bmOffset, Math.min(length, _storage.size() - bmOffset)));
+    }
+
+    // a hash of the header, size and bitmap table, which change whenever the file's contents are moved
+    private long identity() {
+        long h = 0xCBF29CE484222325L;
+        beginRead();
+        try {
+            h = (h ^ _storage.size()) * 0x100000001B3L;
+            for (int i = 0; i < 52; i += 4) h = (h ^ _storage.getInt(i)) * 0x100000001B3L;
+        } finally {
+            endRead();
+        }
+        for (long o : _bmpOffTbl) h = (h ^ o) * 0x100000001B3L;
+        return h == 0 ? 1 : h;
+    }
+
+    /**
+     * Estimates the heap memory retained by this file: its node tree, strings, cached bitmaps, PNG files and MP3s,
+     * the tables it keeps, and the blocks its storage caches.
+     *
+     * @return The memory report.
+     */
+    public NXMemoryReport getMemoryReport() {
+        long tables = 16 + 4L * _nodeTbl.length + 16 + 8L * _bmpOffTbl.length + _strTbl.retainedBytes();
+        NXBitmapTable bt;
+        synchronized (this) {
+            bt = _bmpTbl;
+        }
+        if (bt != null) tables += 2 * 16 + 12L * bt.size();
+        return NXMemoryReport.measure(_baseNode, tables, _storage.retainedBytes());
+    }
+
+    /**
+     * Returns the result of the link resolution pass.
+     *
+     * @return The link report, or null if the file was not loaded with {@link Option#RESOLVE_LINKS}.
+     */
+    public NXLinkReport getLinkReport() {
+        return _linkReport;
+    }
+
+    String getString(int id) {
+        return _strTbl.get(id);
+    }
+
+    NXStringTable getStringTable() {
+        return _strTbl;
+    }
+
+    String peekString(int id) {
+        return _strTbl.peek(id);
+    }
+
+    int findString(String s) {
+        return _strTbl.find(s);
+    }
+
     /**
      * Resolves a path in the form x/y/../y/./a
      *
@@ -102,6 +559,13 @@ public class NXFile {
      * @return The node at the path, or null if no such node exists.
      */
     public NXNode<?> resolvePath(String s) {
+        NXEvents.Lookup event = NXEvents.lookup();
+        NXNode<?> r = resolve(s);
+        if (event != null) event.finish(s, r != null);
+        return r;
+    }
+
+    private NXNode<?> resolve(String s) {
         String[] e = (s.startsWith("/") ? s.substring(1) : s).split(Pattern.quote("/"));
         NXNode<?> r = _baseNode;
         for (String f : e) {
@@ -113,12 +577,43 @@ public class NXFile {
         return r;
     }
 
+    private static class DefaultExecutor {
+        static final Executor INSTANCE = create();
+
+        private static Executor create() {
+            try {
+                Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (Executor) m.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                // no virtual threads on this runtime
+            }
+            final AtomicInteger threadId = new AtomicInteger();
+            int n = Math.max(2, Runtime.getRuntime().availableProcessors());
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(n, n, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "libjinx-loader-" + threadId.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            pool.allowCoreThreadTimeOut(true);
+            return pool;
+        }
+    }
+
     // read header
     private void Parse() throws IOException, NXException {
         if (_ler.readUInt() != 0x32474B50) throw new NXException("Invalid NX file; magic not found");
+        NXEvents.Parse phase = NXEvents.parse();
         ParseStringTable();
+        if (phase != null) phase.finish(_path, "string table", _strTbl.size());
+        phase = NXEvents.parse();
         ParseBitmapTable();
+        if (phase != null) phase.finish(_path, "bitmap table", _bmpOffTbl.length);
+        phase = NXEvents.parse();
         ParseMP3Table();
+        if (phase != null) phase.finish(_path, "MP3 table", _mp3OffTbl.length);
 
         // parse nodes
         _ler.seek(4);
@@ -130,13 +625,15 @@ public class NXFile {
         if (baseNodeOffset < 0)
             throw new NXException("Unable to parse NX file; node block out of range (Java limitation)");
         _ler.seek(baseNodeOffset);
+        phase = NXEvents.parse();
         _nodeTbl = new NXNode<?>[(int) nodeCount];
         _baseNode = ParseNode(null);
-        _strTbl = null; _bmpOffTbl = null; _mp3OffTbl = null;
+        if (phase != null) phase.finish(_path, "node block", nodeCount);
+        _mp3OffTbl = null;
     }
 
     private NXNode<?> ParseNode(NXNode<?> parent) throws IOException, NXException {
-        String name = _strTbl[(int) _ler.readUInt()];
+        int name = _strTbl.canonical((int) _ler.readUInt());
         int type = _ler.readUByte();
         NXNode<?> ret;
         switch (type & 0x7F) {
@@ -150,13 +647,14 @@ public class NXFile {
                 ret = new NXNode<Double>(name, _ler.readDouble(), this, parent);
                 break;
             case 3:
-                ret = new NXNode<String>(name, _strTbl[(int) _ler.readUInt()], this, parent);
+                ret = new NXStringNode(name, _strTbl.canonical((int) _ler.readUInt()), this, parent);
                 break;
             case 4:
                 ret = new NXNode<Point>(name, _ler.readPos(), this, parent);
                 break;
             case 5:
-                ret = new NXCanvasNode(name, this, parent, _ler, _bmpOffTbl.length > 0 ? _bmpOffTbl[(int) _ler.readUInt()] : (-1 + (0*_ler.readUInt())));
+                int bmId = (int) _ler.readUInt();
+                ret = _bmpOffTbl.length > 0 ? new NXCanvasNode(name, this, parent, _ler, bmId, _bmpOffTbl[bmId]) : new NXCanvasNode(name, this, parent, _ler, -1, -1);
                 break;
             case 6:
                 ret = new NXMP3Node(name, this, parent, _ler, _mp3OffTbl.length > 0 ? _mp3OffTbl[(int) _ler.readUInt()] : (-1 + (0*_ler.readUInt())));
@@ -170,10 +668,63 @@ public class NXFile {
         _nodeTbl[_nodeId++] = ret;
         if ((type & 0x80) != 0x80) return ret;
         int childCount = _ler.readUShort();
-        for (; childCount > 0; --childCount) ret.addChild(ParseNode(ret));
+        NXNode<?>[] children = new NXNode<?>[childCount];
+        for (int i = 0; i < childCount; ++i) children[i] = ParseNode(ret);
+        ret.setChildren(children, childCount);
         return ret;
     }
 
+    // resolve every link chain once, sharing work between chains that merge
+    private NXLinkReport ResolveLinks() {
+        final byte VISITING = 1, DONE = 2;
+        byte[] state = new byte[_nodeTbl.length];
+        int[] chain = new int[16];
+        int linkCount = 0;
+        List<NXLinkNode> cyclic = new ArrayList<NXLinkNode>();
+        List<NXLinkNode> dangling = new ArrayList<NXLinkNode>();
+        for (int i = 0; i < _nodeTbl.length; ++i) {
+            if (!(_nodeTbl[i] instanceof NXLinkNode)) continue;
+            ++linkCount;
+            if (state[i] == DONE) continue;
+            int len = 0, cur = i, target;
+            while (true) {
+                NXNode<?> n = _nodeTbl[cur];
+                if (!(n instanceof NXLinkNode)) {
+                    target = cur;
+                    break;
+                }
+                if (state[cur] == DONE) {
+                    target = ((NXLinkNode) n)._targetId;
+                    break;
+                }
+                if (state[cur] == VISITING) {
+                    target = NXLinkNode.CYCLIC;
+                    break;
+                }
+                state[cur] = VISITING;
+                if (len == chain.length) {
+                    int[] grown = new int[len * 2];
+                    System.arraycopy(chain, 0, grown, 0, len);
+                    chain = grown;
+                }
+                chain[len++] = cur;
+                cur = ((NXLinkNode) n).getLinkedId();
+                if (cur < 0 || cur >= _nodeTbl.length) {
+                    target = NXLinkNode.DANGLING;
+                    break;
+                }
+            }
+            for (int j = 0; j < len; ++j) {
+                NXLinkNode l = (NXLinkNode) _nodeTbl[chain[j]];
+                l._targetId = target;
+                state[chain[j]] = DONE;
+                if (target == NXLinkNode.CYCLIC) cyclic.add(l);
+                else if (target == NXLinkNode.DANGLING) dangling.add(l);
+            }
+        }
+        return new NXLinkReport(linkCount, cyclic, dangling);
+    }
+
     private void ParseStringTable() throws IOException, NXException {
         _ler.seek(16);
         long strCount = _ler.readUInt();
@@ -184,9 +735,7 @@ public class NXFile {
         if (strOffset < 0)
             throw new NXException("Unable to parse NX file; string table out of range (Java limitation)");
         _ler.seek(strOffset);
-        _strTbl = new String[(int) strCount];
-        for (int i = 0; i < strCount; ++i)
-            _strTbl[i] = _ler.readNXUTFString();
+        _strTbl = new NXStringTable(_ler, (int) strCount);
     }
 
     private void ParseBitmapTable() throws IOException, NXException {
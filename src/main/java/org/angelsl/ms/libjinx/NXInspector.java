@@ -0,0 +1,455 @@
+/*
+ * Copyright 2011-2012 angelsl.
+ *
+ * This file is part of libjinx.
+ *
+ * libjinx is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * libjinx is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with libjinx.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library. Thus, the terms and
+ * conditions of the GNU General Public License cover the whole combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent modules,
+ * and to copy and distribute the resulting executable under terms of your
+ * choice, provided that you also meet, for each linked independent module,
+ * the terms and conditions of the license of that module. An independent
+ * module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version
+ * of the library, but you are not obligated to do so. If you do not wish to
+ * do so, delete this exception statement from your version.
+ */
+
+
+package org.angelsl.ms.libjinx;
+
+import java.awt.Point;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Profiles an NX file from the command line, writing the report to standard output as JSON:
+ * <pre>
+ * java -cp libjinx.jar:jnicompressions.jar org.angelsl.ms.libjinx.NXInspector [options] file.nx
+ * </pre>
+ * The report counts nodes by type and sizes the string table. It gives histograms of bitmap dimensions,
+ * compressed and decoded sizes, MP3 sizes and link chain depths, and measures parse and decode throughput.
+ * Sizes are in bytes and times in milliseconds. Histogram buckets are powers of two, each counting the values
+ * above the previous bucket's bound and up to its own.
+ * <p>
+ * Options:
+ * <ul>
+ * <li>{@code --parse-runs N}: times N opens of the file and reports the best and median (default 3)</li>
+ * <li>{@code --threads N}: decodes on N threads, or one per processor if N is 0 (default 1)</li>
+ * <li>{@code --limit N}: decodes at most the first N bitmaps</li>
+ * <li>{@code --no-decode}: skips the decode measurement</li>
+ * </ul>
+ */
+public final class NXInspector {
+    private static final String USAGE = "usage: NXInspector [--parse-runs N] [--threads N] [--limit N] [--no-decode] file.nx";
+
+    private NXInspector() {
+    }
+
+    public static void main(String[] args) throws IOException, NXException, InterruptedException {
+        int parseRuns = 3, threads = 1, limit = Integer.MAX_VALUE;
+        boolean decode = true;
+        String path = null;
+        try {
+            for (int i = 0; i < args.length; ++i) {
+                if (args[i].equals("--parse-runs")) parseRuns = Math.max(1, Integer.parseInt(args[++i]));
+                else if (args[i].equals("--threads")) threads = Integer.parseInt(args[++i]);
+                else if (args[i].equals("--limit")) limit = Integer.parseInt(args[++i]);
+                else if (args[i].equals("--no-decode")) decode = false;
+                else if (path == null && !args[i].startsWith("--")) path = args[i];
+                else throw new IllegalArgumentException(args[i]);
+            }
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            path = null;
+        }
+        if (path == null || threads < 0 || limit < 0) {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        if (threads == 0) threads = Runtime.getRuntime().availableProcessors();
+
+        Json out = new Json();
+        out.begin();
+        out.field("file", path);
+        long fileSize = new File(path).length();
+        out.field("size", fileSize);
+
+        long[] runs = new long[parseRuns];
+        int nodeCount = 0;
+        for (int i = 0; i < parseRuns; ++i) {
+            long start = System.nanoTime();
+            NXFile f = new NXFile(path);
+            runs[i] = System.nanoTime() - start;
+            nodeCount = f._nodeTbl.length;
+            f.close();
+        }
+        Arrays.sort(runs);
+        out.begin("parse");
+        out.field("runs", parseRuns);
+        out.field("bestMillis", runs[0] / 1e6);
+        out.field("medianMillis", runs[parseRuns / 2] / 1e6);
+        out.field("nodesPerSecond", Math.round(nodeCount * 1e9 / runs[0]));
+        out.end();
+
+        NXFile file = new NXFile(path, NXFile.Option.RESOLVE_LINKS);
+        try {
+            inspect(file, out);
+            if (decode) decode(file, out, threads, limit);
+        } finally {
+            file.close();
+        }
+        out.end();
+        System.out.println(out);
+    }
+
+    // everything read from the tables and headers, without decoding any bitmap
+    private static void inspect(NXFile file, Json out) {
+        NXNode<?>[] nodes = file._nodeTbl;
+        long none = 0, integer = 0, real = 0, string = 0, vector = 0, canvas = 0, audio = 0, link = 0;
+        NXBitmapTable bitmaps = file.getBitmapTable();
+        boolean[] referenced = new boolean[bitmaps.size()];
+        int chunked = 0, missing = 0;
+        Histogram audioBytes = new Histogram();
+        Set<Long> audioOffsets = new HashSet<Long>();
+        for (NXNode<?> n : nodes) {
+            if (n instanceof NXCanvasNode) {
+                ++canvas;
+                NXCanvasNode c = (NXCanvasNode) n;
+                int id = c.getBitmapId();
+                if (id < 0 || id >= referenced.length) ++missing;
+                else if (!referenced[id]) {
+                    referenced[id] = true;
+                    if (c.isChunked()) ++chunked;
+                }
+            } else if (n instanceof NXMP3Node) {
+                ++audio;
+                long[] range = ((NXMP3Node) n).dataRange();
+                if (range != null && audioOffsets.add(range[0])) audioBytes.add(range[1] - 4);
+            } else if (n instanceof NXLinkNode) {
+                ++link;
+            } else {
+                Object v = n._value;
+                if (v instanceof Integer) ++integer;
+                else if (v instanceof Double) ++real;
+                else if (v instanceof String) ++string;
+                else if (v instanceof Point) ++vector;
+                else ++none;
+            }
+        }
+        out.begin("nodes");
+        out.field("total", nodes.length);
+        out.field("none", none);
+        out.field("integer", integer);
+        out.field("real", real);
+        out.field("string", string);
+        out.field("vector", vector);
+        out.field("canvas", canvas);
+        out.field("audio", audio);
+        out.field("link", link);
+        out.end();
+
+        NXStringTable strings = file.getStringTable();
+        int distinct = 0;
+        for (int i = 0; i < strings.size(); ++i) if (strings.canonical(i) == i) ++distinct;
+        out.begin("strings");
+        out.field("count", strings.size());
+        out.field("distinct", distinct);
+        out.field("encodedBytes", strings.encodedBytes());
+        out.field("retainedBytes", strings.retainedBytes());
+        out.end();
+
+        Histogram width = new Histogram(), height = new Histogram(), pixels = new Histogram();
+        Histogram compressed = new Histogram(), decoded = new Histogram();
+        int used = 0;
+        for (int i = 0; i < bitmaps.size(); ++i) {
+            width.add(bitmaps.getWidth(i));
+            height.add(bitmaps.getHeight(i));
+            pixels.add((long) bitmaps.getWidth(i) * bitmaps.getHeight(i));
+            compressed.add(bitmaps.getCompressedLength(i));
+            decoded.add(bitmaps.getDecodedSize(i));
+            if (referenced[i]) ++used;
+        }
+        out.begin("bitmaps");
+        out.field("count", bitmaps.size());
+        out.field("referenced", used);
+        out.field("missing", missing);
+        out.field("chunked", chunked);
+        out.field("compressionRatio", compressed._total == 0 ? 0 : (double) decoded._total / compressed._total);
+        width.write(out, "width");
+        height.write(out, "height");
+        pixels.write(out, "pixels");
+        compressed.write(out, "compressedBytes");
+        decoded.write(out, "decodedBytes");
+        out.end();
+
+        out.begin("audio");
+        out.field("count", audioOffsets.size());
+        audioBytes.write(out, "bytes");
+        out.end();
+
+        NXLinkReport report = file.getLinkReport();
+        out.begin("links");
+        out.field("count", report.getLinkCount());
+        out.field("cyclic", report.getCyclicLinks().size());
+        out.field("dangling", report.getDanglingLinks().size());
+        linkDepths(nodes).write(out, "depth");
+        out.end();
+
+        NXMemoryReport memory = file.getMemoryReport();
+        out.begin("memory");
+        out.field("treeBytes", memory.getTreeBytes());
+        out.field("stringBytes", memory.getStringBytes());
+        out.field("totalBytes", memory.getTotalBytes());
+        out.end();
+    }
+
+    // the number of hops from each link that resolves to the non-link node it ends at
+    private static Histogram linkDepths(NXNode<?>[] nodes) {
+        final int ON_CHAIN = -1, BROKEN = -2;
+        int[] depth = new int[nodes.length];
+        int[] chain = new int[16];
+        Histogram h = new Histogram();
+        for (int i = 0; i < nodes.length; ++i) {
+            if (!(nodes[i] instanceof NXLinkNode) || depth[i] != 0) continue;
+            int len = 0, cur = i, base;
+            while (true) {
+                if (!(nodes[cur] instanceof NXLinkNode)) {
+                    base = 0;
+                    break;
+                }
+                if (depth[cur] != 0) {
+                    base = depth[cur] == ON_CHAIN ? BROKEN : depth[cur];
+                    break;
+                }
+                depth[cur] = ON_CHAIN;
+                if (len == chain.length) chain = Arrays.copyOf(chain, len * 2);
+                chain[len++] = cur;
+                int next = ((NXLinkNode) nodes[cur]).getLinkedId();
+                if (next < 0 || next >= nodes.length) {
+                    base = BROKEN;
+                    break;
+                }
+                cur = next;
+            }
+            for (int j = len - 1; j >= 0; --j) {
+                depth[chain[j]] = base == BROKEN ? BROKEN : base + len - j;
+                if (base != BROKEN) h.add(base + len - j);
+            }
+        }
+        return h;
+    }
+
+    // decodes each stored bitmap once, through the first canvas that shows it, timing the whole pass
+    private static void decode(NXFile file, Json out, int threads, int limit) throws InterruptedException {
+        NXNode<?>[] nodes = file._nodeTbl;
+        NXBitmapTable bitmaps = file.getBitmapTable();
+        final NXCanvasNode[] canvases = new NXCanvasNode[Math.min(limit, bitmaps.size())];
+        int count = 0;
+        for (NXNode<?> n : nodes) {
+            if (!(n instanceof NXCanvasNode)) continue;
+            int id = ((NXCanvasNode) n).getBitmapId();
+            if (id >= 0 && id < canvases.length && canvases[id] == null) {
+                canvases[id] = (NXCanvasNode) n;
+                ++count;
+            }
+        }
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final AtomicLong compressed = new AtomicLong(), decoded = new AtomicLong();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; ++t) {
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    int[] dest = new int[0];
+                    for (int i; (i = next.getAndIncrement()) < canvases.length; ) {
+                        NXCanvasNode c = canvases[i];
+                        if (c == null) continue;
+                        long size = (long) c.getWidth() * c.getHeight();
+                        if (size > Integer.MAX_VALUE - 8) {
+                            failed.incrementAndGet();
+                            continue;
+                        }
+                        if (dest.length < size) dest = new int[(int) size];
+                        if (c.decodeARGB(dest, 0)) {
+                            compressed.addAndGet(c.getCompressedLength());
+                            decoded.addAndGet(4 * size);
+                        } else {
+                            failed.incrementAndGet();
+                        }
+                    }
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        long elapsed = Math.max(1, System.nanoTime() - start);
+        out.begin("decode");
+        out.field("threads", threads);
+        out.field("bitmaps", count);
+        out.field("failed", failed.get());
+        out.field("millis", elapsed / 1e6);
+        out.field("bitmapsPerSecond", Math.round((count - failed.get()) * 1e9 / elapsed));
+        out.field("compressedBytesPerSecond", Math.round(compressed.get() * 1e9 / elapsed));
+        out.field("decodedBytesPerSecond", Math.round(decoded.get() * 1e9 / elapsed));
+        out.end();
+    }
+
+    // values kept whole, so percentiles are exact
+    private static final class Histogram {
+        private long[] _values = new long[64];
+        private int _count;
+        private long _total;
+
+        void add(long value) {
+            if (_count == _values.length) _values = Arrays.copyOf(_values, _count * 2);
+            _values[_count++] = value;
+            _total += value;
+        }
+
+        void write(Json out, String name) {
+            long[] v = Arrays.copyOf(_values, _count);
+            Arrays.sort(v);
+            out.begin(name);
+            out.field("count", _count);
+            out.field("total", _total);
+            if (_count > 0) {
+                out.field("min", v[0]);
+                out.field("max", v[_count - 1]);
+                out.field("mean", (double) _total / _count);
+                out.field("p50", v[(int) (_count * 50L / 100)]);
+                out.field("p90", v[(int) (_count * 90L / 100)]);
+                out.field("p99", v[(int) (_count * 99L / 100)]);
+            }
+            out.beginArray("buckets");
+            for (int i = 0; i < _count; ) {
+                long bound = v[i] <= 0 ? 0 : Long.highestOneBit(v[i]) == v[i] ? v[i] : Long.highestOneBit(v[i]) << 1;
+                int j = i;
+                while (j < _count && v[j] <= bound) ++j;
+                out.begin();
+                out.field("le", bound);
+                out.field("count", j - i);
+                out.end();
+                i = j;
+            }
+            out.endArray();
+            out.end();
+        }
+    }
+
+    // a small indenting JSON writer; fields are written in the order given
+    private static final class Json {
+        private final StringBuilder _sb = new StringBuilder();
+        private int _depth;
+        private boolean _first = true;
+
+        private void next() {
+            if (_depth > 0) _sb.append(_first ? "\n" : ",\n");
+            for (int i = 0; i < _depth; ++i) _sb.append("  ");
+            _first = false;
+        }
+
+        private void name(String name) {
+            next();
+            string(name);
+            _sb.append(": ");
+        }
+
+        private void string(String s) {
+            _sb.append('"');
+            for (int i = 0; i < s.length(); ++i) {
+                char c = s.charAt(i);
+                if (c == '"' || c == '\\') _sb.append('\\').append(c);
+                else if (c < 0x20) _sb.append(String.format("\\u%04x", (int) c));
+                else _sb.append(c);
+            }
+            _sb.append('"');
+        }
+
+        private void open(char c) {
+            _sb.append(c);
+            ++_depth;
+            _first = true;
+        }
+
+        private void close(char c) {
+            --_depth;
+            if (!_first) {
+                _sb.append('\n');
+                for (int i = 0; i < _depth; ++i) _sb.append("  ");
+            }
+            _sb.append(c);
+            _first = false;
+        }
+
+        void begin() {
+            next();
+            open('{');
+        }
+
+        void begin(String name) {
+            name(name);
+            open('{');
+        }
+
+        void end() {
+            close('}');
+        }
+
+        void beginArray(String name) {
+            name(name);
+            open('[');
+        }
+
+        void endArray() {
+            close(']');
+        }
+
+        void field(String name, String value) {
+            name(name);
+            string(value);
+        }
+
+        void field(String name, long value) {
+            name(name);
+            _sb.append(value);
+        }
+
+        void field(String name, double value) {
+            name(name);
+            _sb.append(Double.isNaN(value) || Double.isInfinite(value) ? "null" : String.format(Locale.ROOT, "%.3f", value));
+        }
+
+        @Override
+        public String toString() {
+            return _sb.toString();
+        }
+    }
+}
@@ -39,29 +39,54 @@ package org.angelsl.ms.libjinx;
  */
 public class NXLinkNode extends NXNode<NXNode<?>> {
 
+    static final int UNRESOLVED = -1;
+    static final int CYCLIC = -2;
+    static final int DANGLING = -3;
+
     private final int _linkedId;
+    int _targetId = UNRESOLVED;
 
-    NXLinkNode(String name, int id, NXFile file, NXNode<?> parent) {
+    NXLinkNode(int name, int id, NXFile file, NXNode<?> parent) {
         super(name, null, file, parent);
         _linkedId = id;
     }
 
+    /**
+     * Gets the ID of the node this link points to, as stored in the file.
+     *
+     * @return The linked node ID.
+     */
+    public int getLinkedId() {
+        return _linkedId;
+    }
+
+    /**
+     * Gets the node this link points to, which may itself be a link.
+     *
+     * @return The linked node, or null if the linked ID is out of range.
+     */
     @Override
     public NXNode<?> getValue() {
-        if (_value == null)
-            _value = _file._nodeTbl[_linkedId];
-        return _value;
+        // looked up each time rather than cached, which would cost as much and need publishing between threads
+        NXNode<?>[] nodes = _file._nodeTbl;
+        return _linkedId >= 0 && _linkedId < nodes.length ? nodes[_linkedId] : null;
     }
 
     /**
-     * Fully resolves this link node.
+     * Fully resolves this link node. If the file was loaded with {@link NXFile.Option#RESOLVE_LINKS},
+     * this is a single table lookup.
      *
-     * @return The non-link node linked by this UOL.
+     * @return The non-link node linked by this UOL, or null if the link chain is cyclic or dangling.
      */
     public NXNode<?> fullyResolve() {
+        if (_targetId >= 0) return _file._nodeTbl[_targetId];
+        if (_targetId != UNRESOLVED) return null;
         NXNode<?> ret = this;
-        while (ret instanceof NXLinkNode)
+        // a chain longer than the node table must revisit a node
+        for (int hops = _file._nodeTbl.length; ret instanceof NXLinkNode; --hops) {
+            if (hops == 0) return null;
             ret = ((NXLinkNode) ret).getValue();
+        }
         return ret;
     }
 }
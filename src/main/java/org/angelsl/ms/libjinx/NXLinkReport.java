@@ -0,0 +1,95 @@
+/*
+ * Copyright 2011-2012 angelsl.
+ *
+ * This file is part of libjinx.
+ *
+ * libjinx is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * libjinx is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with libjinx.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library. Thus, the terms and
+ * conditions of the GNU General Public License cover the whole combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent modules,
+ * and to copy and distribute the resulting executable under terms of your
+ * choice, provided that you also meet, for each linked independent module,
+ * the terms and conditions of the license of that module. An independent
+ * module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version
+ * of the library, but you are not obligated to do so. If you do not wish to
+ * do so, delete this exception statement from your version.
+ */
+
+
+package org.angelsl.ms.libjinx;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The result of resolving every link node in an NX file at load time.
+ */
+public class NXLinkReport {
+    private final int _linkCount;
+    private final List<NXLinkNode> _cyclic;
+    private final List<NXLinkNode> _dangling;
+
+    NXLinkReport(int linkCount, List<NXLinkNode> cyclic, List<NXLinkNode> dangling) {
+        _linkCount = linkCount;
+        _cyclic = Collections.unmodifiableList(cyclic);
+        _dangling = Collections.unmodifiableList(dangling);
+    }
+
+    /**
+     * Gets the number of link nodes in the file.
+     *
+     * @return The number of link nodes.
+     */
+    public int getLinkCount() {
+        return _linkCount;
+    }
+
+    /**
+     * Gets the link nodes whose chain runs into a cycle.
+     *
+     * @return The cyclic link nodes.
+     */
+    public List<NXLinkNode> getCyclicLinks() {
+        return _cyclic;
+    }
+
+    /**
+     * Gets the link nodes whose chain ends at a node ID outside the node table.
+     *
+     * @return The dangling link nodes.
+     */
+    public List<NXLinkNode> getDanglingLinks() {
+        return _dangling;
+    }
+
+    /**
+     * Returns true if every link in the file resolves to a non-link node.
+     *
+     * @return true if there are no cyclic or dangling links; false otherwise
+     */
+    public boolean isClean() {
+        return _cyclic.isEmpty() && _dangling.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("NXLinkReport:%d links:%d cyclic:%d dangling", _linkCount, _cyclic.size(), _dangling.size());
+    }
+}
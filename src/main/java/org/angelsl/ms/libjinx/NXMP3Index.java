@@ -0,0 +1,252 @@
+/*
+ * Copyright 2011-2012 angelsl.
+ *
+ * This file is part of libjinx.
+ *
+ * libjinx is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * libjinx is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with libjinx.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library. Thus, the terms and
+ * conditions of the GNU General Public License cover the whole combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent modules,
+ * and to copy and distribute the resulting executable under terms of your
+ * choice, provided that you also meet, for each linked independent module,
+ * the terms and conditions of the license of that module. An independent
+ * module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version
+ * of the library, but you are not obligated to do so. If you do not wish to
+ * do so, delete this exception statement from your version.
+ */
+
+
+package org.angelsl.ms.libjinx;
+
+import java.util.Arrays;
+
+/**
+ * The MPEG audio frames of an MP3 node: where each frame starts in the node's data and when it plays.
+ * Get one from {@link NXMP3Node#getIndex()}.
+ */
+public final class NXMP3Index {
+    // kbps by [row][bitrate index]; rows are V1 L1, V1 L2, V1 L3, V2 L1, V2 L2/L3
+    private static final short[][] BITRATES = {
+            {0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448},
+            {0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384},
+            {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320},
+            {0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256},
+            {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160}};
+    private static final int[] SAMPLE_RATES = {44100, 48000, 32000};
+    // sync, version, layer and sample rate; these stay the same for every frame of a stream
+    private static final int STREAM_MASK = 0xFFFE0C00;
+
+    static final NXMP3Index EMPTY = new NXMP3Index(new int[] {0}, new int[] {0}, 0, 0);
+
+    private final int[] _offsets;
+    private final int[] _samples;
+    private final int _count;
+    private final int _sampleRate;
+
+    private NXMP3Index(int[] offsets, int[] samples, int count, int sampleRate) {
+        _offsets = offsets;
+        _samples = samples;
+        _count = count;
+        _sampleRate = sampleRate;
+    }
+
+    /**
+     * Scans the frame headers of MP3 data. Bytes before the first frame, such as an ID3 tag or a sound header,
+     * and anything between frames that does not parse are skipped.
+     *
+     * @param storage The storage holding the data
+     * @param start   The offset of the data
+     * @param length  The length of the data
+     * @return The index, which has no frames if the data is not MPEG audio.
+     */
+    static NXMP3Index build(NXStorage storage, long start, int length) {
+        int pos = 0;
+        if (length >= 10 && storage.getByte(start) == 'I' && storage.getByte(start + 1) == 'D'
+                && storage.getByte(start + 2) == '3') {
+            int size = 0;
+            for (int i = 6; i < 10; ++i) size = (size << 7) | (storage.getByte(start + i) & 0x7F);
+            pos = 10 + size;
+        }
+        int[] offsets = new int[Math.max(16, length / 400)];
+        int[] samples = new int[offsets.length];
+        int count = 0, total = 0, stream = 0, sampleRate = 0;
+        boolean synced = false;
+        while (pos <= length - 4) {
+            int h = header(storage, start + pos);
+            int size = frameLength(h);
+            if (size < 0 || pos + size > length || count > 0 && (h & STREAM_MASK) != stream) {
+                synced = false;
+                ++pos;
+                continue;
+            }
+            // outside a run of frames, only trust a header that is followed by another (or by the end of the data)
+            if (!synced) {
+                int next = pos + size;
+                if (next <= length - 4) {
+                    int nh = header(storage, start + next);
+                    if (frameLength(nh) < 0 || (nh & STREAM_MASK) != (h & STREAM_MASK)) {
+                        ++pos;
+                        continue;
+                    }
+                } else if (next != length) {
+                    ++pos;
+                    continue;
+                }
+                synced = true;
+            }
+            if (count == 0) {
+                stream = h & STREAM_MASK;
+                sampleRate = sampleRate(h);
+            }
+            if (count + 1 >= offsets.length) {
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+                samples = Arrays.copyOf(samples, samples.length * 2);
+            }
+            offsets[count] = pos;
+            samples[count] = total;
+            ++count;
+            total += samplesPerFrame(h);
+            pos += size;
+        }
+        if (count == 0) return EMPTY;
+        offsets[count] = offsets[count - 1] + frameLength(header(storage, start + offsets[count - 1]));
+        samples[count] = total;
+        return new NXMP3Index(Arrays.copyOf(offsets, count + 1), Arrays.copyOf(samples, count + 1), count,
+                sampleRate);
+    }
+
+    private static int header(NXStorage storage, long offset) {
+        return (storage.getByte(offset) & 0xFF) << 24 | (storage.getByte(offset + 1) & 0xFF) << 16
+                | (storage.getByte(offset + 2) & 0xFF) << 8 | storage.getByte(offset + 3) & 0xFF;
+    }
+
+    private static int version(int h) {
+        return (h >>> 19) & 3; // 0 = MPEG 2.5, 2 = MPEG 2, 3 = MPEG 1
+    }
+
+    private static int layer(int h) {
+        return 4 - ((h >>> 17) & 3);
+    }
+
+    private static int sampleRate(int h) {
+        int v = version(h);
+        return SAMPLE_RATES[(h >>> 10) & 3] >> (v == 3 ? 0 : v == 2 ? 1 : 2);
+    }
+
+    private static int samplesPerFrame(int h) {
+        int layer = layer(h);
+        return layer == 1 ? 384 : layer == 3 && version(h) != 3 ? 576 : 1152;
+    }
+
+    // the length of the frame with this header, or -1 if it is not a valid header
+    private static int frameLength(int h) {
+        int v = version(h), layer = layer(h), bri = (h >>> 12) & 15;
+        if ((h >>> 21) != 0x7FF || v == 1 || layer == 4 || bri == 0 || bri == 15 || ((h >>> 10) & 3) == 3
+                || (h & 3) == 2)
+            return -1;
+        int row = v == 3 ? layer - 1 : layer == 1 ? 3 : 4;
+        int bitrate = BITRATES[row][bri] * 1000, rate = sampleRate(h), pad = (h >>> 9) & 1;
+        if (layer == 1) return (12 * bitrate / rate + pad) * 4;
+        return samplesPerFrame(h) / 8 * bitrate / rate + pad;
+    }
+
+    /**
+     * Gets the number of frames.
+     *
+     * @return The frame count, which is 0 if the data is not MPEG audio.
+     */
+    public int getFrameCount() {
+        return _count;
+    }
+
+    /**
+     * Gets the sample rate of the first frame.
+     *
+     * @return The sample rate in hertz, or 0 if there are no frames.
+     */
+    public int getSampleRate() {
+        return _sampleRate;
+    }
+
+    /**
+     * Gets the playing time of all the frames.
+     *
+     * @return The duration in milliseconds.
+     */
+    public long getDurationMillis() {
+        return getFrameTime(_count);
+    }
+
+    /**
+     * Gets where a frame starts in the node's data.
+     *
+     * @param frame The frame, or the frame count for the end of the last frame
+     * @return The byte offset.
+     */
+    public int getFrameOffset(int frame) {
+        if (frame < 0 || frame > _count) throw new IndexOutOfBoundsException("frame " + frame);
+        return _offsets[frame];
+    }
+
+    /**
+     * Gets when a frame starts playing.
+     *
+     * @param frame The frame, or the frame count for the end of the last frame
+     * @return The time in milliseconds.
+     */
+    public long getFrameTime(int frame) {
+        if (frame < 0 || frame > _count) throw new IndexOutOfBoundsException("frame " + frame);
+        return _sampleRate == 0 ? 0 : _samples[frame] * 1000L / _sampleRate;
+    }
+
+    /**
+     * Finds the frame playing at a time. Times before the start give the first frame, and times past the end give
+     * the frame count.
+     *
+     * @param millis The time in milliseconds
+     * @return The frame.
+     */
+    public int frameAt(long millis) {
+        if (_count == 0 || millis <= 0) return 0;
+        long sample = millis * _sampleRate / 1000;
+        if (sample >= _samples[_count]) return _count;
+        int i = Arrays.binarySearch(_samples, 0, _count, (int) sample);
+        return i >= 0 ? i : -i - 2;
+    }
+
+    /**
+     * Finds where the frame playing at a time starts in the node's data.
+     *
+     * @param millis The time in milliseconds
+     * @return The byte offset.
+     */
+    public int offsetAt(long millis) {
+        return _offsets[frameAt(millis)];
+    }
+
+    long retainedBytes() {
+        return this == EMPTY ? 0 : 32 + 2 * (16 + 4L * _offsets.length + 7 & ~7L);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("NXMP3Index:%d frames:%d Hz:%d ms", _count, _sampleRate, getDurationMillis());
+    }
+}
@@ -35,7 +35,10 @@
 package org.angelsl.ms.libjinx;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.BufferUnderflowException;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
 
 /**
  * An MP3 file in an NX file.
@@ -44,8 +47,11 @@ public class NXMP3Node extends NXNode<byte[]> {
 
     private final LittleEndianReader _ler;
     private final long _bmOffset;
+    // loaded once under the node's lock, then read without it
+    volatile byte[] _data;
+    volatile NXMP3Index _index;
 
-    NXMP3Node(final String name, final NXFile file, final NXNode<?> parent, final LittleEndianReader ler, final long bmOffset) {
+    NXMP3Node(final int name, final NXFile file, final NXNode<?> parent, final LittleEndianReader ler, final long bmOffset) {
         super(name, null, file, parent);
         _ler = ler;
         _bmOffset = bmOffset;
@@ -54,17 +60,157 @@ public class NXMP3Node extends NXNode<byte[]> {
     @Override
     public byte[] getValue() {
         if(_bmOffset == -1) return null;
-        try {
-            if (_value == null) {
-                _ler.seek(_bmOffset);
-                long len = _ler.readUInt();
-                byte[] data = _ler.read((int) len);
-                _value = data;
+        _file.recordAccess(this, 0);
+        byte[] data = _data;
+        if (data != null) return data;
+        synchronized (this) {
+            if (_data != null) return _data;
+            NXEvents.Decode event = NXEvents.decode();
+            _file.beginRead();
+            try {
+                long len = _ler.getUInt(_bmOffset);
+                data = _ler.get(_bmOffset + 4, (int) len);
+                if (event != null) event.finish(this, len);
+                _data = data;
                 return data;
+            } catch (BufferUnderflowException | IndexOutOfBoundsException i) {
+            } finally {
+                _file.endRead();
             }
-            return _value;
-        } catch (BufferUnderflowException i) {
         }
         return null;
     }
+
+    /**
+     * Gets the length of this MP3's data without reading it.
+     *
+     * @return The length in bytes, or -1 if this node has no data.
+     */
+    public long getLength() {
+        if (_bmOffset == -1) return -1;
+        _file.beginRead();
+        try {
+            return _ler.getUInt(_bmOffset);
+        } finally {
+            _file.endRead();
+        }
+    }
+
+    /**
+     * Gets the frame index of this MP3, scanning its frame headers the first time. Only the headers are read; the
+     * index is kept with the node.
+     *
+     * @return The index, or null if this node has no data.
+     */
+    public NXMP3Index getIndex() {
+        if (_bmOffset == -1) return null;
+        NXMP3Index index = _index;
+        if (index != null) return index;
+        synchronized (this) {
+            if (_index != null) return _index;
+            _file.beginRead();
+            try {
+                long len = _ler.getUInt(_bmOffset);
+                index = NXMP3Index.build(_ler.getStorage(), _bmOffset + 4, (int) len);
+            } catch (BufferUnderflowException | IndexOutOfBoundsException i) {
+                index = NXMP3Index.EMPTY;
+            } finally {
+                _file.endRead();
+            }
+            _index = index;
+            return index;
+        }
+    }
+
+    /**
+     * Reads part of this MP3's data straight from the file.
+     *
+     * @param position The offset into the data
+     * @param dest     The array to read into
+     * @param offset   Where in the array to start
+     * @param length   The most bytes to read
+     * @return The number of bytes read, or -1 if position is at or past the end of the data.
+     */
+    public int read(long position, byte[] dest, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > dest.length)
+            throw new IndexOutOfBoundsException();
+        if (_bmOffset == -1 || position < 0) return -1;
+        _file.beginRead();
+        try {
+            long len = _ler.getUInt(_bmOffset);
+            if (position >= len) return -1;
+            int n = (int) Math.min(length, len - position);
+            _ler.getStorage().get(_bmOffset + 4 + position, dest, offset, n);
+            return n;
+        } finally {
+            _file.endRead();
+        }
+    }
+
+    /**
+     * Writes a byte range of this MP3's data to a stream, reading it from the file in pieces. Ranges past the end of
+     * the data are cut short.
+     *
+     * @param out      The stream
+     * @param position The offset into the data
+     * @param length   The number of bytes
+     * @return The number of bytes written.
+     * @throws IOException if the stream throws
+     */
+    public long writeTo(OutputStream out, long position, long length) throws IOException {
+        byte[] buf = new byte[(int) Math.max(0, Math.min(65536, length))];
+        long done = 0;
+        while (done < length) {
+            int n = read(position + done, buf, 0, (int) Math.min(buf.length, length - done));
+            if (n <= 0) break;
+            out.write(buf, 0, n);
+            done += n;
+        }
+        return done;
+    }
+
+    /**
+     * Reads the whole frames that play between two times, so the result can be played or served on its own.
+     *
+     * @param fromMillis The start time in milliseconds
+     * @param toMillis   The end time in milliseconds; the frame playing at this time is included
+     * @return The frames, which are empty if there are none in range, or null if this node has no data.
+     */
+    public byte[] getSlice(long fromMillis, long toMillis) {
+        NXMP3Index index = getIndex();
+        if (index == null) return null;
+        int from = index.frameAt(fromMillis);
+        int to = Math.min(index.getFrameCount(), Math.max(from, index.frameAt(toMillis) + 1));
+        int start = index.getFrameOffset(from);
+        byte[] ret = new byte[index.getFrameOffset(to) - start];
+        if (ret.length > 0 && read(start, ret, 0, ret.length) != ret.length) return null;
+        return ret;
+    }
+
+    @Override
+    Object loadedValue() {
+        return _data;
+    }
+
+    @Override
+    long[] dataRange() {
+        if (_bmOffset == -1) return null;
+        _file.beginRead();
+        try {
+            return new long[] {_bmOffset, 4 + _ler.getUInt(_bmOffset)};
+        } finally {
+            _file.endRead();
+        }
+    }
+
+    @Override
+    public CompletableFuture<byte[]> getValueAsync() {
+        if (_bmOffset == -1 || _data != null) return CompletableFuture.completedFuture(getValue());
+        return CompletableFuture.supplyAsync(new Supplier<byte[]>() {
+            @Override
+            public byte[] get() {
+                return getValue();
+            }
+        }, _file.getExecutor());
+    }
 }
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2011-2012 angelsl.
+ *
+ * This file is part of libjinx.
+ *
+ * libjinx is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * libjinx is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with libjinx.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library. Thus, the terms and
+ * conditions of the GNU General Public License cover the whole combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent modules,
+ * and to copy and distribute the resulting executable under terms of your
+ * choice, provided that you also meet, for each linked independent module,
+ * the terms and conditions of the license of that module. An independent
+ * module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version
+ * of the library, but you are not obligated to do so. If you do not wish to
+ * do so, delete this exception statement from your version.
+ */
+
+
+package org.angelsl.ms.libjinx;
+
+import java.awt.Point;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * An estimate of the heap memory retained by an NX file or subtree, broken down by category.
+ * <p>
+ * Sizes assume a 64-bit JVM with compressed object pointers. Strings and bitmaps shared by several nodes are
+ * counted once per report.
+ */
+public class NXMemoryReport {
+    private static final boolean COMPACT_STRINGS = !System.getProperty("java.specification.version").startsWith("1.");
+    private static final int IMAGE_OVERHEAD = 400;
+
+    private final long _nodes;
+    private final long _tree;
+    private final long _strings;
+    private final long _bitmaps;
+    private final long _png;
+    private final long _audio;
+    private final long _storage;
+
+    private NXMemoryReport(long nodes, long tree, long strings, long bitmaps, long png, long audio, long storage) {
+        _nodes = nodes;
+        _tree = tree;
+        _strings = strings;
+        _bitmaps = bitmaps;
+        _png = png;
+        _audio = audio;
+        _storage = storage;
+    }
+
+    private static long align(long size) {
+        return (size + 7) & ~7L;
+    }
+
+    private static long nodeSize(NXNode<?> n) {
+        // header and the five NXNode fields, plus each subclass's own fields
+        if (n instanceof NXCanvasNode) return align(12 + 5 * 4 + 4 + 4 + 8 + 4);
+        if (n instanceof NXMP3Node) return align(12 + 5 * 4 + 4 + 8 + 4);
+        if (n instanceof NXLinkNode) return align(12 + 5 * 4 + 4 + 4);
+        if (n instanceof NXStringNode) return align(12 + 5 * 4 + 4);
+        return align(12 + 5 * 4);
+    }
+
+    private static long boxedSize(Object value) {
+        if (value instanceof Integer) return 16;
+        if (value instanceof Double) return 16;
+        if (value instanceof Point) return 24;
+        return 0;
+    }
+
+    private static long arraySize(int entries) {
+        return entries == 0 ? 0 : align(16 + 4L * entries);
+    }
+
+    private static long stringSize(String s) {
+        boolean latin1 = COMPACT_STRINGS;
+        for (int i = 0; latin1 && i < s.length(); ++i)
+            if (s.charAt(i) > 0xFF) latin1 = false;
+        return 24 + align(16 + (long) s.length() * (latin1 ? 1 : 2));
+    }
+
+    static NXMemoryReport measure(NXNode<?> root, long fileTables, long storage) {
+        Set<String> strings = Collections.newSetFromMap(new IdentityHashMap<String, Boolean>());
+        BitSet bitmaps = new BitSet();
+        long nodes = 0, tree = fileTables, str = 0, bmp = 0, png = 0, audio = 0;
+        NXBitmapCache cache = root._file.getBitmapCache();
+        NXPngCache pngs = root._file.getPngCache();
+        ArrayDeque<NXNode<?>> pending = new ArrayDeque<NXNode<?>>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            NXNode<?> n = pending.pop();
+            ++nodes;
+            tree += nodeSize(n);
+            // names are only counted once decoded; the encoded table is part of the file tables
+            String name = n._file.peekString(n._nameId);
+            if (name != null && strings.add(name)) str += stringSize(name);
+            Object value = n instanceof NXMP3Node ? ((NXMP3Node) n)._data : n._value;
+            if (value instanceof String) {
+                if (strings.add((String) value)) str += stringSize((String) value);
+            } else if (value instanceof byte[]) {
+                audio += align(16 + ((byte[]) value).length);
+            } else {
+                tree += boxedSize(value);
+            }
+            if (n instanceof NXMP3Node) {
+                NXMP3Index index = ((NXMP3Node) n)._index;
+                if (index != null) audio += index.retainedBytes();
+            }
+            if (n instanceof NXCanvasNode) {
+                int id = ((NXCanvasNode) n).getBitmapId();
+                if (id >= 0 && !bitmaps.get(id)) {
+                    bitmaps.set(id);
+                    long b = cache.cachedBytes(id);
+                    if (b > 0) bmp += IMAGE_OVERHEAD + b;
+                    png += pngs.cachedBytes(id);
+                }
+            }
+            tree += arraySize(n._children.length);
+            for (NXNode<?> c : n._children) pending.push(c);
+        }
+        return new NXMemoryReport(nodes, tree, str, bmp, png, audio, storage);
+    }
+
+    /**
+     * Gets the number of nodes covered by this report.
+     *
+     * @return The node count.
+     */
+    public long getNodeCount() {
+        return _nodes;
+    }
+
+    /**
+     * Gets the bytes held by node objects, child maps, boxed values and the file's tables.
+     *
+     * @return The tree structure byte count.
+     */
+    public long getTreeBytes() {
+        return _tree;
+    }
+
+    /**
+     * Gets the bytes held by node names and string values.
+     *
+     * @return The string byte count.
+     */
+    public long getStringBytes() {
+        return _strings;
+    }
+
+    /**
+     * Gets the bytes held by decoded bitmaps in the file's bitmap cache, at every cached scale level.
+     *
+     * @return The bitmap byte count.
+     */
+    public long getBitmapBytes() {
+        return _bitmaps;
+    }
+
+    /**
+     * Gets the bytes held by encoded files in the file's PNG cache, at every cached scale level.
+     *
+     * @return The PNG byte count.
+     */
+    public long getPngBytes() {
+        return _png;
+    }
+
+    /**
+     * Gets the bytes held by loaded MP3 data and frame indexes.
+     *
+     * @return The audio byte count.
+     */
+    public long getAudioBytes() {
+        return _audio;
+    }
+
+    /**
+     * Gets the bytes held by the file's storage itself, such as the blocks cached by a channel storage. Only reports
+     * on a whole file count these.
+     *
+     * @return The storage byte count.
+     */
+    public long getStorageBytes() {
+        return _storage;
+    }
+
+    /**
+     * Gets the bytes held across all categories.
+     *
+     * @return The total byte count.
+     */
+    public long getTotalBytes() {
+        return _tree + _strings + _bitmaps + _png + _audio + _storage;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("NXMemoryReport:%d nodes:%d tree:%d strings:%d bitmaps:%d png:%d audio:%d storage:%d total",
+                _nodes, _tree, _strings, _bitmaps, _png, _audio, _storage, getTotalBytes());
+    }
+}
@@ -34,8 +34,14 @@
 
 package org.angelsl.ms.libjinx;
 
-import java.util.HashMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * A node in an NX file containing a value of type T.
@@ -46,28 +52,30 @@ public class NXNode<T> implements Iterable<NXNode<?>> {
 
     static final Nothing _nothing = new Nothing();
 
+    private static final NXNode<?>[] NO_CHILDREN = new NXNode<?>[0];
+
     @Override
     public Iterator<NXNode<?>> iterator() {
-        if (_children == null) {
-            return new Iterator<NXNode<?>>() {
-
-                @Override
-                public boolean hasNext() {
-                    return false;
-                }
-
-                @Override
-                public NXNode<?> next() {
-                    return null;
-                }
-
-                @Override
-                public void remove() {
-                    throw new IllegalStateException();
-                }
-            };
-        }
-        return _children.values().iterator();
+        final NXNode<?>[] children = _children;
+        return new Iterator<NXNode<?>>() {
+            private int _next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return _next < children.length;
+            }
+
+            @Override
+            public NXNode<?> next() {
+                if (_next >= children.length) throw new NoSuchElementException();
+                return children[_next++];
+            }
+
+            @Override
+            public void remove() {
+                throw new IllegalStateException();
+            }
+        };
     }
 
     /**
@@ -78,31 +86,59 @@ public class NXNode<T> implements Iterable<NXNode<?>> {
         }
     }
 
-    final String _name;
+    // index of the name in the file's string table, canonicalised so equal names share an index
+    final int _nameId;
     T _value;
     final NXNode<?> _parent;
-    HashMap<String, NXNode<?>> _children = null;
+    // sorted by name index
+    NXNode<?>[] _children = NO_CHILDREN;
     final NXFile _file;
 
-    NXNode(final String name, final T value, final NXFile file, final NXNode<?> parent) {
-        _name = name;
+    NXNode(final int nameId, final T value, final NXFile file, final NXNode<?> parent) {
+        _nameId = nameId;
         _value = value;
         _parent = parent;
         _file = file;
     }
 
-    void addChild(NXNode<?> child) {
-        if (_children == null) _children = new HashMap<String, NXNode<?>>();
-        _children.put(child._name, child);
+    void setChildren(NXNode<?>[] children, int count) {
+        if (count == 0) return;
+        Arrays.sort(children, 0, count, BY_NAME);
+        // as with a map, the last of several children with the same name wins
+        int n = 0;
+        for (int i = 0; i < count; ++i) {
+            if (n > 0 && children[n - 1]._nameId == children[i]._nameId) --n;
+            children[n++] = children[i];
+        }
+        _children = Arrays.copyOf(children, n);
+    }
+
+    private static final Comparator<NXNode<?>> BY_NAME = new Comparator<NXNode<?>>() {
+        @Override
+        public int compare(NXNode<?> a, NXNode<?> b) {
+            return Integer.compare(a._nameId, b._nameId);
+        }
+    };
+
+    private int indexOfChild(int nameId) {
+        int lo = 0, hi = _children.length - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int id = _children[mid]._nameId;
+            if (id < nameId) lo = mid + 1;
+            else if (id > nameId) hi = mid - 1;
+            else return mid;
+        }
+        return -1;
     }
 
     /**
-     * Gets the name of this node.
+     * Gets the name of this node. Names are decoded from the file's string table the first time they are asked for.
      *
      * @return The name of this node.
      */
     public String getName() {
-        return _name;
+        return _file.getString(_nameId);
     }
 
     /**
@@ -123,26 +159,101 @@ public class NXNode<T> implements Iterable<NXNode<?>> {
         return _value;
     }
 
+    /**
+     * Gets the value contained by this node without blocking the calling thread. Values that are loaded lazily
+     * from the file are loaded on the file's {@link NXFile#getExecutor() executor}.
+     *
+     * @return A future completed with the contained value.
+     */
+    public CompletableFuture<T> getValueAsync() {
+        return CompletableFuture.completedFuture(getValue());
+    }
+
+    /**
+     * Pages in the bitmap and MP3 data of this node and all of its descendants, so that decoding them later does
+     * not stall on page faults. The data is touched in file order.
+     */
+    public void prefetch() {
+        List<long[]> ranges = new ArrayList<long[]>();
+        ArrayDeque<NXNode<?>> pending = new ArrayDeque<NXNode<?>>();
+        pending.push(this);
+        while (!pending.isEmpty()) {
+            NXNode<?> n = pending.pop();
+            long[] r = n.dataRange();
+            if (r != null) ranges.add(r);
+            for (NXNode<?> c : n._children) pending.push(c);
+        }
+        _file.warm(ranges);
+    }
+
+    /**
+     * Runs {@link #prefetch()} on the file's {@link NXFile#getExecutor() executor}.
+     *
+     * @return A future completed once the data has been paged in.
+     */
+    public CompletableFuture<Void> prefetchAsync() {
+        return CompletableFuture.runAsync(new Runnable() {
+            @Override
+            public void run() {
+                prefetch();
+            }
+        }, _file.getExecutor());
+    }
+
+    /**
+     * Estimates the heap memory retained by this node and its descendants, including bitmaps they show that are in
+     * the file's bitmap or PNG cache.
+     *
+     * @return The memory report.
+     */
+    public NXMemoryReport getMemoryReport() {
+        return NXMemoryReport.measure(this, 0, 0);
+    }
+
+    // offset and length of the data this node loads lazily, or null if it has none
+    long[] dataRange() {
+        return null;
+    }
+
     /**
      * Gets the absolute path of this node.
      *
      * @return The path of this node.
      */
     public String getPath() {
-        StringBuilder sb = new StringBuilder(this._name);
+        StringBuilder sb = new StringBuilder(getName());
         NXNode n = this;
-        while ((n = n._parent) != null) sb.insert(0, "/").insert(0, n._name);
+        while ((n = n._parent) != null) sb.insert(0, "/").insert(0, n.getName());
         return sb.toString();
     }
 
     /**
-     * Gets the child with the specified name.
+     * Gets the child with the specified name. The name is matched against the encoded names in the file's string
+     * table, so no child name is decoded.
      *
      * @param name The name of the child to retrieve.
      * @return The child node, or null if this node has no such child.
      */
     public NXNode<?> getChild(String name) {
-        return _children == null ? null : _children.get(name);
+        if (_children.length == 0) return null;
+        int id = _file.findString(name);
+        return id < 0 ? null : getChild(id);
+    }
+
+    NXNode<?> getChild(int nameId) {
+        int i = indexOfChild(nameId);
+        return i < 0 ? null : _children[i];
+    }
+
+    /**
+     * Extracts values from every child of this node in one pass. Each path is resolved relative to each child, and
+     * the values found are stored in primitive columns, one column per path.
+     *
+     * @param paths The paths to extract, relative to each child, in the form x/y/z
+     * @return The extracted columns, with one row per child in iteration order.
+     */
+    public NXProjection project(String... paths) {
+        return new NXProjection(this, paths);
     }
 
     /**
@@ -151,7 +262,7 @@ public class NXNode<T> implements Iterable<NXNode<?>> {
      * @return The number of children nodes.
      */
     public int childCount() {
-        return _children == null ? 0 : _children.size();
+        return _children.length;
     }
 
     /**
@@ -161,13 +272,20 @@ public class NXNode<T> implements Iterable<NXNode<?>> {
      * @return true if the passed node is a direct child; false otherwise
      */
     public boolean hasChild(NXNode<?> child) {
-        return _children == null ? false : _children.containsValue(child);
+        int i = indexOfChild(child._nameId);
+        return i >= 0 && _children[i] == child;
+    }
+
+    // the value if it is already in memory, without loading it
+    Object loadedValue() {
+        return _value;
     }
 
     @Override
     public String toString() {
-        if (_value == null)
+        Object value = loadedValue();
+        if (value == null)
             return String.format("NXNode@%s:%s:%s", getPath(), "null", "null");
-        return String.format("NXNode@%s:%s:%s", getPath(), _value.getClass().getName(), _value);
+        return String.format("NXNode@%s:%s:%s", getPath(), value.getClass().getName(), value);
     }
 }
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2011-2012 angelsl.
+ *
+ * This file is part of libjinx.
+ *
+ * libjinx is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * libjinx is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with libjinx.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library. Thus, the terms and
+ * conditions of the GNU General Public License cover the whole combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent modules,
+ * and to copy and distribute the resulting executable under terms of your
+ * choice, provided that you also meet, for each linked independent module,
+ * the terms and conditions of the license of that module. An independent
+ * module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version
+ * of the library, but you are not obligated to do so. If you do not wish to
+ * do so, delete this exception statement from your version.
+ */
+
+
+package org.angelsl.ms.libjinx;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * An off-heap arena that decoded bitmap pixels can be stored in, keeping them out of the garbage-collected heap.
+ * <p>
+ * Memory is reserved from the operating system in slabs. Each slab is cut into equally sized blocks of one size
+ * class, and released blocks are reused by later allocations of the same class. A class's first slab holds one block
+ * and each later one as many blocks as the class already has, up to the slab size, so a class that is used once
+ * reserves one block. Slabs are never returned to the operating system while the arena is reachable.
+ */
+public class NXPixelArena {
+    /**
+     * The default slab size, 16 MiB.
+     */
+    public static final int DEFAULT_SLAB_SIZE = 16 << 20;
+    private static final int MIN_BLOCK_SIZE = 4096;
+
+    private final int _slabSize;
+    private final int[] _classSizes;
+    private final ArrayDeque<ByteBuffer>[] _free;
+    // blocks carved so far, by class
+    private final int[] _carved;
+    private long _reserved = 0;
+    private long _used = 0;
+
+    /**
+     * Constructs an arena with the default slab size.
+     */
+    public NXPixelArena() {
+        this(DEFAULT_SLAB_SIZE);
+    }
+
+    /**
+     * Constructs an arena with the given slab size. Bitmaps larger than a slab get a block of their own, which is
+     * returned to the operating system when it is released.
+     *
+     * @param slabSize The number of bytes reserved at a time
+     */
+    public NXPixelArena(int slabSize) {
+        if (slabSize < MIN_BLOCK_SIZE) throw new IllegalArgumentException("Slab size must be at least " + MIN_BLOCK_SIZE);
+        _slabSize = slabSize;
+        // four classes per power of two, so at most a quarter of a block is wasted
+        int n = 0;
+        int[] sizes = new int[128];
+        for (long base = MIN_BLOCK_SIZE; base <= slabSize; base <<= 1)
+            for (int q = 4; q < 8 && base * q / 4 <= slabSize; ++q)
+                sizes[n++] = (int) (base * q / 4);
+        _classSizes = new int[n];
+        System.arraycopy(sizes, 0, _classSizes, 0, n);
+        _free = freeLists(n);
+        _carved = new int[n];
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static ArrayDeque<ByteBuffer>[] freeLists(int n) {
+        ArrayDeque<ByteBuffer>[] free = new ArrayDeque[n];
+        for (int i = 0; i < n; ++i) free[i] = new ArrayDeque<ByteBuffer>();
+        return free;
+    }
+
+    /**
+     * Gets the number of bytes this arena has reserved from the operating system.
+     *
+     * @return The reserved byte count.
+     */
+    public synchronized long getReservedBytes() {
+        return _reserved;
+    }
+
+    /**
+     * Gets the number of bytes held by live pixel handles, including rounding to the block size.
+     *
+     * @return The used byte count.
+     */
+    public synchronized long getUsedBytes() {
+        return _used;
+    }
+
+    NXPixels allocate(int width, int height) {
+        long bytes = (long) width * height * 4;
+        if (width < 0 || height < 0 || bytes > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Invalid bitmap size " + width + "x" + height);
+        int size = (int) bytes;
+        int c = sizeClass(size);
+        ByteBuffer block;
+        synchronized (this) {
+            if (c < 0) {
+                block = ByteBuffer.allocateDirect(size);
+                _reserved += size;
+            } else {
+                if (_free[c].isEmpty()) carve(c);
+                block = _free[c].pop();
+            }
+            _used += block.capacity();
+        }
+        return new NXPixels(this, c, block, width, height);
+    }
+
+    synchronized void free(int sizeClass, ByteBuffer block) {
+        _used -= block.capacity();
+        if (sizeClass < 0) _reserved -= block.capacity();
+        else _free[sizeClass].push(block);
+    }
+
+    private int sizeClass(int size) {
+        for (int i = 0; i < _classSizes.length; ++i)
+            if (_classSizes[i] >= size) return i;
+        return -1;
+    }
+
+    private void carve(int sizeClass) {
+        int size = _classSizes[sizeClass];
+        int blocks = Math.min(Math.max(1, _carved[sizeClass]), _slabSize / size);
+        int slabSize = blocks * size;
+        ByteBuffer slab = ByteBuffer.allocateDirect(slabSize);
+        _reserved += slabSize;
+        _carved[sizeClass] += blocks;
+        for (int off = 0; off + size <= slabSize; off += size) {
+            slab.limit(off + size).position(off);
+            _free[sizeClass].push(slab.slice());
+        }
+    }
+}
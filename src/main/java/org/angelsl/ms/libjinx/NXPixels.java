@@ -0,0 +1,125 @@
+/*
+ * Copyright 2011-2012 angelsl.
+ *
+ * This file is part of libjinx.
+ *
+ * libjinx is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * libjinx is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with libjinx.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library. Thus, the terms and
+ * conditions of the GNU General Public License cover the whole combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent modules,
+ * and to copy and distribute the resulting executable under terms of your
+ * choice, provided that you also meet, for each linked independent module,
+ * the terms and conditions of the license of that module. An independent
+ * module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version
+ * of the library, but you are not obligated to do so. If you do not wish to
+ * do so, delete this exception statement from your version.
+ */
+
+
+package org.angelsl.ms.libjinx;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decoded bitmap pixels held in an {@link NXPixelArena}. Pixels are stored row by row as 32-bit little-endian
+ * ARGB values, that is, B, G, R and A bytes in that order.
+ * <p>
+ * A handle starts with one reference, owned by whoever decoded it. The memory is returned to the arena when the
+ * last reference is released; the handle must not be used after that.
+ */
+public class NXPixels {
+    private final NXPixelArena _arena;
+    private final int _sizeClass;
+    private final ByteBuffer _block;
+    private final int _width;
+    private final int _height;
+    private final AtomicInteger _refs = new AtomicInteger(1);
+
+    NXPixels(NXPixelArena arena, int sizeClass, ByteBuffer block, int width, int height) {
+        _arena = arena;
+        _sizeClass = sizeClass;
+        _block = block;
+        _width = width;
+        _height = height;
+    }
+
+    /**
+     * Gets the width of the bitmap.
+     *
+     * @return The width in pixels.
+     */
+    public int getWidth() {
+        return _width;
+    }
+
+    /**
+     * Gets the height of the bitmap.
+     *
+     * @return The height in pixels.
+     */
+    public int getHeight() {
+        return _height;
+    }
+
+    /**
+     * Gets a view of the pixel memory, positioned at the first pixel and limited to the last.
+     *
+     * @return A little-endian direct ByteBuffer over the pixels.
+     * @throws IllegalStateException if the handle has been released
+     */
+    public ByteBuffer getBuffer() {
+        if (_refs.get() <= 0) throw new IllegalStateException("Pixels have been released");
+        ByteBuffer ret = _block.duplicate();
+        ret.clear().limit(_width * _height * 4);
+        return ret.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Adds a reference to this handle.
+     *
+     * @return This handle.
+     * @throws IllegalStateException if the handle has been released
+     */
+    public NXPixels retain() {
+        int r;
+        do {
+            r = _refs.get();
+            if (r <= 0) throw new IllegalStateException("Pixels have been released");
+        } while (!_refs.compareAndSet(r, r + 1));
+        return this;
+    }
+
+    /**
+     * Drops a reference to this handle, returning the memory to the arena if it was the last one.
+     *
+     * @throws IllegalStateException if the handle has already been released
+     */
+    public void release() {
+        int r = _refs.decrementAndGet();
+        if (r == 0) _arena.free(_sizeClass, _block);
+        else if (r < 0) throw new IllegalStateException("Pixels have already been released");
+    }
+
+    ByteBuffer block() {
+        return _block;
+    }
+}
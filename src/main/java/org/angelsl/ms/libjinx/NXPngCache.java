@@ -0,0 +1,188 @@
+/*
+ * Copyright 2011-2012 angelsl.
+ *
+ * This file is part of libjinx.
+ *
+ * libjinx is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * libjinx is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with libjinx.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library. Thus, the terms and
+ * conditions of the GNU General Public License cover the whole combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent modules,
+ * and to copy and distribute the resulting executable under terms of your
+ * choice, provided that you also meet, for each linked independent module,
+ * the terms and conditions of the license of that module. An independent
+ * module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version
+ * of the library, but you are not obligated to do so. If you do not wish to
+ * do so, delete this exception statement from your version.
+ */
+
+
+package org.angelsl.ms.libjinx;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * PNG files encoded from the bitmaps of an NX file, keyed by bitmap ID and scale level. The cache holds at most
+ * {@link #getCapacity()} bytes and drops the least recently used files first.
+ */
+public class NXPngCache {
+    /**
+     * The capacity of a new cache, in bytes.
+     */
+    public static final long DEFAULT_CAPACITY = 64L << 20;
+
+    private final LinkedHashMap<Long, byte[]> _files = new LinkedHashMap<Long, byte[]>(16, 0.75f, true);
+    private final LongAdder _hits = new LongAdder();
+    private final LongAdder _misses = new LongAdder();
+    private final LongAdder _evictions = new LongAdder();
+    private long _capacity = DEFAULT_CAPACITY;
+    private long _bytes = 0;
+
+    NXPngCache() {
+    }
+
+    ByteBuffer get(NXCanvasNode node, int level) {
+        Long key = (long) node.getBitmapId() << 5 | level;
+        byte[] png;
+        synchronized (this) {
+            png = _files.get(key);
+        }
+        if (png != null) {
+            _hits.increment();
+            return ByteBuffer.wrap(png).asReadOnlyBuffer();
+        }
+        _misses.increment();
+        // encoded outside the lock; if two threads race, both encode and the later one's bytes are kept
+        png = node.encodePng(level);
+        if (png == null) return null;
+        synchronized (this) {
+            if (png.length <= _capacity) {
+                byte[] prev = _files.put(key, png);
+                if (prev != null) _bytes -= prev.length;
+                _bytes += png.length;
+                trim();
+            }
+        }
+        return ByteBuffer.wrap(png).asReadOnlyBuffer();
+    }
+
+    // bytes held for every cached level of a bitmap, with their array headers
+    synchronized long cachedBytes(int bitmapId) {
+        long total = 0;
+        for (int level = 0; level <= NXCanvasNode.MAX_LEVEL; ++level) {
+            byte[] png = _files.get((long) bitmapId << 5 | level);
+            if (png != null) total += (16 + png.length + 7) & ~7L;
+        }
+        return total;
+    }
+
+    // drops least recently used files until the cache fits its capacity
+    private void trim() {
+        Iterator<Map.Entry<Long, byte[]>> it = _files.entrySet().iterator();
+        while (_bytes > _capacity && it.hasNext()) {
+            _bytes -= it.next().getValue().length;
+            it.remove();
+            _evictions.increment();
+        }
+    }
+
+    /**
+     * Sets the most bytes of PNG data this cache holds, dropping files if it holds more. Files larger than the
+     * capacity are encoded but not cached.
+     *
+     * @param capacity The capacity in bytes
+     */
+    public synchronized void setCapacity(long capacity) {
+        if (capacity < 0) throw new IllegalArgumentException("Invalid capacity " + capacity);
+        _capacity = capacity;
+        trim();
+    }
+
+    /**
+     * Gets the most bytes of PNG data this cache holds.
+     *
+     * @return The capacity in bytes.
+     */
+    public synchronized long getCapacity() {
+        return _capacity;
+    }
+
+    /**
+     * Drops every cached file.
+     */
+    public synchronized void clear() {
+        _files.clear();
+        _bytes = 0;
+    }
+
+    /**
+     * Gets the number of files in the cache.
+     *
+     * @return The number of cached files.
+     */
+    public synchronized int getEntryCount() {
+        return _files.size();
+    }
+
+    /**
+     * Gets the number of bytes of PNG data held by the cache.
+     *
+     * @return The cached byte count.
+     */
+    public synchronized long getCachedBytes() {
+        return _bytes;
+    }
+
+    /**
+     * Gets the number of requests served from the cache.
+     *
+     * @return The hit count.
+     */
+    public long getHitCount() {
+        return _hits.sum();
+    }
+
+    /**
+     * Gets the number of requests that had to encode a file.
+     *
+     * @return The miss count.
+     */
+    public long getMissCount() {
+        return _misses.sum();
+    }
+
+    /**
+     * Gets the number of files dropped to stay within the capacity.
+     *
+     * @return The eviction count.
+     */
+    public long getEvictionCount() {
+        return _evictions.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("NXPngCache:%d entries:%d bytes:%d capacity:%d hits:%d misses:%d evictions",
+                getEntryCount(), getCachedBytes(), getCapacity(), getHitCount(), getMissCount(), getEvictionCount());
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright 2011-2012 angelsl.
+ *
+ * This file is part of libjinx.
+ *
+ * libjinx is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * libjinx is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with libjinx.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library. Thus, the terms and
+ * conditions of the GNU General Public License cover the whole combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent modules,
+ * and to copy and distribute the resulting executable under terms of your
+ * choice, provided that you also meet, for each linked independent module,
+ * the terms and conditions of the license of that module. An independent
+ * module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version
+ * of the library, but you are not obligated to do so. If you do not wish to
+ * do so, delete this exception statement from your version.
+ */
+
+
+package org.angelsl.ms.libjinx;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.regex.Pattern;
+
+/**
+ * Values extracted from every child of a node into primitive columns, one column per path. See
+ * {@link NXNode#project(String...)}.
+ * <p>
+ * A column holds integers, doubles or string IDs, depending on the first value found for it. Integers found in a
+ * double column are widened; if doubles are found in an integer column, the whole column is widened. Rows where the
+ * path does not exist, or holds a value of another kind, are null.
+ */
+public class NXProjection {
+    /**
+     * The kind of values held by a column.
+     */
+    public enum ColumnType {
+        /**
+         * No row had a value for this column.
+         */
+        NONE,
+        INT,
+        DOUBLE,
+        /**
+         * String IDs, which can be turned into strings with {@link NXProjection#getString(int)}. Equal strings share
+         * an ID.
+         */
+        STRING
+    }
+
+    private final NXFile _file;
+    private final NXNode<?>[] _rows;
+    private final String[] _paths;
+    private final ColumnType[] _types;
+    private final int[][] _ints;
+    private final double[][] _doubles;
+    // set bits mark rows with a value
+    private final BitSet[] _present;
+
+    NXProjection(NXNode<?> parent, String[] paths) {
+        _file = parent._file;
+        _rows = parent._children;
+        _paths = paths.clone();
+        int cols = paths.length, rows = _rows.length;
+        _types = new ColumnType[cols];
+        _ints = new int[cols][];
+        _doubles = new double[cols][];
+        _present = new BitSet[cols];
+        // resolve every path segment to a name index once, up front
+        int[][] segments = new int[cols][];
+        for (int c = 0; c < cols; ++c) {
+            _types[c] = ColumnType.NONE;
+            _present[c] = new BitSet(rows);
+            segments[c] = resolve(paths[c]);
+        }
+        for (int r = 0; r < rows; ++r) {
+            NXNode<?> row = _rows[r];
+            for (int c = 0; c < cols; ++c) {
+                int[] seg = segments[c];
+                if (seg == null) continue;
+                NXNode<?> n = row;
+                for (int i = 0; n != null && i < seg.length; ++i) n = n.getChild(seg[i]);
+                if (n instanceof NXLinkNode) n = ((NXLinkNode) n).fullyResolve();
+                if (n != null) store(c, r, n);
+            }
+        }
+    }
+
+    private int[] resolve(String path) {
+        String[] parts = (path.startsWith("/") ? path.substring(1) : path).split(Pattern.quote("/"));
+        int[] ids = new int[parts.length];
+        int n = 0;
+        for (String p : parts) {
+            if (p.isEmpty() || p.equals(".")) continue;
+            int id = _file.findString(p);
+            if (id < 0) return null;
+            ids[n++] = id;
+        }
+        return n == ids.length ? ids : Arrays.copyOf(ids, n);
+    }
+
+    private void store(int c, int r, NXNode<?> node) {
+        Object value = node._value;
+        ColumnType t = _types[c];
+        if (value instanceof Integer) {
+            if (t == ColumnType.NONE) {
+                _types[c] = t = ColumnType.INT;
+                _ints[c] = new int[_rows.length];
+            }
+            if (t == ColumnType.INT) _ints[c][r] = (Integer) value;
+            else if (t == ColumnType.DOUBLE) _doubles[c][r] = (Integer) value;
+            else return;
+        } else if (value instanceof Double) {
+            if (t == ColumnType.NONE || t == ColumnType.INT) {
+                double[] d = new double[_rows.length];
+                if (t == ColumnType.INT) {
+                    int[] ints = _ints[c];
+                    for (int i = 0; i < r; ++i) d[i] = ints[i];
+                    _ints[c] = null;
+                }
+                _types[c] = t = ColumnType.DOUBLE;
+                _doubles[c] = d;
+            }
+            if (t != ColumnType.DOUBLE) return;
+            _doubles[c][r] = (Double) value;
+        } else if (node instanceof NXStringNode) {
+            if (t == ColumnType.NONE) {
+                _types[c] = t = ColumnType.STRING;
+                _ints[c] = new int[_rows.length];
+            }
+            if (t != ColumnType.STRING) return;
+            _ints[c][r] = ((NXStringNode) node)._valueId;
+        } else {
+            return;
+        }
+        _present[c].set(r);
+    }
+
+    /**
+     * Gets the number of rows, which is the number of children of the projected node.
+     *
+     * @return The row count.
+     */
+    public int getRowCount() {
+        return _rows.length;
+    }
+
+    /**
+     * Gets the number of columns, which is the number of paths projected.
+     *
+     * @return The column count.
+     */
+    public int getColumnCount() {
+        return _paths.length;
+    }
+
+    /**
+     * Gets the child a row was extracted from.
+     *
+     * @param row The row
+     * @return The child node.
+     */
+    public NXNode<?> getRowNode(int row) {
+        return _rows[row];
+    }
+
+    /**
+     * Gets the path a column was extracted from.
+     *
+     * @param column The column
+     * @return The path.
+     */
+    public String getPath(int column) {
+        return _paths[column];
+    }
+
+    /**
+     * Gets the kind of values a column holds.
+     *
+     * @param column The column
+     * @return The column type.
+     */
+    public ColumnType getType(int column) {
+        return _types[column];
+    }
+
+    /**
+     * Checks whether a row has no value for a column.
+     *
+     * @param column The column
+     * @param row    The row
+     * @return true if the value is null.
+     */
+    public boolean isNull(int column, int row) {
+        return !_present[column].get(row);
+    }
+
+    /**
+     * Gets the null bitmap of a column. The returned set is a copy.
+     *
+     * @param column The column
+     * @return A set with a bit set for every row whose value is null.
+     */
+    public BitSet getNullBitmap(int column) {
+        BitSet nulls = (BitSet) _present[column].clone();
+        nulls.flip(0, _rows.length);
+        return nulls;
+    }
+
+    /**
+     * Gets the values of an integer column. Null rows hold 0. The returned array is not copied.
+     *
+     * @param column The column
+     * @return The values, or null if the column is not an integer column.
+     */
+    public int[] getIntColumn(int column) {
+        return _types[column] == ColumnType.INT ? _ints[column] : null;
+    }
+
+    /**
+     * Gets the values of a double column. Null rows hold 0. The returned array is not copied.
+     *
+     * @param column The column
+     * @return The values, or null if the column is not a double column.
+     */
+    public double[] getDoubleColumn(int column) {
+        return _types[column] == ColumnType.DOUBLE ? _doubles[column] : null;
+    }
+
+    /**
+     * Gets the string IDs of a string column. Null rows hold 0. The returned array is not copied.
+     *
+     * @param column The column
+     * @return The string IDs, or null if the column is not a string column.
+     */
+    public int[] getStringColumn(int column) {
+        return _types[column] == ColumnType.STRING ? _ints[column] : null;
+    }
+
+    /**
+     * Gets the string with the given ID.
+     *
+     * @param id A string ID from a string column
+     * @return The string.
+     */
+    public String getString(int id) {
+        return _file.getString(id);
+    }
+}
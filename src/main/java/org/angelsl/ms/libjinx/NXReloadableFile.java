@@ -0,0 +1,141 @@
+/*
+ * Copyright 2011-2012 angelsl.
+ *
+ * This file is part of libjinx.
+ *
+ * libjinx is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * libjinx is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with libjinx.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library. Thus, the terms and
+ * conditions of the GNU General Public License cover the whole combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent modules,
+ * and to copy and distribute the resulting executable under terms of your
+ * choice, provided that you also meet, for each linked independent module,
+ * the terms and conditions of the license of that module. An independent
+ * module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version
+ * of the library, but you are not obligated to do so. If you do not wish to
+ * do so, delete this exception statement from your version.
+ */
+
+
+package org.angelsl.ms.libjinx;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * An NX file on disk that can be reloaded while it is in use.
+ * <p>
+ * Readers take a {@link Lease} on the current version of the file and read through it. {@link #reload()} swaps
+ * in a new version for later leases; the old version is unmapped once its last lease is closed.
+ */
+public class NXReloadableFile implements Closeable {
+    private final String _path;
+    private final NXStorageConfig _storage;
+    private final NXFile.Option[] _options;
+    private final AtomicReference<NXFile> _current;
+
+    /**
+     * A reader's hold on one version of the file. The version stays mapped until the lease is closed.
+     */
+    public static class Lease implements Closeable {
+        private final NXFile _file;
+        private boolean _closed = false;
+
+        Lease(NXFile file) {
+            _file = file;
+        }
+
+        /**
+         * Gets the version of the file this lease holds.
+         *
+         * @return The leased file.
+         */
+        public NXFile getFile() {
+            return _file;
+        }
+
+        @Override
+        public void close() {
+            if (_closed) return;
+            _closed = true;
+            _file.endLease();
+        }
+    }
+
+    /**
+     * Opens the NX file at the given path.
+     *
+     * @param path    The path the NX file is located at
+     * @param options The optional passes to run each time the file is loaded
+     */
+    public NXReloadableFile(String path, NXFile.Option... options) throws IOException, NXException {
+        this(path, NXStorageConfig.mapped(), options);
+    }
+
+    /**
+     * Opens the NX file at the given path, reading it as the given configuration says.
+     *
+     * @param path    The path the NX file is located at
+     * @param storage How to read the file each time it is loaded
+     * @param options The optional passes to run each time the file is loaded
+     */
+    public NXReloadableFile(String path, NXStorageConfig storage, NXFile.Option... options) throws IOException, NXException {
+        _path = path;
+        _storage = storage;
+        _options = options.clone();
+        _current = new AtomicReference<NXFile>(new NXFile(path, _storage, _options));
+    }
+
+    /**
+     * Takes a lease on the current version of the file.
+     *
+     * @return A lease that must be closed when the caller is done reading.
+     * @throws IllegalStateException if this handle has been closed
+     */
+    public Lease acquire() {
+        while (true) {
+            NXFile f = _current.get();
+            if (f == null) throw new IllegalStateException("NX file handle is closed");
+            if (f.tryRetain()) return new Lease(f);
+            // swapped out and closed since we read it; try the new version
+        }
+    }
+
+    /**
+     * Loads the file from disk again and makes it the current version. Leases on the old version remain valid
+     * until they are closed.
+     *
+     * @throws IllegalStateException if this handle has been closed
+     */
+    public synchronized void reload() throws IOException, NXException {
+        if (_current.get() == null) throw new IllegalStateException("NX file handle is closed");
+        NXFile old = _current.getAndSet(new NXFile(_path, _storage, _options));
+        old.close();
+    }
+
+    /**
+     * Closes the current version of the file. It is unmapped once its last lease is closed.
+     */
+    @Override
+    public synchronized void close() {
+        NXFile old = _current.getAndSet(null);
+        if (old != null) old.close();
+    }
+}
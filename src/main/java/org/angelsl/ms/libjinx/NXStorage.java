@@ -0,0 +1,116 @@
+/*
+ * Copyright 2011-2012 angelsl.
+ *
+ * This file is part of libjinx.
+ *
+ * libjinx is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * libjinx is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with libjinx.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library. Thus, the terms and
+ * conditions of the GNU General Public License cover the whole combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent modules,
+ * and to copy and distribute the resulting executable under terms of your
+ * choice, provided that you also meet, for each linked independent module,
+ * the terms and conditions of the license of that module. An independent
+ * module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version
+ * of the library, but you are not obligated to do so. If you do not wish to
+ * do so, delete this exception statement from your version.
+ */
+
+
+package org.angelsl.ms.libjinx;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * The bytes of an NX file, read at absolute offsets. {@link NXStorageConfig} picks the implementation.
+ */
+abstract class NXStorage implements Closeable {
+    /**
+     * The number of bytes in the file.
+     */
+    abstract long size();
+
+    abstract byte getByte(long offset);
+
+    abstract short getShort(long offset);
+
+    abstract int getInt(long offset);
+
+    abstract long getLong(long offset);
+
+    abstract void get(long offset, byte[] dest, int destOffset, int length);
+
+    /**
+     * Decompresses an LZ4 block into a direct buffer.
+     *
+     * @param offset The offset of the compressed data
+     * @param length The length of the compressed data
+     * @return The number of bytes written, or a negative number if the block is corrupt.
+     */
+    abstract int decompress(long offset, int length, ByteBuffer dest, int destOffset);
+
+    /**
+     * Decompresses an LZ4 block of BGRA pixels into ARGB ints, writing at most maxPixels of them.
+     *
+     * @param offset The offset of the compressed data
+     * @param length The length of the compressed data
+     * @return The number of pixels written, or a negative number if the block is corrupt or inflates past maxPixels.
+     * @throws UnsatisfiedLinkError if the native library cannot do this
+     */
+    abstract int decompressToARGB(long offset, int length, int[] dest, int destOffset, int maxPixels,
+                                  boolean premultiply);
+
+    /**
+     * Computes the CRC-32 of a range of the file.
+     *
+     * @return The checksum.
+     */
+    long crc32(long offset, long length) {
+        CRC32 crc = new CRC32();
+        byte[] b = new byte[(int) Math.min(length, 1 << 16)];
+        while (length > 0) {
+            int n = (int) Math.min(length, b.length);
+            get(offset, b, 0, n);
+            crc.update(b, 0, n);
+            offset += n;
+            length -= n;
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Estimates the heap held by the storage itself, such as cached blocks; a mapping holds none.
+     */
+    long retainedBytes() {
+        return 0;
+    }
+
+    /**
+     * Asks the operating system to read the whole file in.
+     */
+    abstract void load();
+
+    /**
+     * Releases the file. Nothing may be read afterwards.
+     */
+    @Override
+    public abstract void close();
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2011-2012 angelsl.
+ *
+ * This file is part of libjinx.
+ *
+ * libjinx is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * libjinx is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with libjinx.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library. Thus, the terms and
+ * conditions of the GNU General Public License cover the whole combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent modules,
+ * and to copy and distribute the resulting executable under terms of your
+ * choice, provided that you also meet, for each linked independent module,
+ * the terms and conditions of the license of that module. An independent
+ * module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version
+ * of the library, but you are not obligated to do so. If you do not wish to
+ * do so, delete this exception statement from your version.
+ */
+
+
+package org.angelsl.ms.libjinx;
+
+import java.io.IOException;
+
+/**
+ * How an NX file is read. {@link #mapped()} maps the whole file, which is the fastest way to read it; {@link
+ * #channel()} reads it with positional reads through a fixed-size block cache, which keeps address space and
+ * resident memory bounded, for 32-bit runtimes, tight container limits, or many large files open at once.
+ * <p>
+ * Configurations are immutable; each <code>with</code> method returns a changed copy. Those methods configure the
+ * block cache, so they throw on {@link #mapped()}.
+ */
+public final class NXStorageConfig {
+    /**
+     * How a block cache picks the block to drop when it is full.
+     */
+    public enum Eviction {
+        /**
+         * Drops the least recently used block. Every hit takes its shard's lock to record the use.
+         */
+        LRU,
+        /**
+         * Drops a block not used since the clock hand last passed it. Hits take no lock.
+         */
+        CLOCK
+    }
+
+    private static final NXStorageConfig MAPPED = new NXStorageConfig(true, 64 << 10, 64L << 20, Eviction.CLOCK, 4, 0);
+
+    final boolean _mapped;
+    final int _blockSize;
+    final long _cacheSize;
+    final Eviction _eviction;
+    final int _readahead;
+    final int _shards;
+
+    private NXStorageConfig(boolean mapped, int blockSize, long cacheSize, Eviction eviction, int readahead,
+                            int shards) {
+        _mapped = mapped;
+        _blockSize = blockSize;
+        _cacheSize = cacheSize;
+        _eviction = eviction;
+        _readahead = readahead;
+        _shards = shards;
+    }
+
+    /**
+     * Gets the configuration that maps the whole file, as {@link NXFile#NXFile(String)} does.
+     *
+     * @return The mapped configuration.
+     */
+    public static NXStorageConfig mapped() {
+        return MAPPED;
+    }
+
+    /**
+     * Gets a configuration that reads the file through a block cache of 64 MiB in 64 KiB blocks, with
+     * {@link Eviction#CLOCK} eviction, a readahead of 4 blocks, and a shard count picked from the processor count.
+     *
+     * @return The channel configuration.
+     */
+    public static NXStorageConfig channel() {
+        return new NXStorageConfig(false, MAPPED._blockSize, MAPPED._cacheSize, MAPPED._eviction, MAPPED._readahead, 0);
+    }
+
+    /**
+     * Sets the size of a cache block.
+     *
+     * @param bytes The block size, a power of two from 4 KiB to 16 MiB
+     * @return The changed configuration.
+     * @throws IllegalStateException if this is the mapped configuration
+     */
+    public NXStorageConfig withBlockSize(int bytes) {
+        checkChannel();
+        if (bytes < 4096 || bytes > 16 << 20 || Integer.bitCount(bytes) != 1)
+            throw new IllegalArgumentException("Invalid block size " + bytes);
+        return new NXStorageConfig(_mapped, bytes, _cacheSize, _eviction, _readahead, _shards);
+    }
+
+    /**
+     * Sets the most bytes the block cache holds.
+     *
+     * @param bytes The cache size, at least one block per shard
+     * @return The changed configuration.
+     * @throws IllegalStateException if this is the mapped configuration
+     */
+    public NXStorageConfig withCacheSize(long bytes) {
+        checkChannel();
+        if (bytes <= 0) throw new IllegalArgumentException("Invalid cache size " + bytes);
+        return new NXStorageConfig(_mapped, _blockSize, bytes, _eviction, _readahead, _shards);
+    }
+
+    /**
+     * Sets how the block cache picks blocks to drop.
+     *
+     * @param eviction The eviction policy
+     * @return The changed configuration.
+     * @throws IllegalStateException if this is the mapped configuration
+     */
+    public NXStorageConfig withEviction(Eviction eviction) {
+        checkChannel();
+        if (eviction == null) throw new IllegalArgumentException("No eviction policy");
+        return new NXStorageConfig(_mapped, _blockSize, _cacheSize, eviction, _readahead, _shards);
+    }
+
+    /**
+     * Sets how many blocks past a miss are read with it when misses run in file order.
+     *
+     * @param blocks The readahead in blocks, 0 to turn it off
+     * @return The changed configuration.
+     * @throws IllegalStateException if this is the mapped configuration
+     */
+    public NXStorageConfig withReadahead(int blocks) {
+        checkChannel();
+        if (blocks < 0 || blocks > 1024) throw new IllegalArgumentException("Invalid readahead " + blocks);
+        return new NXStorageConfig(_mapped, _blockSize, _cacheSize, _eviction, blocks, _shards);
+    }
+
+    /**
+     * Sets how many independently locked parts the block cache is split into.
+     *
+     * @param shards The shard count, a power of two, or 0 to pick one from the processor count
+     * @return The changed configuration.
+     * @throws IllegalStateException if this is the mapped configuration
+     */
+    public NXStorageConfig withShards(int shards) {
+        checkChannel();
+        if (shards < 0 || shards > 1024 || shards != 0 && Integer.bitCount(shards) != 1)
+            throw new IllegalArgumentException("Invalid shard count " + shards);
+        return new NXStorageConfig(_mapped, _blockSize, _cacheSize, _eviction, _readahead, shards);
+    }
+
+    private void checkChannel() {
+        if (_mapped) throw new IllegalStateException("Mapped storage has no block cache");
+    }
+
+    NXStorage open(String path) throws IOException {
+        return _mapped ? NXBufferStorage.map(path) : NXChannelStorage.open(path, this);
+    }
+
+    @Override
+    public String toString() {
+        if (_mapped) return "NXStorageConfig:mapped";
+        return String.format("NXStorageConfig:channel block:%d cache:%d eviction:%s readahead:%d shards:%d",
+                _blockSize, _cacheSize, _eviction, _readahead, _shards);
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2011-2012 angelsl.
+ *
+ * This file is part of libjinx.
+ *
+ * libjinx is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * libjinx is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with libjinx.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library. Thus, the terms and
+ * conditions of the GNU General Public License cover the whole combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent modules,
+ * and to copy and distribute the resulting executable under terms of your
+ * choice, provided that you also meet, for each linked independent module,
+ * the terms and conditions of the license of that module. An independent
+ * module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version
+ * of the library, but you are not obligated to do so. If you do not wish to
+ * do so, delete this exception statement from your version.
+ */
+
+
+package org.angelsl.ms.libjinx;
+
+import java.io.UTFDataFormatException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The string table of an NX file, kept as the encoded bytes of every string. Strings are decoded the first time they
+ * are asked for, and lookups by name compare encoded bytes, so looking up a child does not decode any names.
+ * <p>
+ * Strings are expected in modified UTF-8. Strings that are not, such as standard UTF-8 with supplementary
+ * characters, are decoded when the table is read and hashed and compared by their decoded value instead.
+ */
+class NXStringTable {
+    private static final int FNV_OFFSET = 0x811C9DC5, FNV_PRIME = 0x01000193;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // the encoded strings, back to back; string i is _bytes[_offs[i] .. _offs[i + 1])
+    private final byte[] _bytes;
+    private final int[] _offs;
+    // open-addressed hash of canonical string IDs + 1; 0 marks an empty slot
+    private final int[] _index;
+    // canonical ID of each string, or null if the table has no duplicates
+    private final int[] _canon;
+    // strings that are not modified UTF-8 without NULs, or null if there are none
+    private final BitSet _foreign;
+    private final AtomicReferenceArray<String> _decoded;
+
+    NXStringTable(LittleEndianReader ler, int count) throws NXException {
+        _offs = new int[count + 1];
+        byte[] bytes = new byte[Math.max(16, count * 16)];
+        int used = 0;
+        for (int i = 0; i < count; ++i) {
+            int len = ler.readUShort();
+            if (used + len > bytes.length) {
+                long grown = Math.max((long) bytes.length * 2, (long) used + len);
+                if (grown > Integer.MAX_VALUE - 8)
+                    throw new NXException("Unable to parse NX file; string table too large (Java limitation)");
+                byte[] g = new byte[(int) grown];
+                System.arraycopy(bytes, 0, g, 0, used);
+                bytes = g;
+            }
+            ler.read(bytes, used, len);
+            _offs[i] = used;
+            used += len;
+        }
+        _offs[count] = used;
+        _bytes = bytes.length == used ? bytes : Arrays.copyOf(bytes, used);
+        _decoded = new AtomicReferenceArray<String>(count);
+        BitSet foreign = null;
+        for (int i = 0; i < count; ++i) {
+            if (!isModifiedUTF(_bytes, _offs[i], _offs[i + 1])) {
+                if (foreign == null) foreign = new BitSet(count);
+                foreign.set(i);
+            }
+        }
+        _foreign = foreign;
+
+        int slots = Integer.highestOneBit(Math.max(2, count) * 2 - 1) << 1;
+        _index = new int[slots];
+        int[] canon = null;
+        for (int i = 0; i < count; ++i) {
+            int s = hash(i) & (slots - 1);
+            int found = -1;
+            for (int e; (e = _index[s]) != 0; s = (s + 1) & (slots - 1)) {
+                if (equal(e - 1, i)) {
+                    found = e - 1;
+                    break;
+                }
+            }
+            if (found < 0) {
+                _index[s] = i + 1;
+                if (canon != null) canon[i] = i;
+            } else {
+                if (canon == null) {
+                    canon = new int[count];
+                    for (int j = 0; j < i; ++j) canon[j] = j;
+                }
+                canon[i] = found;
+            }
+        }
+        _canon = canon;
+    }
+
+    int size() {
+        return _offs.length - 1;
+    }
+
+    /**
+     * Gets the length of every encoded string together, without length prefixes.
+     */
+    int encodedBytes() {
+        return _bytes.length;
+    }
+
+    /**
+     * Maps a string ID to the ID of the first string in the table with the same contents.
+     */
+    int canonical(int id) {
+        return _canon == null ? id : _canon[id];
+    }
+
+    /**
+     * Decodes a string, caching the result.
+     */
+    String get(int id) {
+        String s = _decoded.get(id);
+        if (s != null) return s;
+        int off = _offs[id], len = _offs[id + 1] - off;
+        try {
+            s = LittleEndianReader.decodeUTF(_bytes, off, len);
+        } catch (UTFDataFormatException e) {
+            // not modified UTF-8; some writers emit standard UTF-8 instead
+            s = new String(_bytes, off, len, UTF_8);
+        }
+        return _decoded.compareAndSet(id, null, s) ? s : _decoded.get(id);
+    }
+
+    /**
+     * Gets a string if it has already been decoded.
+     *
+     * @return The string, or null if it has not been decoded yet.
+     */
+    String peek(int id) {
+        return _decoded.get(id);
+    }
+
+    /**
+     * Finds the canonical ID of a string without decoding any strings in the table.
+     *
+     * @return The ID, or -1 if the table has no such string.
+     */
+    int find(String str) {
+        int mask = _index.length - 1;
+        for (int s = hash(str) & mask, e; (e = _index[s]) != 0; s = (s + 1) & mask) {
+            int id = e - 1;
+            if (isForeign(id) ? get(id).equals(str) : matches(id, str)) return id;
+        }
+        return -1;
+    }
+
+    private boolean isForeign(int id) {
+        return _foreign != null && _foreign.get(id);
+    }
+
+    // whether string id is the modified UTF-8 encoding of str
+    private boolean matches(int id, String str) {
+        int p = _offs[id], end = _offs[id + 1];
+        for (int i = 0; i < str.length(); ++i) {
+            char c = str.charAt(i);
+            if (c != 0 && c < 0x80) {
+                if (p + 1 > end || _bytes[p++] != (byte) c) return false;
+            } else if (c < 0x800) {
+                if (p + 2 > end || _bytes[p++] != (byte) (0xC0 | (c >> 6))
+                        || _bytes[p++] != (byte) (0x80 | (c & 0x3F))) return false;
+            } else {
+                if (p + 3 > end || _bytes[p++] != (byte) (0xE0 | (c >> 12))
+                        || _bytes[p++] != (byte) (0x80 | ((c >> 6) & 0x3F))
+                        || _bytes[p++] != (byte) (0x80 | (c & 0x3F))) return false;
+            }
+        }
+        return p == end;
+    }
+
+    // the hash of the modified UTF-8 encoding of str
+    private static int hash(String str) {
+        int h = FNV_OFFSET;
+        for (int i = 0; i < str.length(); ++i) {
+            char c = str.charAt(i);
+            if (c != 0 && c < 0x80) {
+                h = (h ^ c) * FNV_PRIME;
+            } else if (c < 0x800) {
+                h = (h ^ (0xC0 | (c >> 6))) * FNV_PRIME;
+                h = (h ^ (0x80 | (c & 0x3F))) * FNV_PRIME;
+            } else {
+                h = (h ^ (0xE0 | (c >> 12))) * FNV_PRIME;
+                h = (h ^ (0x80 | ((c >> 6) & 0x3F))) * FNV_PRIME;
+                h = (h ^ (0x80 | (c & 0x3F))) * FNV_PRIME;
+            }
+        }
+        return h;
+    }
+
+    private int hash(int id) {
+        if (isForeign(id)) return hash(get(id));
+        int h = FNV_OFFSET;
+        for (int p = _offs[id], end = _offs[id + 1]; p < end; ++p) h = (h ^ (_bytes[p] & 0xFF)) * FNV_PRIME;
+        return h;
+    }
+
+    private boolean equal(int a, int b) {
+        if (isForeign(a) || isForeign(b)) return get(a).equals(get(b));
+        int pa = _offs[a], pb = _offs[b], len = _offs[a + 1] - pa;
+        if (_offs[b + 1] - pb != len) return false;
+        for (int i = 0; i < len; ++i)
+            if (_bytes[pa + i] != _bytes[pb + i]) return false;
+        return true;
+    }
+
+    // whether b[from..to) decodes as modified UTF-8 and has no NUL bytes, which find() would encode differently
+    private static boolean isModifiedUTF(byte[] b, int from, int to) {
+        for (int p = from; p < to; ) {
+            int c = b[p] & 0xFF;
+            if (c >= 0x01 && c < 0x80) {
+                ++p;
+            } else if (c >> 5 == 0x06) {
+                if (p + 2 > to || (b[p + 1] & 0xC0) != 0x80) return false;
+                p += 2;
+            } else if (c >> 4 == 0x0E) {
+                if (p + 3 > to || (b[p + 1] & 0xC0) != 0x80 || (b[p + 2] & 0xC0) != 0x80) return false;
+                p += 3;
+            } else {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Estimates the heap retained by the encoded table, not counting decoded strings.
+     */
+    long retainedBytes() {
+        return 16 + _bytes.length + 16 + 4L * _offs.length + 16 + 4L * _index.length
+                + (_canon == null ? 0 : 16 + 4L * _canon.length) + 16 + 4L * _offs.length
+                + (_foreign == null ? 0 : 24 + 16 + 8L * ((_offs.length + 62) / 64));
+    }
+}
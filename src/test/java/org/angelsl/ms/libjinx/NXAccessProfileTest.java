@@ -0,0 +1,89 @@
+/*
+ * Copyright 2011-2012 angelsl.
+ *
+ * This file is part of libjinx.
+ *
+ * libjinx is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * libjinx is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with libjinx.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library. Thus, the terms and
+ * conditions of the GNU General Public License cover the whole combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent modules,
+ * and to copy and distribute the resulting executable under terms of your
+ * choice, provided that you also meet, for each linked independent module,
+ * the terms and conditions of the license of that module. An independent
+ * module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version
+ * of the library, but you are not obligated to do so. If you do not wish to
+ * do so, delete this exception statement from your version.
+ */
+
+
+package org.angelsl.ms.libjinx;
+
+import java.awt.image.BufferedImage;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class NXAccessProfileTest extends TestCase {
+    private static String file() throws Exception {
+        NXTestFile w = new NXTestFile();
+        int a = w.bitmap(new BufferedImage(32, 32, BufferedImage.TYPE_INT_ARGB));
+        int b = w.bitmap(new BufferedImage(16, 16, BufferedImage.TYPE_INT_ARGB));
+        w.node("", NXTestFile.NONE, 0, 2);
+        w.node("a", NXTestFile.CANVAS, a, 0);
+        w.node("b", NXTestFile.CANVAS, b, 0);
+        return w.write();
+    }
+
+    public void testReplayIsNotRecorded() throws Exception {
+        NXFile f = new NXFile(file());
+        try {
+            f.startRecording();
+            f.getBaseNode().getChild("a").getValue();
+            f.getBaseNode().getChild("a").getValue();
+            f.getBaseNode().getChild("b").getValue();
+            NXAccessProfile saved = f.stopRecording();
+            List<NXAccessProfile.Item> items = saved.getItems();
+            assertEquals(2, items.size());
+            assertEquals("a", items.get(0).getPath());
+            assertEquals(2, items.get(0).getHits());
+
+            f.getBitmapCache().clear();
+            NXAccessProfile live = f.startRecording();
+            f.replay(saved, 2).get();
+            assertTrue(live.getItems().isEmpty());
+            f.getBaseNode().getChild("b").getValue();
+            assertEquals(1, live.getItems().size());
+        } finally {
+            f.close();
+        }
+    }
+
+    public void testNegativeLimitIsRejected() throws Exception {
+        NXFile f = new NXFile(file());
+        try {
+            f.replay(new NXAccessProfile(), -1);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        } finally {
+            f.close();
+        }
+    }
+}
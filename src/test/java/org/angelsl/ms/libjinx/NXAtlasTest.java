@@ -0,0 +1,138 @@
+/*
+ * Copyright 2011-2012 angelsl.
+ *
+ * This file is part of libjinx.
+ *
+ * libjinx is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * libjinx is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with libjinx.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library. Thus, the terms and
+ * conditions of the GNU General Public License cover the whole combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent modules,
+ * and to copy and distribute the resulting executable under terms of your
+ * choice, provided that you also meet, for each linked independent module,
+ * the terms and conditions of the license of that module. An independent
+ * module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version
+ * of the library, but you are not obligated to do so. If you do not wish to
+ * do so, delete this exception statement from your version.
+ */
+
+
+package org.angelsl.ms.libjinx;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+public class NXAtlasTest extends TestCase {
+    private static BufferedImage image(int w, int h, int seed) {
+        BufferedImage bi = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < h; ++y)
+            for (int x = 0; x < w; ++x) bi.setRGB(x, y, 0xFF000000 | seed << 16 | y << 8 | x);
+        return bi;
+    }
+
+    // canvases "0".."n-1" of the given sizes, followed by "dup", which shows the first canvas's bitmap
+    private static NXFile file(int[][] sizes) throws Exception {
+        NXTestFile w = new NXTestFile();
+        int[] ids = new int[sizes.length];
+        for (int i = 0; i < sizes.length; ++i) ids[i] = w.bitmap(image(sizes[i][0], sizes[i][1], i));
+        w.node("", NXTestFile.NONE, 0, sizes.length + 1);
+        for (int i = 0; i < sizes.length; ++i) w.node(Integer.toString(i), NXTestFile.CANVAS, ids[i], 0);
+        w.node("dup", NXTestFile.CANVAS, ids[0], 0);
+        return new NXFile(w.write());
+    }
+
+    private static void assertPacked(NXFile f, NXAtlas atlas, int[][] sizes, int padding) {
+        List<List<Rectangle>> placed = new ArrayList<List<Rectangle>>();
+        for (int p = 0; p < atlas.getPages().size(); ++p) placed.add(new ArrayList<Rectangle>());
+        for (int i = 0; i < sizes.length; ++i) {
+            NXAtlas.Region r = atlas.getRegion((NXCanvasNode) f.getBaseNode().getChild(Integer.toString(i)));
+            assertNotNull(r);
+            assertEquals(sizes[i][0], r.getWidth());
+            assertEquals(sizes[i][1], r.getHeight());
+            BufferedImage page = atlas.getPages().get(r.getPage());
+            assertTrue(r.getX() >= 0 && r.getX() + r.getWidth() <= page.getWidth());
+            assertTrue(r.getY() >= 0 && r.getY() + r.getHeight() <= page.getHeight());
+            Rectangle rect = new Rectangle(r.getX(), r.getY(), r.getWidth() + padding, r.getHeight() + padding);
+            for (Rectangle other : placed.get(r.getPage())) assertFalse(rect.intersects(other));
+            placed.get(r.getPage()).add(rect);
+            BufferedImage expected = image(sizes[i][0], sizes[i][1], i);
+            for (int y = 0; y < r.getHeight(); ++y)
+                for (int x = 0; x < r.getWidth(); ++x)
+                    assertEquals(expected.getRGB(x, y), page.getRGB(r.getX() + x, r.getY() + y));
+        }
+    }
+
+    public void testPacking() throws Exception {
+        int[][] sizes = {{30, 20}, {10, 40}, {25, 25}, {1, 1}, {64, 3}, {7, 9}};
+        NXFile f = file(sizes);
+        try {
+            NXAtlas atlas = NXAtlas.build(f.getBaseNode(), 128, 2);
+            assertEquals(1, atlas.getPages().size());
+            assertPacked(f, atlas, sizes, 2);
+            assertEquals(sizes.length + 1, atlas.getRegions().size());
+        } finally {
+            f.close();
+        }
+    }
+
+    public void testSharedBitmapsShareARegion() throws Exception {
+        NXFile f = file(new int[][] {{12, 8}, {5, 5}});
+        try {
+            NXAtlas atlas = NXAtlas.build(f.getBaseNode());
+            Map<NXCanvasNode, NXAtlas.Region> regions = atlas.getRegions();
+            assertSame(regions.get(f.getBaseNode().getChild("0")), regions.get(f.getBaseNode().getChild("dup")));
+            assertNotSame(regions.get(f.getBaseNode().getChild("0")), regions.get(f.getBaseNode().getChild("1")));
+        } finally {
+            f.close();
+        }
+    }
+
+    public void testPageOverflow() throws Exception {
+        // the 40x40 bitmaps fill a 64x64 page each, and the 100x10 one is larger than a page
+        int[][] sizes = {{40, 40}, {40, 40}, {40, 40}, {100, 10}};
+        NXFile f = file(sizes);
+        try {
+            NXAtlas atlas = NXAtlas.build(f.getBaseNode(), 64, 1);
+            assertEquals(4, atlas.getPages().size());
+            assertPacked(f, atlas, sizes, 1);
+            for (BufferedImage page : atlas.getPages()) assertTrue(page.getHeight() <= 64);
+            NXAtlas.Region wide = atlas.getRegion((NXCanvasNode) f.getBaseNode().getChild("3"));
+            assertEquals(100, atlas.getPages().get(wide.getPage()).getWidth());
+        } finally {
+            f.close();
+        }
+    }
+
+    public void testInvalidArguments() throws Exception {
+        NXFile f = file(new int[][] {{1, 1}});
+        try {
+            NXAtlas.build(f.getBaseNode(), 0, 1);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        } finally {
+            f.close();
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2011-2012 angelsl.
+ *
+ * This file is part of libjinx.
+ *
+ * libjinx is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * libjinx is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with libjinx.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library. Thus, the terms and
+ * conditions of the GNU General Public License cover the whole combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent modules,
+ * and to copy and distribute the resulting executable under terms of your
+ * choice, provided that you also meet, for each linked independent module,
+ * the terms and conditions of the license of that module. An independent
+ * module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version
+ * of the library, but you are not obligated to do so. If you do not wish to
+ * do so, delete this exception statement from your version.
+ */
+
+
+package org.angelsl.ms.libjinx;
+
+import com.github.decster.jnicompressions.Lz4Compression;
+
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class NXCanvasNodeTest extends TestCase {
+    private static final int WIDTH = 300, HEIGHT = 200, BAND_ROWS = 16;
+
+    private static BufferedImage image() {
+        BufferedImage bi = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < HEIGHT; ++y)
+            for (int x = 0; x < WIDTH; ++x) bi.setRGB(x, y, 0xFF000000 | x << 12 | y);
+        return bi;
+    }
+
+    // a file with the record as the only bitmap, shown by canvas "c"
+    private static NXCanvasNode open(byte[] record) throws Exception {
+        NXTestFile w = new NXTestFile();
+        int id = w.bitmap(record);
+        w.node("", NXTestFile.NONE, 0, 1);
+        w.node("c", NXTestFile.CANVAS, id, 0);
+        return (NXCanvasNode) new NXFile(w.write()).getBaseNode().getChild("c");
+    }
+
+    private static ByteBuffer chunked() {
+        return ByteBuffer.wrap(NXBitmapEncoder.encode(image(), BAND_ROWS)).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static void assertRejected(ByteBuffer record) throws Exception {
+        NXCanvasNode c = open(record.array());
+        assertNull(c.decodeImage(false));
+        assertNull(c.getValue());
+        assertNull(c.getValue(2));
+    }
+
+    public void testChunkedRoundTrip() throws Exception {
+        ByteBuffer record = chunked();
+        assertTrue((record.getInt(4) & 0x80000000) != 0);
+        BufferedImage expected = image(), actual = open(record.array()).getValue();
+        for (int y = 0; y < HEIGHT; ++y)
+            for (int x = 0; x < WIDTH; ++x) assertEquals(expected.getRGB(x, y), actual.getRGB(x, y));
+    }
+
+    public void testChunkEndPastRecord() throws Exception {
+        ByteBuffer record = chunked();
+        int count = record.getInt(12), last = 16 + 4 * (count - 1);
+        record.putInt(last, record.getInt(last) + 1);
+        assertRejected(record);
+        record.putInt(last, Integer.MAX_VALUE);
+        assertRejected(record);
+    }
+
+    public void testChunkEndBeforePrevious() throws Exception {
+        ByteBuffer record = chunked();
+        record.putInt(20, record.getInt(16) - 1);
+        assertRejected(record);
+    }
+
+    public void testRecordPastFile() throws Exception {
+        ByteBuffer chunkedRecord = chunked();
+        chunkedRecord.putInt(4, 0x80000000 | 0x7FFFFFF0);
+        assertRejected(chunkedRecord);
+        ByteBuffer single = ByteBuffer.wrap(NXBitmapEncoder.encode(image(), 0)).order(ByteOrder.LITTLE_ENDIAN);
+        single.putInt(4, 0x7FFFFFF0);
+        assertRejected(single);
+    }
+
+    public void testChunkInflatingPastBand() throws Exception {
+        BufferedImage bi = image();
+        ByteBuffer raw = ByteBuffer.allocateDirect(WIDTH * HEIGHT * 4).order(ByteOrder.LITTLE_ENDIAN);
+        for (int y = 0; y < HEIGHT; ++y)
+            for (int x = 0; x < WIDTH; ++x) raw.putInt(bi.getRGB(x, y));
+        Lz4Compression lz4 = new Lz4Compression();
+        int chunkSize = BAND_ROWS * WIDTH * 4, count = (HEIGHT + BAND_ROWS - 1) / BAND_ROWS;
+        ByteBuffer data = ByteBuffer.allocate(WIDTH * HEIGHT * 8).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer scratch = ByteBuffer.allocateDirect(4 + lz4.MaxCompressedSize(2 * chunkSize));
+        int[] ends = new int[count];
+        for (int i = 0; i < count; ++i) {
+            // the first chunk holds two bands, so it inflates into the second band's rows
+            int len = i == 0 ? 2 * chunkSize : Math.min(chunkSize, raw.capacity() - i * chunkSize);
+            int n = lz4.CompressDirect(raw, i * chunkSize, len, scratch, 0);
+            scratch.clear().limit(n);
+            data.put(scratch);
+            scratch.clear();
+            ends[i] = data.position();
+        }
+        ByteBuffer record = ByteBuffer.allocate(8 + 8 + 4 * count + data.position()).order(ByteOrder.LITTLE_ENDIAN);
+        record.putShort((short) WIDTH).putShort((short) HEIGHT).putInt((record.capacity() - 8) | 0x80000000);
+        record.putInt(chunkSize).putInt(count);
+        for (int end : ends) record.putInt(end);
+        record.put(data.array(), 0, data.position());
+        assertRejected(record);
+    }
+
+    // a naive box filter weighting colours by alpha, as NXCanvasNode documents
+    private static int expectedScaled(BufferedImage src, int level, int x, int y) {
+        int x1 = Math.min(src.getWidth(), (x + 1) << level), y1 = Math.min(src.getHeight(), (y + 1) << level);
+        long a = 0, r = 0, g = 0, b = 0, n = 0;
+        for (int sy = y << level; sy < y1; ++sy) {
+            for (int sx = x << level; sx < x1; ++sx) {
+                int p = src.getRGB(sx, sy), pa = p >>> 24;
+                a += pa;
+                r += ((p >> 16) & 0xFF) * pa;
+                g += ((p >> 8) & 0xFF) * pa;
+                b += (p & 0xFF) * pa;
+                ++n;
+            }
+        }
+        return a == 0 ? 0 : (int) ((a + n / 2) / n) << 24
+                | (int) ((r + a / 2) / a) << 16 | (int) ((g + a / 2) / a) << 8 | (int) ((b + a / 2) / a);
+    }
+
+    public void testScaledLevelsMatchBoxFilter() throws Exception {
+        Random rnd = new Random(33);
+        BufferedImage src = new BufferedImage(301, 203, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < src.getHeight(); ++y)
+            for (int x = 0; x < src.getWidth(); ++x) src.setRGB(x, y, rnd.nextInt(3) == 0 ? 0 : rnd.nextInt());
+        // banded records are filtered band by band, single blocks after a full decode
+        for (int bandRows : new int[] {0, 1, 7, 16}) {
+            NXCanvasNode c = open(NXBitmapEncoder.encode(src, bandRows));
+            for (int level = 1; level <= NXCanvasNode.MAX_LEVEL; level += level < 4 ? 1 : 6) {
+                BufferedImage scaled = c.getValue(level);
+                assertEquals(Math.max(1, (301 + (1 << level) - 1) >> level), scaled.getWidth());
+                assertEquals(Math.max(1, (203 + (1 << level) - 1) >> level), scaled.getHeight());
+                for (int y = 0; y < scaled.getHeight(); ++y)
+                    for (int x = 0; x < scaled.getWidth(); ++x)
+                        assertEquals(expectedScaled(src, level, x, y), scaled.getRGB(x, y));
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2011-2012 angelsl.
+ *
+ * This file is part of libjinx.
+ *
+ * libjinx is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * libjinx is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with libjinx.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library. Thus, the terms and
+ * conditions of the GNU General Public License cover the whole combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent modules,
+ * and to copy and distribute the resulting executable under terms of your
+ * choice, provided that you also meet, for each linked independent module,
+ * the terms and conditions of the license of that module. An independent
+ * module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version
+ * of the library, but you are not obligated to do so. If you do not wish to
+ * do so, delete this exception statement from your version.
+ */
+
+
+package org.angelsl.ms.libjinx;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class NXChannelStorageTest extends TestCase {
+    private static final int BLOCK = 4096, SIZE = 6 * BLOCK - 123;
+
+    private byte[] _data;
+    private ByteBuffer _expected;
+    private File _file;
+
+    @Override
+    protected void setUp() throws Exception {
+        _data = new byte[SIZE];
+        new Random(1).nextBytes(_data);
+        _expected = ByteBuffer.wrap(_data).order(ByteOrder.LITTLE_ENDIAN);
+        _file = File.createTempFile("libjinx-test", ".bin");
+        Files.write(_file.toPath(), _data);
+    }
+
+    @Override
+    protected void tearDown() {
+        _file.delete();
+    }
+
+    private NXChannelStorage open(int cacheBlocks, int readahead) throws Exception {
+        return NXChannelStorage.open(_file.getPath(), NXStorageConfig.channel().withBlockSize(BLOCK)
+                .withCacheSize((long) cacheBlocks * BLOCK).withReadahead(readahead).withShards(1));
+    }
+
+    private void assertReads(NXStorage s, long offset) {
+        assertEquals(_expected.get((int) offset), s.getByte(offset));
+        if (offset + 2 <= SIZE) assertEquals(_expected.getShort((int) offset), s.getShort(offset));
+        if (offset + 4 <= SIZE) assertEquals(_expected.getInt((int) offset), s.getInt(offset));
+        if (offset + 8 <= SIZE) assertEquals(_expected.getLong((int) offset), s.getLong(offset));
+    }
+
+    private void assertGet(NXStorage s, int offset, int length) {
+        byte[] b = new byte[length + 2];
+        s.get(offset, b, 1, length);
+        assertTrue(Arrays.equals(Arrays.copyOfRange(_data, offset, offset + length), Arrays.copyOfRange(b, 1, length + 1)));
+    }
+
+    public void testReadsAcrossBlocks() throws Exception {
+        // two blocks of cache, so blocks are evicted and read again
+        NXChannelStorage s = open(2, 0);
+        try {
+            assertEquals(SIZE, s.size());
+            for (int b = 1; b < 6; ++b)
+                for (long o = b * BLOCK - 8; o < b * BLOCK + 1 && o < SIZE; ++o) assertReads(s, o);
+            for (long o = SIZE - 8; o < SIZE; ++o) assertReads(s, o);
+            assertGet(s, BLOCK - 10, 20);
+            assertGet(s, BLOCK - 10, 3 * BLOCK);
+            assertGet(s, 0, SIZE);
+            assertGet(s, SIZE - 1, 1);
+            Random r = new Random(2);
+            for (int i = 0; i < 1000; ++i) assertReads(s, r.nextInt(SIZE));
+            try {
+                s.get(SIZE - 4, new byte[8], 0, 8);
+                fail();
+            } catch (IndexOutOfBoundsException e) {
+                // expected
+            }
+        } finally {
+            s.close();
+        }
+    }
+
+    public void testReadahead() throws Exception {
+        NXChannelStorage s = open(8, 3);
+        try {
+            for (int b = 0; b < 6; ++b) assertReads(s, b * BLOCK);
+            // block 0 alone, then blocks 1 to 4 in one read, then block 5
+            assertEquals(3, s._reads.sum());
+            for (long o = 0; o < SIZE; o += 61) assertReads(s, o);
+            assertEquals(3, s._reads.sum());
+        } finally {
+            s.close();
+        }
+    }
+
+    public void testReopensAfterInterrupt() throws Exception {
+        NXChannelStorage s = open(2, 0);
+        try {
+            assertReads(s, 0);
+            // an interrupted read closes the channel; the storage reopens it and keeps the interrupt
+            Thread.currentThread().interrupt();
+            assertReads(s, 3 * BLOCK + 5);
+            assertTrue(Thread.interrupted());
+            assertGet(s, 0, SIZE);
+        } finally {
+            Thread.interrupted();
+            s.close();
+        }
+        try {
+            s.getByte(5 * BLOCK);
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    public void testMappedHasNoBlockCache() {
+        try {
+            NXStorageConfig.mapped().withBlockSize(BLOCK);
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2011-2012 angelsl.
+ *
+ * This file is part of libjinx.
+ *
+ * libjinx is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * libjinx is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with libjinx.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library. Thus, the terms and
+ * conditions of the GNU General Public License cover the whole combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent modules,
+ * and to copy and distribute the resulting executable under terms of your
+ * choice, provided that you also meet, for each linked independent module,
+ * the terms and conditions of the license of that module. An independent
+ * module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version
+ * of the library, but you are not obligated to do so. If you do not wish to
+ * do so, delete this exception statement from your version.
+ */
+
+
+package org.angelsl.ms.libjinx;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import junit.framework.TestCase;
+
+public class NXDiskCacheTest extends TestCase {
+    private static final int WIDTH = 64, HEIGHT = 48;
+
+    private File _cacheFile;
+    private String _nxPath;
+
+    @Override
+    protected void setUp() throws Exception {
+        _cacheFile = File.createTempFile("libjinx-test", ".cache");
+        _cacheFile.delete();
+        BufferedImage bi = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < HEIGHT; ++y)
+            for (int x = 0; x < WIDTH; ++x) bi.setRGB(x, y, 0xFF000000 | x << 16 | y << 8 | (x ^ y));
+        NXTestFile w = new NXTestFile();
+        int id = w.bitmap(bi);
+        w.node("", NXTestFile.NONE, 0, 1);
+        w.node("c", NXTestFile.CANVAS, id, 0);
+        _nxPath = w.write();
+    }
+
+    @Override
+    protected void tearDown() {
+        _cacheFile.delete();
+    }
+
+    // decodes the canvas through a fresh file sharing the cache
+    private BufferedImage decode(NXDiskCache cache) throws Exception {
+        return decode(_nxPath, cache);
+    }
+
+    private static BufferedImage decode(String nxPath, NXDiskCache cache) throws Exception {
+        NXFile f = new NXFile(nxPath);
+        try {
+            f.setDiskCache(cache);
+            return ((NXCanvasNode) f.getBaseNode().getChild("c")).decodeImage(false);
+        } finally {
+            f.close();
+        }
+    }
+
+    private static void assertImage(BufferedImage bi) {
+        assertNotNull(bi);
+        for (int y = 0; y < HEIGHT; ++y)
+            for (int x = 0; x < WIDTH; ++x) assertEquals(0xFF000000 | x << 16 | y << 8 | (x ^ y), bi.getRGB(x, y));
+    }
+
+    // the position of the only used index slot in the cache file
+    private static long usedSlot(RandomAccessFile raf) throws Exception {
+        ByteBuffer b = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        raf.getChannel().read(b, 16);
+        int slots = b.getInt(0);
+        for (int s = 0; s < slots; ++s) {
+            b.clear();
+            raf.getChannel().read(b, 64 + 24L * s);
+            if (b.getLong(0) != 0) return 64 + 24L * s;
+        }
+        fail("no entry in the cache");
+        return -1;
+    }
+
+    private static void putLong(RandomAccessFile raf, long position, long value) throws Exception {
+        raf.getChannel().write((ByteBuffer) ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(value).flip(),
+                position);
+    }
+
+    public void testRoundTrip() throws Exception {
+        NXDiskCache cache = NXDiskCache.open(_cacheFile.getPath(), 1 << 20);
+        assertImage(decode(cache));
+        assertEquals(1, cache.getEntryCount());
+        NXDiskCache shared = NXDiskCache.open(_cacheFile.getPath(), 1 << 20);
+        assertImage(decode(shared));
+        assertEquals(1, shared.getHitCount());
+    }
+
+    public void testCorruptEntryIsAMiss() throws Exception {
+        NXDiskCache cache = NXDiskCache.open(_cacheFile.getPath(), 1 << 20);
+        assertImage(decode(cache));
+        try (RandomAccessFile raf = new RandomAccessFile(_cacheFile, "rw")) {
+            long slot = usedSlot(raf);
+            for (long offset : new long[] {(1 << 20) - 16, Long.MAX_VALUE, -64, 64}) {
+                putLong(raf, slot + 16, offset);
+                long misses = cache.getMissCount();
+                assertImage(decode(cache));
+                assertEquals(misses + 1, cache.getMissCount());
+            }
+        }
+    }
+
+    public void testCorruptTailIsRejected() throws Exception {
+        NXDiskCache cache = NXDiskCache.open(_cacheFile.getPath(), 1 << 20);
+        try (RandomAccessFile raf = new RandomAccessFile(_cacheFile, "rw")) {
+            putLong(raf, 24, 0);
+            assertImage(decode(cache));
+            assertEquals(1, cache.getRejectedCount());
+            assertEquals(0, cache.getEntryCount());
+        }
+        // the header was not overwritten
+        assertEquals(0, NXDiskCache.open(_cacheFile.getPath(), 1 << 20).getEntryCount());
+    }
+
+    public void testPatchKeepingLengthIsAMiss() throws Exception {
+        BufferedImage bi = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < HEIGHT; ++y)
+            for (int x = 0; x < WIDTH; ++x) bi.setRGB(x, y, 0xFF000000 | x << 16 | y << 8 | (x ^ y));
+        byte[] record = NXBitmapEncoder.encode(bi);
+        // an LZ4 block ends in literals, so this is the blue byte of the last pixel
+        record[record.length - 4] ^= (byte) 0xFF;
+        NXTestFile w = new NXTestFile();
+        int id = w.bitmap(record);
+        w.node("", NXTestFile.NONE, 0, 1);
+        w.node("c", NXTestFile.CANVAS, id, 0);
+        String patched = w.write();
+
+        NXDiskCache cache = NXDiskCache.open(_cacheFile.getPath(), 1 << 20);
+        assertImage(decode(cache));
+        BufferedImage p = decode(patched, cache);
+        assertEquals(0, cache.getHitCount());
+        assertEquals(2, cache.getEntryCount());
+        int last = 0xFF000000 | (WIDTH - 1) << 16 | (HEIGHT - 1) << 8 | ((WIDTH - 1) ^ (HEIGHT - 1));
+        assertEquals(last ^ 0xFF, p.getRGB(WIDTH - 1, HEIGHT - 1));
+        new File(patched).delete();
+    }
+
+    public void testClose() throws Exception {
+        NXDiskCache cache = NXDiskCache.open(_cacheFile.getPath(), 1 << 20);
+        NXFile f = new NXFile(_nxPath);
+        f.setDiskCache(cache);
+        cache.close();
+        assertTrue(cache.isClosed());
+        try {
+            decode(cache);
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        // the file holds the mapping until it is closed
+        assertImage(((NXCanvasNode) f.getBaseNode().getChild("c")).decodeImage(false));
+        assertEquals(1, cache.getEntryCount());
+        f.close();
+        assertNull(f.getDiskCache());
+        assertFalse(cache.read(1, new int[1], 0, 1));
+        try {
+            cache.getEntryCount();
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals("NXDiskCache:closed", cache.toString());
+        cache.close();
+    }
+
+    public void testReplacingReleases() throws Exception {
+        NXDiskCache cache = NXDiskCache.open(_cacheFile.getPath(), 1 << 20);
+        NXFile f = new NXFile(_nxPath);
+        try {
+            f.setDiskCache(cache);
+            f.setDiskCache(null);
+            cache.close();
+            try {
+                cache.getUsedBytes();
+                fail();
+            } catch (IllegalStateException e) {
+                // expected
+            }
+        } finally {
+            f.close();
+        }
+    }
+}
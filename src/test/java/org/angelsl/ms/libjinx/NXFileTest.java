@@ -0,0 +1,80 @@
+/*
+ * Copyright 2011-2012 angelsl.
+ *
+ * This file is part of libjinx.
+ *
+ * libjinx is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * libjinx is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with libjinx.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library. Thus, the terms and
+ * conditions of the GNU General Public License cover the whole combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent modules,
+ * and to copy and distribute the resulting executable under terms of your
+ * choice, provided that you also meet, for each linked independent module,
+ * the terms and conditions of the license of that module. An independent
+ * module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version
+ * of the library, but you are not obligated to do so. If you do not wish to
+ * do so, delete this exception statement from your version.
+ */
+
+
+package org.angelsl.ms.libjinx;
+
+import junit.framework.TestCase;
+
+public class NXFileTest extends TestCase {
+    private static NXFile file() throws Exception {
+        NXTestFile w = new NXTestFile();
+        w.node("", NXTestFile.NONE, 0, 2);
+        w.node("name", NXTestFile.STRING, w.string("value"), 0);
+        w.node("sound", NXTestFile.AUDIO, w.sound(new byte[] {1, 2, 3, 4}), 0);
+        return new NXFile(w.write());
+    }
+
+    private static void assertClosed(NXMP3Node sound) {
+        try {
+            sound.read(0, new byte[4], 0, 4);
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    public void testReadsAfterCloseThrow() throws Exception {
+        NXFile f = file();
+        NXMP3Node sound = (NXMP3Node) f.getBaseNode().getChild("sound");
+        assertEquals(4, sound.read(0, new byte[4], 0, 4));
+        assertFalse(f.isClosed());
+        f.close();
+        assertTrue(f.isClosed());
+        assertClosed(sound);
+        // values parsed with the tree are kept
+        assertEquals("value", f.getBaseNode().getChild("name").getValue());
+        f.close();
+    }
+
+    public void testReadsStartedAfterCloseThrowWhileOthersRun() throws Exception {
+        NXFile f = file();
+        NXMP3Node sound = (NXMP3Node) f.getBaseNode().getChild("sound");
+        f.beginRead();
+        f.close();
+        assertClosed(sound);
+        f.endRead();
+        assertClosed(sound);
+    }
+}
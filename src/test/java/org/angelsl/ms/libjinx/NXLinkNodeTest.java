@@ -0,0 +1,121 @@
+/*
+ * Copyright 2011-2012 angelsl.
+ *
+ * This file is part of libjinx.
+ *
+ * libjinx is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * libjinx is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with libjinx.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library. Thus, the terms and
+ * conditions of the GNU General Public License cover the whole combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent modules,
+ * and to copy and distribute the resulting executable under terms of your
+ * choice, provided that you also meet, for each linked independent module,
+ * the terms and conditions of the license of that module. An independent
+ * module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version
+ * of the library, but you are not obligated to do so. If you do not wish to
+ * do so, delete this exception statement from your version.
+ */
+
+
+package org.angelsl.ms.libjinx;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class NXLinkNodeTest extends TestCase {
+    // a chain, a cycle, a link into the cycle and a dangling link, with node IDs in the order they are added
+    private static String path() throws Exception {
+        NXTestFile w = new NXTestFile();
+        w.node("", NXTestFile.NONE, 0, 7);
+        w.node("t", NXTestFile.INTEGER, 42, 0);
+        w.node("a", NXTestFile.LINK, 1, 0);
+        w.node("b", NXTestFile.LINK, 2, 0);
+        w.node("x", NXTestFile.LINK, 5, 0);
+        w.node("y", NXTestFile.LINK, 4, 0);
+        w.node("d", NXTestFile.LINK, 99, 0);
+        w.node("z", NXTestFile.LINK, 4, 0);
+        return w.write();
+    }
+
+    private static NXLinkNode link(NXFile f, String name) {
+        return (NXLinkNode) f.getBaseNode().getChild(name);
+    }
+
+    private static HashSet<String> names(List<NXLinkNode> links) {
+        HashSet<String> ret = new HashSet<String>();
+        for (NXLinkNode l : links) ret.add(l.getName());
+        return ret;
+    }
+
+    private static void assertResolved(NXFile f) {
+        NXNode<?> t = f.getBaseNode().getChild("t");
+        assertSame(link(f, "a"), link(f, "b").getValue());
+        assertSame(t, link(f, "a").fullyResolve());
+        assertSame(t, link(f, "b").fullyResolve());
+        assertNull(link(f, "x").fullyResolve());
+        assertNull(link(f, "y").fullyResolve());
+        assertNull(link(f, "z").fullyResolve());
+        assertNull(link(f, "d").getValue());
+        assertNull(link(f, "d").fullyResolve());
+    }
+
+    public void testResolveLinks() throws Exception {
+        NXFile f = new NXFile(path(), NXFile.Option.RESOLVE_LINKS);
+        try {
+            assertResolved(f);
+            NXLinkReport report = f.getLinkReport();
+            assertEquals(6, report.getLinkCount());
+            assertEquals(new HashSet<String>(Arrays.asList("x", "y", "z")), names(report.getCyclicLinks()));
+            assertEquals(new HashSet<String>(Arrays.asList("d")), names(report.getDanglingLinks()));
+            assertFalse(report.isClean());
+            assertEquals("NXLinkReport:6 links:3 cyclic:1 dangling", report.toString());
+        } finally {
+            f.close();
+        }
+    }
+
+    public void testLazyResolution() throws Exception {
+        NXFile f = new NXFile(path());
+        try {
+            assertNull(f.getLinkReport());
+            assertResolved(f);
+        } finally {
+            f.close();
+        }
+    }
+
+    public void testCleanReport() throws Exception {
+        NXTestFile w = new NXTestFile();
+        w.node("", NXTestFile.NONE, 0, 3);
+        w.node("t", NXTestFile.INTEGER, 42, 0);
+        w.node("b", NXTestFile.LINK, 3, 0);
+        w.node("a", NXTestFile.LINK, 1, 0);
+        NXFile f = new NXFile(w.write(), NXFile.Option.RESOLVE_LINKS);
+        try {
+            assertTrue(f.getLinkReport().isClean());
+            assertEquals(2, f.getLinkReport().getLinkCount());
+            assertSame(f.getBaseNode().getChild("t"), link(f, "b").fullyResolve());
+        } finally {
+            f.close();
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2011-2012 angelsl.
+ *
+ * This file is part of libjinx.
+ *
+ * libjinx is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * libjinx is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with libjinx.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library. Thus, the terms and
+ * conditions of the GNU General Public License cover the whole combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent modules,
+ * and to copy and distribute the resulting executable under terms of your
+ * choice, provided that you also meet, for each linked independent module,
+ * the terms and conditions of the license of that module. An independent
+ * module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version
+ * of the library, but you are not obligated to do so. If you do not wish to
+ * do so, delete this exception statement from your version.
+ */
+
+
+package org.angelsl.ms.libjinx;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class NXMP3NodeTest extends TestCase {
+    // MPEG 1 layer III at 128 kbps and 44.1 kHz without padding: 417 bytes and 1152 samples a frame
+    private static final int HEADER = 0xFFFB9000, FRAME = 417, FRAMES = 10;
+    // a 10-byte ID3 header with 20 bytes of tag, then 5 bytes that are not a frame
+    private static final int FIRST = 35;
+
+    private static byte[] frames() {
+        byte[] data = new byte[FIRST + FRAMES * FRAME + 3];
+        data[0] = 'I';
+        data[1] = 'D';
+        data[2] = '3';
+        data[9] = 20;
+        for (int i = 0; i < FRAMES; ++i) {
+            int p = FIRST + i * FRAME;
+            for (int j = 0; j < 4; ++j) data[p + j] = (byte) (HEADER >>> (24 - 8 * j));
+            Arrays.fill(data, p + 4, p + FRAME, (byte) i);
+        }
+        return data;
+    }
+
+    private static NXMP3Node sound(byte[] data) throws Exception {
+        NXTestFile w = new NXTestFile();
+        w.node("", NXTestFile.NONE, 0, 1);
+        w.node("s", NXTestFile.AUDIO, w.sound(data), 0);
+        return (NXMP3Node) new NXFile(w.write()).getBaseNode().getChild("s");
+    }
+
+    private static void assertFrames(byte[] data, int from, int to, byte[] slice) {
+        assertTrue(Arrays.equals(Arrays.copyOfRange(data, FIRST + from * FRAME, FIRST + to * FRAME), slice));
+    }
+
+    public void testIndex() throws Exception {
+        NXMP3Index index = sound(frames()).getIndex();
+        assertEquals(FRAMES, index.getFrameCount());
+        assertEquals(44100, index.getSampleRate());
+        for (int i = 0; i <= FRAMES; ++i) assertEquals(FIRST + i * FRAME, index.getFrameOffset(i));
+        assertEquals(26, index.getFrameTime(1));
+        assertEquals(261, index.getDurationMillis());
+        assertEquals(0, index.frameAt(-5));
+        assertEquals(0, index.frameAt(26));
+        assertEquals(1, index.frameAt(27));
+        assertEquals(FRAMES, index.frameAt(100000));
+        assertEquals(FIRST + FRAME, index.offsetAt(27));
+        try {
+            index.getFrameOffset(FRAMES + 1);
+            fail();
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+    }
+
+    public void testSliceBoundaries() throws Exception {
+        byte[] data = frames();
+        NXMP3Node s = sound(data);
+        // the frame playing at the end time is included
+        assertFrames(data, 0, 1, s.getSlice(0, 0));
+        assertFrames(data, 0, 2, s.getSlice(26, 27));
+        assertFrames(data, 1, 2, s.getSlice(27, 27));
+        assertFrames(data, 0, FRAMES, s.getSlice(-100, 100000));
+        assertEquals(0, s.getSlice(100000, 200000).length);
+    }
+
+    public void testWriteTo() throws Exception {
+        byte[] data = frames();
+        NXMP3Node s = sound(data);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(100, s.writeTo(out, 400, 100));
+        assertTrue(Arrays.equals(Arrays.copyOfRange(data, 400, 500), out.toByteArray()));
+        // cut short at the end of the data
+        out.reset();
+        assertEquals(10, s.writeTo(out, data.length - 10, 100));
+        assertTrue(Arrays.equals(Arrays.copyOfRange(data, data.length - 10, data.length), out.toByteArray()));
+        out.reset();
+        assertEquals(0, s.writeTo(out, data.length, 100));
+        assertEquals(-1, s.read(data.length, new byte[1], 0, 1));
+    }
+
+    public void testNotMPEGAudio() throws Exception {
+        byte[] data = new byte[1000];
+        for (int i = 0; i < data.length; ++i) data[i] = (byte) (i * 7);
+        NXMP3Node s = sound(data);
+        assertEquals(0, s.getIndex().getFrameCount());
+        assertEquals(0, s.getIndex().getDurationMillis());
+        assertEquals(0, s.getSlice(0, 1000).length);
+    }
+}
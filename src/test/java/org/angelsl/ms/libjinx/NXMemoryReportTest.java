@@ -0,0 +1,90 @@
+/*
+ * Copyright 2011-2012 angelsl.
+ *
+ * This file is part of libjinx.
+ *
+ * libjinx is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * libjinx is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with libjinx.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library. Thus, the terms and
+ * conditions of the GNU General Public License cover the whole combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent modules,
+ * and to copy and distribute the resulting executable under terms of your
+ * choice, provided that you also meet, for each linked independent module,
+ * the terms and conditions of the license of that module. An independent
+ * module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version
+ * of the library, but you are not obligated to do so. If you do not wish to
+ * do so, delete this exception statement from your version.
+ */
+
+
+package org.angelsl.ms.libjinx;
+
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+public class NXMemoryReportTest extends TestCase {
+    private static String file() throws Exception {
+        BufferedImage bi = new BufferedImage(120, 80, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < 80; ++y)
+            for (int x = 0; x < 120; ++x) bi.setRGB(x, y, 0xFF000000 | x * y * 977);
+        NXTestFile w = new NXTestFile();
+        int id = w.bitmap(bi);
+        w.node("", NXTestFile.NONE, 0, 2);
+        w.node("a", NXTestFile.CANVAS, id, 0);
+        w.node("b", NXTestFile.CANVAS, id, 0);
+        return w.write();
+    }
+
+    public void testPngCacheIsCounted() throws Exception {
+        NXFile f = new NXFile(file());
+        try {
+            NXMemoryReport before = f.getMemoryReport();
+            assertEquals(0, before.getPngBytes());
+            NXCanvasNode a = (NXCanvasNode) f.getBaseNode().getChild("a");
+            ByteBuffer png0 = a.getPng(0), png1 = a.getPng(1);
+            NXMemoryReport after = f.getMemoryReport();
+            // counted once although two nodes show the bitmap
+            long expected = 16 + png0.remaining() + 16 + png1.remaining();
+            assertTrue(after.getPngBytes() >= expected && after.getPngBytes() < expected + 16);
+            assertEquals(after.getTreeBytes() + after.getStringBytes() + after.getBitmapBytes() + after.getPngBytes()
+                    + after.getAudioBytes() + after.getStorageBytes(), after.getTotalBytes());
+            assertEquals(0, after.getStorageBytes());
+            assertEquals(after.getPngBytes(), a.getMemoryReport().getPngBytes());
+            f.getPngCache().clear();
+            assertEquals(0, f.getMemoryReport().getPngBytes());
+        } finally {
+            f.close();
+        }
+    }
+
+    public void testChannelBlocksAreCounted() throws Exception {
+        NXFile f = new NXFile(file(), NXStorageConfig.channel().withBlockSize(4096).withCacheSize(1 << 20));
+        try {
+            f.getBaseNode().getChild("a").getValue();
+            NXMemoryReport report = f.getMemoryReport();
+            assertTrue(report.getStorageBytes() >= 16 + 4096);
+            assertTrue(report.getStorageBytes() <= (1 << 20) + (1 << 20) / 4096 * 16);
+            assertEquals(0, f.getBaseNode().getChild("a").getMemoryReport().getStorageBytes());
+        } finally {
+            f.close();
+        }
+    }
+}
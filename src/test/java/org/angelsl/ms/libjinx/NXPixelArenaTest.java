@@ -0,0 +1,133 @@
+/*
+ * Copyright 2011-2012 angelsl.
+ *
+ * This file is part of libjinx.
+ *
+ * libjinx is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * libjinx is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with libjinx.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library. Thus, the terms and
+ * conditions of the GNU General Public License cover the whole combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent modules,
+ * and to copy and distribute the resulting executable under terms of your
+ * choice, provided that you also meet, for each linked independent module,
+ * the terms and conditions of the license of that module. An independent
+ * module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version
+ * of the library, but you are not obligated to do so. If you do not wish to
+ * do so, delete this exception statement from your version.
+ */
+
+
+package org.angelsl.ms.libjinx;
+
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+public class NXPixelArenaTest extends TestCase {
+    public void testFreedBlocksAreReused() {
+        NXPixelArena arena = new NXPixelArena();
+        NXPixels a = arena.allocate(10, 10);
+        assertEquals(400, a.getBuffer().remaining());
+        assertEquals(4096, arena.getReservedBytes());
+        assertEquals(4096, arena.getUsedBytes());
+        ByteBuffer block = a.block();
+        a.release();
+        assertEquals(0, arena.getUsedBytes());
+        NXPixels b = arena.allocate(20, 20);
+        assertSame(block, b.block());
+        assertEquals(4096, arena.getReservedBytes());
+        b.retain();
+        b.release();
+        assertEquals(4096, arena.getUsedBytes());
+        b.release();
+        try {
+            b.getBuffer();
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        try {
+            b.release();
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    public void testSlabsGrowPerClass() {
+        NXPixelArena arena = new NXPixelArena();
+        // slabs of 1, 1, 2 and 4 blocks
+        for (int i = 0; i < 8; ++i) arena.allocate(32, 32);
+        assertEquals(8 * 4096, arena.getReservedBytes());
+        arena.allocate(32, 32);
+        assertEquals(16 * 4096, arena.getReservedBytes());
+    }
+
+    public void testOneAllocationPerClassReservesOneBlock() {
+        NXPixelArena arena = new NXPixelArena();
+        for (int i = 1; i <= 40; ++i) arena.allocate(64 * i, 64);
+        assertEquals(arena.getUsedBytes(), arena.getReservedBytes());
+        assertTrue(arena.getReservedBytes() < 64L << 20);
+    }
+
+    public void testBlocksLargerThanASlab() {
+        NXPixelArena arena = new NXPixelArena(16384);
+        NXPixels px = arena.allocate(100, 100);
+        assertEquals(40000, arena.getReservedBytes());
+        px.release();
+        assertEquals(0, arena.getReservedBytes());
+        assertEquals(0, arena.getUsedBytes());
+    }
+
+    public void testOversizedBitmapIsRejected() {
+        NXPixelArena arena = new NXPixelArena();
+        try {
+            arena.allocate(65535, 65535);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(0, arena.getReservedBytes());
+    }
+
+    public void testCanvasPixels() throws Exception {
+        BufferedImage bi = new BufferedImage(37, 21, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < 21; ++y)
+            for (int x = 0; x < 37; ++x) bi.setRGB(x, y, x * 0x01030507 ^ y << 24);
+        NXTestFile w = new NXTestFile();
+        int id = w.bitmap(bi);
+        w.node("", NXTestFile.NONE, 0, 1);
+        w.node("c", NXTestFile.CANVAS, id, 0);
+        NXFile f = new NXFile(w.write());
+        try {
+            NXPixelArena arena = new NXPixelArena();
+            NXPixels px = ((NXCanvasNode) f.getBaseNode().getChild("c")).getPixels(arena);
+            assertEquals(37, px.getWidth());
+            assertEquals(21, px.getHeight());
+            ByteBuffer b = px.getBuffer();
+            for (int y = 0; y < 21; ++y)
+                for (int x = 0; x < 37; ++x) assertEquals(bi.getRGB(x, y), b.getInt((y * 37 + x) * 4));
+            px.release();
+            assertEquals(0, arena.getUsedBytes());
+        } finally {
+            f.close();
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2011-2012 angelsl.
+ *
+ * This file is part of libjinx.
+ *
+ * libjinx is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * libjinx is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with libjinx.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library. Thus, the terms and
+ * conditions of the GNU General Public License cover the whole combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent modules,
+ * and to copy and distribute the resulting executable under terms of your
+ * choice, provided that you also meet, for each linked independent module,
+ * the terms and conditions of the license of that module. An independent
+ * module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version
+ * of the library, but you are not obligated to do so. If you do not wish to
+ * do so, delete this exception statement from your version.
+ */
+
+
+package org.angelsl.ms.libjinx;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.imageio.ImageIO;
+
+import junit.framework.TestCase;
+
+public class NXPngEncoderTest extends TestCase {
+    private static final int[] LEVELS = {0, 1, NXPngEncoder.DEFAULT_LEVEL, 9, Deflater.DEFAULT_COMPRESSION};
+
+    // a repeating pattern, so matches reach across bands, with some noise and every alpha
+    private static int[] pixels(int count) {
+        Random r = new Random(count);
+        int[] argb = new int[count];
+        for (int i = 0; i < count; ++i)
+            argb[i] = r.nextInt(8) == 0 ? r.nextInt() : (i % 256) << 24 | (i % 61) * 4 << 16 | (i % 97) << 8 | i % 7;
+        return argb;
+    }
+
+    // checks the chunk CRCs and the zlib stream, whose Adler-32 the inflater verifies, and returns the pixels
+    private static int[] decode(byte[] png, int width, int height) throws Exception {
+        ByteBuffer b = ByteBuffer.wrap(png);
+        b.position(8);
+        ByteArrayOutputStream idat = new ByteArrayOutputStream();
+        while (b.hasRemaining()) {
+            int length = b.getInt();
+            CRC32 crc = new CRC32();
+            crc.update(png, b.position(), 4 + length);
+            byte[] type = new byte[4];
+            b.get(type);
+            if (new String(type, "US-ASCII").equals("IDAT")) idat.write(png, b.position(), length);
+            b.position(b.position() + length);
+            assertEquals(crc.getValue(), b.getInt() & 0xFFFFFFFFL);
+        }
+        Inflater inf = new Inflater();
+        inf.setInput(idat.toByteArray());
+        byte[] raw = new byte[(1 + 4 * width) * height + 1];
+        int n = 0;
+        while (!inf.finished() && n < raw.length) n += inf.inflate(raw, n, raw.length - n);
+        assertTrue(inf.finished());
+        assertEquals(raw.length - 1, n);
+        BufferedImage bi = ImageIO.read(new ByteArrayInputStream(png));
+        assertEquals(width, bi.getWidth());
+        assertEquals(height, bi.getHeight());
+        return bi.getRGB(0, 0, width, height, null, 0, width);
+    }
+
+    private static void assertRoundTrip(int width, int height) throws Exception {
+        int[] argb = pixels(width * height + 5);
+        int[] expected = Arrays.copyOfRange(argb, 5, argb.length);
+        for (int level : LEVELS) {
+            byte[] serial = NXPngEncoder.encode(argb, 5, width, height, level, false);
+            byte[] parallel = NXPngEncoder.encode(argb, 5, width, height, level, true);
+            assertTrue(Arrays.equals(serial, parallel));
+            assertTrue(Arrays.equals(expected, decode(serial, width, height)));
+        }
+    }
+
+    public void testTiny() throws Exception {
+        assertRoundTrip(1, 1);
+        assertRoundTrip(7, 3);
+    }
+
+    public void testVeryWide() throws Exception {
+        // each row is larger than a band
+        assertRoundTrip(70000, 3);
+    }
+
+    public void testManyBands() throws Exception {
+        assertRoundTrip(300, 1000);
+    }
+
+    public void testBufferedImage() throws Exception {
+        BufferedImage bi = new BufferedImage(33, 17, BufferedImage.TYPE_INT_ARGB);
+        int[] argb = pixels(33 * 17);
+        bi.setRGB(0, 0, 33, 17, argb, 0, 33);
+        assertTrue(Arrays.equals(argb, decode(NXPngEncoder.encode(bi), 33, 17)));
+        // a sub-image cannot share the raster's array
+        assertTrue(Arrays.equals(bi.getSubimage(1, 2, 5, 4).getRGB(0, 0, 5, 4, null, 0, 5),
+                decode(NXPngEncoder.encode(bi.getSubimage(1, 2, 5, 4)), 5, 4)));
+    }
+
+    public void testAdler32Combine() {
+        byte[] data = new byte[100000];
+        new Random(3).nextBytes(data);
+        for (int split : new int[] {0, 1, 65521, 70000, data.length}) {
+            Adler32 a = new Adler32(), b = new Adler32(), all = new Adler32();
+            a.update(data, 0, split);
+            b.update(data, split, data.length - split);
+            all.update(data);
+            assertEquals(all.getValue(), NXPngEncoder.adler32Combine(a.getValue(), b.getValue(), data.length - split));
+        }
+    }
+
+    public void testInvalidArguments() {
+        int[] argb = new int[16];
+        for (int[] a : new int[][] {{0, 5, 4, 3}, {0, 0, 4, 3}, {1, 4, 4, 3}, {0, 4, 4, 10}, {0, 4, 4, -2}}) {
+            try {
+                NXPngEncoder.encode(argb, a[0], a[1], a[2], a[3], false);
+                fail();
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2011-2012 angelsl.
+ *
+ * This file is part of libjinx.
+ *
+ * libjinx is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * libjinx is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with libjinx.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library. Thus, the terms and
+ * conditions of the GNU General Public License cover the whole combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent modules,
+ * and to copy and distribute the resulting executable under terms of your
+ * choice, provided that you also meet, for each linked independent module,
+ * the terms and conditions of the license of that module. An independent
+ * module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version
+ * of the library, but you are not obligated to do so. If you do not wish to
+ * do so, delete this exception statement from your version.
+ */
+
+
+package org.angelsl.ms.libjinx;
+
+import junit.framework.TestCase;
+
+public class NXProjectionTest extends TestCase {
+    private static final String SUPPLEMENTARY = "\u540D\uD83D\uDE00";
+
+    // three items with an id, a name and a nested level; the second has no name and the third links its level
+    private static NXFile file() throws Exception {
+        NXTestFile w = new NXTestFile();
+        w.node("", NXTestFile.NONE, 0, 3);
+        w.node("0", NXTestFile.NONE, 0, 3);
+        w.node("id", NXTestFile.INTEGER, 100, 0);
+        w.node("info", NXTestFile.NONE, 0, 1);
+        w.node("level", NXTestFile.INTEGER, 7, 0);
+        w.node("name", NXTestFile.STRING, w.string("sword"), 0);
+        w.node("1", NXTestFile.NONE, 0, 2);
+        w.node("id", NXTestFile.INTEGER, 101, 0);
+        w.node("info", NXTestFile.NONE, 0, 1);
+        w.node("level", NXTestFile.STRING, w.string("seven"), 0);
+        w.node("2", NXTestFile.NONE, 0, 3);
+        w.node("id", NXTestFile.INTEGER, 102, 0);
+        w.node("info", NXTestFile.NONE, 0, 1);
+        // node 4 is the first item's level
+        w.node("level", NXTestFile.LINK, 4, 0);
+        w.node("name", NXTestFile.STRING, w.string(SUPPLEMENTARY), 0);
+        return new NXFile(w.write());
+    }
+
+    public void testColumns() throws Exception {
+        NXFile f = file();
+        try {
+            NXProjection p = f.getBaseNode().project("id", "info/level", "name", "missing");
+            assertEquals(3, p.getRowCount());
+            assertEquals(4, p.getColumnCount());
+            assertEquals("0", p.getRowNode(0).getName());
+
+            assertEquals(NXProjection.ColumnType.INT, p.getType(0));
+            assertEquals(100, p.getIntColumn(0)[0]);
+            assertEquals(102, p.getIntColumn(0)[2]);
+            assertNull(p.getDoubleColumn(0));
+
+            // a string in an integer column is null, and a link is followed
+            assertEquals(NXProjection.ColumnType.INT, p.getType(1));
+            assertTrue(p.isNull(1, 1));
+            assertEquals(7, p.getIntColumn(1)[2]);
+
+            assertEquals(NXProjection.ColumnType.STRING, p.getType(2));
+            int[] names = p.getStringColumn(2);
+            assertEquals("sword", p.getString(names[0]));
+            assertTrue(p.isNull(2, 1));
+            assertFalse(p.isNull(2, 2));
+            assertEquals(SUPPLEMENTARY, p.getString(names[2]));
+            assertEquals(1, p.getNullBitmap(2).nextSetBit(0));
+
+            assertEquals(NXProjection.ColumnType.NONE, p.getType(3));
+            assertEquals(3, p.getNullBitmap(3).cardinality());
+        } finally {
+            f.close();
+        }
+    }
+
+    public void testEqualStringsShareAnId() throws Exception {
+        NXTestFile w = new NXTestFile();
+        w.node("", NXTestFile.NONE, 0, 2);
+        w.node("a", NXTestFile.STRING, w.string("x"), 0);
+        w.node("b", NXTestFile.STRING, w.string("x"), 0);
+        NXFile f = new NXFile(w.write());
+        try {
+            NXProjection p = f.getBaseNode().project(".");
+            int[] ids = p.getStringColumn(0);
+            assertEquals(ids[0], ids[1]);
+            assertEquals("x", p.getString(ids[0]));
+        } finally {
+            f.close();
+        }
+    }
+}
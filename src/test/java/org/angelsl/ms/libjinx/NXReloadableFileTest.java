@@ -0,0 +1,134 @@
+/*
+ * Copyright 2011-2012 angelsl.
+ *
+ * This file is part of libjinx.
+ *
+ * libjinx is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * libjinx is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with libjinx.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library. Thus, the terms and
+ * conditions of the GNU General Public License cover the whole combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent modules,
+ * and to copy and distribute the resulting executable under terms of your
+ * choice, provided that you also meet, for each linked independent module,
+ * the terms and conditions of the license of that module. An independent
+ * module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version
+ * of the library, but you are not obligated to do so. If you do not wish to
+ * do so, delete this exception statement from your version.
+ */
+
+
+package org.angelsl.ms.libjinx;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+import junit.framework.TestCase;
+
+public class NXReloadableFileTest extends TestCase {
+    private static byte[] version(int value) {
+        NXTestFile w = new NXTestFile();
+        w.node("", NXTestFile.NONE, 0, 2);
+        w.node("version", NXTestFile.INTEGER, value, 0);
+        w.node("sound", NXTestFile.AUDIO, w.sound(new byte[] {(byte) value, 0, 0, 0}), 0);
+        return w.toBytes();
+    }
+
+    private static int version(NXFile f) {
+        return (Integer) f.getBaseNode().getChild("version").getValue();
+    }
+
+    private static byte firstSoundByte(NXFile f) {
+        byte[] b = new byte[1];
+        ((NXMP3Node) f.getBaseNode().getChild("sound")).read(0, b, 0, 1);
+        return b[0];
+    }
+
+    private String _path;
+
+    // replaces the file the way a patcher would, so open versions keep the old contents
+    private void replace(int value) throws Exception {
+        Path next = Paths.get(_path + ".next");
+        Files.write(next, version(value));
+        Files.move(next, Paths.get(_path), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        File f = File.createTempFile("libjinx-test", ".nx");
+        f.deleteOnExit();
+        _path = f.getPath();
+        Files.write(Paths.get(_path), version(1));
+    }
+
+    public void testLeasesKeepTheirVersion() throws Exception {
+        for (NXStorageConfig storage : new NXStorageConfig[] {NXStorageConfig.mapped(), NXStorageConfig.channel()}) {
+            replace(1);
+            NXReloadableFile handle = new NXReloadableFile(_path, storage);
+            NXReloadableFile.Lease old = handle.acquire();
+            assertEquals(1, version(old.getFile()));
+
+            replace(2);
+            handle.reload();
+            assertTrue(old.getFile().isClosed());
+            // the old version stays readable while its lease is open
+            assertEquals(1, firstSoundByte(old.getFile()));
+            NXReloadableFile.Lease current = handle.acquire();
+            assertEquals(2, version(current.getFile()));
+            assertEquals(2, firstSoundByte(current.getFile()));
+
+            NXFile oldFile = old.getFile();
+            old.close();
+            old.close();
+            try {
+                firstSoundByte(oldFile);
+                fail();
+            } catch (IllegalStateException e) {
+                // expected
+            }
+            current.close();
+            handle.close();
+        }
+    }
+
+    public void testClosedHandle() throws Exception {
+        NXReloadableFile handle = new NXReloadableFile(_path);
+        NXReloadableFile.Lease lease = handle.acquire();
+        handle.close();
+        // the lease still reads the version it holds
+        assertEquals(1, firstSoundByte(lease.getFile()));
+        lease.close();
+        assertTrue(lease.getFile().isClosed());
+        try {
+            handle.acquire();
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        try {
+            handle.reload();
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        handle.close();
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2011-2012 angelsl.
+ *
+ * This file is part of libjinx.
+ *
+ * libjinx is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * libjinx is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with libjinx.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library. Thus, the terms and
+ * conditions of the GNU General Public License cover the whole combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent modules,
+ * and to copy and distribute the resulting executable under terms of your
+ * choice, provided that you also meet, for each linked independent module,
+ * the terms and conditions of the license of that module. An independent
+ * module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version
+ * of the library, but you are not obligated to do so. If you do not wish to
+ * do so, delete this exception statement from your version.
+ */
+
+
+package org.angelsl.ms.libjinx;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+
+public class NXSingleFlightTest extends TestCase {
+    private static final int THREADS = 16;
+    private static final int ROUNDS = 20;
+    private static final int NODES = 4;
+
+    private ExecutorService _pool;
+
+    @Override
+    protected void setUp() {
+        _pool = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @Override
+    protected void tearDown() {
+        _pool.shutdownNow();
+    }
+
+    // runs the task on every thread at once and returns what each thread got
+    private List<Object> race(final Callable<Object> task) throws Exception {
+        final CyclicBarrier start = new CyclicBarrier(THREADS);
+        List<Future<Object>> futures = new ArrayList<Future<Object>>();
+        for (int t = 0; t < THREADS; ++t) {
+            futures.add(_pool.submit(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    start.await();
+                    return task.call();
+                }
+            }));
+        }
+        List<Object> results = new ArrayList<Object>();
+        for (Future<Object> f : futures) results.add(f.get());
+        return results;
+    }
+
+    private static void assertAllSame(List<Object> results) {
+        assertNotNull(results.get(0));
+        for (Object o : results) assertSame(results.get(0), o);
+    }
+
+    public void testConcurrentCanvasAccessDecodesOnce() throws Exception {
+        Random rnd = new Random(49);
+        BufferedImage image = new BufferedImage(512, 512, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < 512; ++y)
+            for (int x = 0; x < 512; ++x) image.setRGB(x, y, rnd.nextInt(4) == 0 ? rnd.nextInt() : 0xFF000000 | x * y);
+        NXTestFile w = new NXTestFile();
+        int bitmap = w.bitmap(image);
+        w.node("", NXTestFile.NONE, 0, NODES);
+        for (int i = 0; i < NODES; ++i) w.node("c" + i, NXTestFile.CANVAS, bitmap, 0);
+        final NXFile file = new NXFile(w.write());
+        try {
+            for (int round = 0; round < ROUNDS; ++round) {
+                file.getBitmapCache().clear();
+                final int[] next = {0};
+                assertAllSame(race(new Callable<Object>() {
+                    @Override
+                    public Object call() {
+                        int i;
+                        synchronized (next) {
+                            i = next[0]++ % NODES;
+                        }
+                        return file.getBaseNode().getChild("c" + i).getValue();
+                    }
+                }));
+            }
+            NXBitmapCache cache = file.getBitmapCache();
+            assertEquals(ROUNDS, cache.getMissCount());
+            assertEquals((long) ROUNDS * (THREADS - 1), cache.getHitCount() + cache.getJoinCount());
+            // every node's first request is counted once, and saves a decode unless it was the one that decoded
+            long size = 4L * 512 * 512;
+            assertTrue(cache.getSavedBytes() >= (NODES - 1) * size && cache.getSavedBytes() <= NODES * size);
+            String s = file.getBaseNode().getChild("c0").toString();
+            assertTrue(s, s.contains(BufferedImage.class.getName()));
+        } finally {
+            file.close();
+        }
+    }
+
+    public void testConcurrentSoundAccessLoadsOnce() throws Exception {
+        byte[] sound = new byte[1 << 20];
+        new Random(49).nextBytes(sound);
+        NXTestFile w = new NXTestFile();
+        w.node("", NXTestFile.NONE, 0, 1);
+        w.node("s", NXTestFile.AUDIO, w.sound(sound), 0);
+        String path = w.write();
+        for (int round = 0; round < ROUNDS; ++round) {
+            final NXFile file = new NXFile(path);
+            try {
+                final NXMP3Node node = (NXMP3Node) file.getBaseNode().getChild("s");
+                assertAllSame(race(new Callable<Object>() {
+                    @Override
+                    public Object call() {
+                        return node.getValue();
+                    }
+                }));
+                assertAllSame(race(new Callable<Object>() {
+                    @Override
+                    public Object call() {
+                        return node.getIndex();
+                    }
+                }));
+                assertTrue(node.toString().contains(byte[].class.getName()));
+            } finally {
+                file.close();
+            }
+        }
+    }
+}
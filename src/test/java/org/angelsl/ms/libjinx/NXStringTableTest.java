@@ -0,0 +1,125 @@
+/*
+ * Copyright 2011-2012 angelsl.
+ *
+ * This file is part of libjinx.
+ *
+ * libjinx is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * libjinx is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with libjinx.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library. Thus, the terms and
+ * conditions of the GNU General Public License cover the whole combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent modules,
+ * and to copy and distribute the resulting executable under terms of your
+ * choice, provided that you also meet, for each linked independent module,
+ * the terms and conditions of the license of that module. An independent
+ * module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version
+ * of the library, but you are not obligated to do so. If you do not wish to
+ * do so, delete this exception statement from your version.
+ */
+
+
+package org.angelsl.ms.libjinx;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class NXStringTableTest extends TestCase {
+    private static final String SUPPLEMENTARY = "\u00E9\u540D\uD83D\uDE00";
+
+    private static byte[] modified(String s) throws Exception {
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        new DataOutputStream(b).writeUTF(s);
+        return Arrays.copyOfRange(b.toByteArray(), 2, b.size());
+    }
+
+    private static byte[] standard(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static NXStringTable table(byte[]... strings) throws Exception {
+        ByteBuffer b = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+        for (byte[] s : strings) b.putShort((short) s.length).put(s);
+        return new NXStringTable(new LittleEndianReader(new NXBufferStorage(b, false)), strings.length);
+    }
+
+    public void testLookupByEncodedBytes() throws Exception {
+        NXStringTable t = table(modified("a"), modified("bc"), modified(""), modified("\u00E9\u540D"),
+                modified("b"));
+        assertEquals(0, t.find("a"));
+        assertEquals(1, t.find("bc"));
+        assertEquals(2, t.find(""));
+        assertEquals(3, t.find("\u00E9\u540D"));
+        assertEquals(4, t.find("b"));
+        assertEquals(-1, t.find("bcd"));
+        assertEquals(-1, t.find("\u00E9"));
+        assertEquals(-1, t.find("x"));
+        assertNull(t.peek(1));
+        assertEquals("bc", t.get(1));
+        assertSame(t.get(1), t.peek(1));
+    }
+
+    public void testCanonicalIds() throws Exception {
+        NXStringTable t = table(modified("a"), modified("b"), modified("a"), modified("b"), modified("c"));
+        assertEquals(0, t.canonical(0));
+        assertEquals(1, t.canonical(1));
+        assertEquals(0, t.canonical(2));
+        assertEquals(1, t.canonical(3));
+        assertEquals(4, t.canonical(4));
+        assertEquals(0, t.find("a"));
+        assertEquals(1, t.find("b"));
+        NXStringTable unique = table(modified("a"), modified("b"));
+        assertEquals(1, unique.canonical(1));
+    }
+
+    public void testStandardUTF8() throws Exception {
+        NXStringTable t = table(standard("x"), standard(SUPPLEMENTARY), standard("n\0ul"), modified(SUPPLEMENTARY),
+                modified("n\0ul"));
+        assertEquals(SUPPLEMENTARY, t.get(1));
+        assertEquals(1, t.find(SUPPLEMENTARY));
+        assertEquals("n\0ul", t.get(2));
+        assertEquals(2, t.find("n\0ul"));
+        // the same strings in either encoding share a canonical ID
+        assertEquals(SUPPLEMENTARY, t.get(3));
+        assertEquals(1, t.canonical(3));
+        assertEquals(2, t.canonical(4));
+        assertEquals(-1, t.find("\uD83D\uDE00"));
+    }
+
+    public void testChildWithSupplementaryName() throws Exception {
+        NXTestFile w = new NXTestFile();
+        w.node("", NXTestFile.NONE, 0, 2);
+        w.node("a", NXTestFile.INTEGER, 1, 0);
+        w.node(SUPPLEMENTARY, NXTestFile.INTEGER, 2, 0);
+        NXFile f = new NXFile(w.write());
+        try {
+            NXNode<?> child = f.getBaseNode().getChild(SUPPLEMENTARY);
+            assertNotNull(child);
+            assertEquals(SUPPLEMENTARY, child.getName());
+            assertEquals(2L, ((Number) child.getValue()).longValue());
+            assertNotNull(f.getBaseNode().getChild("a"));
+        } finally {
+            f.close();
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2011-2012 angelsl.
+ *
+ * This file is part of libjinx.
+ *
+ * libjinx is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * libjinx is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with libjinx.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library. Thus, the terms and
+ * conditions of the GNU General Public License cover the whole combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent modules,
+ * and to copy and distribute the resulting executable under terms of your
+ * choice, provided that you also meet, for each linked independent module,
+ * the terms and conditions of the license of that module. An independent
+ * module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version
+ * of the library, but you are not obligated to do so. If you do not wish to
+ * do so, delete this exception statement from your version.
+ */
+
+
+package org.angelsl.ms.libjinx;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes small PKG2 files for tests. Nodes are added depth first, each before its children.
+ */
+final class NXTestFile {
+    static final int NONE = 0, INTEGER = 1, STRING = 3, CANVAS = 5, AUDIO = 6, LINK = 7;
+
+    private final Map<String, Integer> _strings = new LinkedHashMap<String, Integer>();
+    private final ByteArrayOutputStream _nodes = new ByteArrayOutputStream();
+    private final List<byte[]> _bitmaps = new ArrayList<byte[]>();
+    private final List<byte[]> _sounds = new ArrayList<byte[]>();
+    private int _nodeCount = 0;
+
+    int string(String s) {
+        Integer id = _strings.get(s);
+        if (id == null) {
+            id = _strings.size();
+            _strings.put(s, id);
+        }
+        return id;
+    }
+
+    int bitmap(BufferedImage image) {
+        return bitmap(NXBitmapEncoder.encode(image));
+    }
+
+    // adds a bitmap record as written, so tests can corrupt it
+    int bitmap(byte[] record) {
+        _bitmaps.add(record);
+        return _bitmaps.size() - 1;
+    }
+
+    int sound(byte[] data) {
+        _sounds.add(data);
+        return _sounds.size() - 1;
+    }
+
+    NXTestFile node(String name, int type, int value, int children) {
+        ByteBuffer b = ByteBuffer.allocate(11).order(ByteOrder.LITTLE_ENDIAN);
+        b.putInt(string(name));
+        b.put((byte) (type | (children > 0 ? 0x80 : 0)));
+        if (type != NONE) b.putInt(value);
+        if (children > 0) b.putShort((short) children);
+        _nodes.write(b.array(), 0, b.position());
+        ++_nodeCount;
+        return this;
+    }
+
+    byte[] toBytes() {
+        Out out = new Out();
+        out.skip(56);
+        long strings = out.size();
+        for (String s : _strings.keySet()) {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            out.put(ByteBuffer.allocate(2).order(ByteOrder.LITTLE_ENDIAN).putShort((short) b.length).array());
+            out.put(b);
+        }
+        out.align();
+        long nodes = out.size();
+        out.put(_nodes.toByteArray());
+        long[] bitmaps = new long[_bitmaps.size()], sounds = new long[_sounds.size()];
+        for (int i = 0; i < bitmaps.length; ++i) {
+            out.align();
+            bitmaps[i] = out.size();
+            out.put(_bitmaps.get(i));
+        }
+        for (int i = 0; i < sounds.length; ++i) {
+            out.align();
+            sounds[i] = out.size();
+            out.put(ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(_sounds.get(i).length).array());
+            out.put(_sounds.get(i));
+        }
+        out.align();
+        long bitmapTable = out.size();
+        for (long o : bitmaps) out.put(ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(o).array());
+        long soundTable = out.size();
+        for (long o : sounds) out.put(ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(o).array());
+        ByteBuffer file = ByteBuffer.wrap(out.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+        file.putInt(0, 0x32474B50);
+        file.putInt(4, _nodeCount).putLong(8, nodes);
+        file.putInt(16, _strings.size()).putLong(20, strings);
+        file.putInt(28, bitmaps.length).putLong(32, bitmapTable);
+        file.putInt(40, sounds.length).putLong(44, soundTable);
+        return file.array();
+    }
+
+    // writes the file to a temporary path that is deleted when the JVM exits
+    String write() throws IOException {
+        File f = File.createTempFile("libjinx-test", ".nx");
+        f.deleteOnExit();
+        Files.write(f.toPath(), toBytes());
+        return f.getPath();
+    }
+
+    private static final class Out extends ByteArrayOutputStream {
+        void put(byte[] b) {
+            write(b, 0, b.length);
+        }
+
+        void skip(int n) {
+            put(new byte[n]);
+        }
+
+        void align() {
+            while (size() % 8 != 0) write(0);
+        }
+    }
+}